@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of the processor: pushes FlowFiles through it with the NiFi TestRunner, against the stub CKAN with the injected faults,
+ * and reports the throughput, the latency percentiles of the executions of the processor and the heap used.
+ *
+ * java -cp benchmarks.jar net.atos.qrowd.processors.nifiCKANprocessor.CKAN_Load_Test [--option value]...
+ */
+public class CKAN_Load_Test {
+
+    private static final String[] RELATIONSHIPS = {"SUCCESS", "unchanged", "not.found", "permission.denied", "failure"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("flowfiles", "5000");
+        options.put("size", "64 KB");
+        // Distinct resource names, FlowFiles beyond that update (or leave unchanged) the resources already uploaded
+        options.put("names", "0");
+        options.put("threads", "4");
+        options.put("latency-median", "0");
+        options.put("latency-p99", "0");
+        options.put("error-rate", "0");
+        options.put("rate-limit", "0");
+        options.put("read-rate", "0 B");
+        options.put("timeout", "600");
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if ("property".equals(name)) {
+                // Any property of the processor, e.g. --property "Execution Mode=Asynchronous"
+                String[] property = args[i + 1].split("=", 2);
+                properties.put(property[0], property[1]);
+            } else if (options.containsKey(name)) {
+                options.put(name, args[i + 1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i] + ", expected --property or one of " + options.keySet());
+            }
+        }
+
+        int flowFiles = Integer.parseInt(options.get("flowfiles"));
+        int names = Integer.parseInt(options.get("names")) > 0 ? Integer.parseInt(options.get("names")) : flowFiles;
+        int threads = Integer.parseInt(options.get("threads"));
+        byte[] content = new byte[DataUnit.parseDataSize(options.get("size"), DataUnit.B).intValue()];
+        new Random(42).nextBytes(content);
+
+        try (CKAN_Stub_Server stub = CKAN_Stub_Server.start()) {
+            stub.setLatency(Long.parseLong(options.get("latency-median")), Long.parseLong(options.get("latency-p99")), TimeUnit.MILLISECONDS);
+            stub.setErrorRate(Double.parseDouble(options.get("error-rate")));
+            stub.setRateLimit(Integer.parseInt(options.get("rate-limit")));
+            stub.setReadRate(DataUnit.parseDataSize(options.get("read-rate"), DataUnit.B).longValue());
+
+            TimedUploader uploader = new TimedUploader();
+            TestRunner runner = TestRunners.newTestRunner(uploader);
+            runner.setProperty("CKAN_url", stub.getUrl());
+            runner.setProperty("Api_Key", "load-test");
+            runner.setProperty("organization_id", "loadtest");
+            runner.setProperty("package_name", "loadtest");
+            runner.setProperty("Content Source", "FlowFile Content");
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                runner.setProperty(property.getKey(), property.getValue());
+            }
+            runner.setThreadCount(threads);
+            for (int i = 0; i < flowFiles; i++) {
+                runner.enqueue(content, Collections.singletonMap("filename", "load-" + (i % names) + ".csv"));
+            }
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            final AtomicLong peakHeap = new AtomicLong(heapBefore);
+            ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+            sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, 50, TimeUnit.MILLISECONDS);
+            long gcCountBefore = gcCount();
+            long gcTimeBefore = gcTime();
+
+            // FlowFiles failing with a transient error come back to the queue, so the processor runs until all of them are routed
+            Map<String, Integer> routed = new LinkedHashMap<>();
+            int routedCount = 0;
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("timeout")));
+            boolean initialize = true;
+            while (routedCount < flowFiles && System.nanoTime() < deadline) {
+                runner.run(threads * 10, false, initialize);
+                initialize = false;
+                for (String relationship : RELATIONSHIPS) {
+                    int count = runner.getFlowFilesForRelationship(relationship).size();
+                    routed.merge(relationship, count, Integer::sum);
+                    routedCount += count;
+                }
+                // The FlowFiles routed are not kept, so the heap measured is the one of the FlowFiles in progress
+                runner.clearTransferState();
+                runner.clearProvenanceEvents();
+            }
+            long elapsed = System.nanoTime() - start;
+            runner.run(1, true, false);
+            sampler.shutdownNow();
+
+            double seconds = elapsed / 1e9;
+            System.out.println();
+            System.out.printf("FlowFiles:  %d of %d routed in %.1f s%s%n", routedCount, flowFiles, seconds, routedCount < flowFiles ? " (timed out)" : "");
+            System.out.printf("Throughput: %.1f FlowFiles/s, %.1f MB/s%n", routedCount / seconds, (double) routedCount * content.length / seconds / (1024 * 1024));
+            System.out.println("Routed:     " + routed);
+            System.out.println("Latency of the executions of the processor, in ms (" + uploader.durations.size() + " executions):");
+            System.out.println("            " + percentiles(uploader.durations));
+            System.out.printf("Heap:       %.1f MB before, %.1f MB peak, %d collections taking %d ms%n", heapBefore / (1024.0 * 1024),
+                    peakHeap.get() / (1024.0 * 1024), gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+            System.out.println("CKAN:       requests " + stub.getRequestCounts() + ", responses " + stub.getResponseCounts());
+        }
+    }
+
+    private static String percentiles(List<Long> durations) {
+        List<Long> sorted;
+        synchronized (durations) {
+            sorted = new ArrayList<>(durations);
+        }
+        if (sorted.isEmpty()) {
+            return "none";
+        }
+        Collections.sort(sorted);
+        StringBuilder sb = new StringBuilder();
+        double[] percentiles = {50, 90, 99, 99.9, 100};
+        String[] labels = {"p50", "p90", "p99", "p99.9", "max"};
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.ceil(percentiles[i] / 100 * sorted.size()) - 1;
+            sb.append(String.format("%s %.1f  ", labels[i], sorted.get(Math.max(0, index)) / 1e6));
+        }
+        return sb.toString().trim();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * The processor, timing each execution that has FlowFiles to process (a FlowFile is routed when the execution that took it ends)
+     */
+    public static class TimedUploader extends CKAN_File_Uploader {
+        private final List<Long> durations = Collections.synchronizedList(new ArrayList<Long>());
+
+        @Override
+        public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+            if (session.getQueueSize().getObjectCount() == 0) {
+                super.onTrigger(context, session);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                super.onTrigger(context, session);
+            } finally {
+                durations.add(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building and writing the multipart request of an upload, without the network:
+ * the synchronous one (written by the client to the connection) and the streaming one of the Asynchronous mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CKAN_Multipart_Benchmark {
+
+    @Param({"1024", "1048576", "16777216"})
+    public int fileSize;
+
+    // Only used by the synchronous request
+    @Param({"NONE", "GZIP_FILE", "GZIP_ENCODING"})
+    public CKAN_Upload_Compression.Mode compression;
+
+    private CKAN_API_Handler handler;
+    private CKAN_Resource_Content content;
+
+    @Setup
+    public void setUp() {
+        final byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        content = new CKAN_Resource_Content() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(data);
+            }
+
+            @Override
+            public long length() {
+                return data.length;
+            }
+        };
+        // Building a request does not use the client, the caches nor the index
+        handler = new CKAN_API_Handler("http://localhost", "benchmark", "benchmark", "benchmark", "benchmark", true,
+                null, null, null, null, null, null, new CKAN_Upload_Compression(compression, 0, Collections.singletonList("text/*")));
+    }
+
+    @Benchmark
+    public String uploadRequest() throws IOException {
+        CKAN_Digesting_Body body = handler.uploadBody("upload.csv", content);
+        HttpPost request = handler.buildUploadRequest("upload.csv", body, null);
+        request.getEntity().writeTo(new DiscardingOutputStream());
+        return body.getHash();
+    }
+
+    @Benchmark
+    public String streamingRequest() throws IOException {
+        CKAN_Streaming_Multipart multipart = new CKAN_Streaming_Multipart()
+                .addField("key", "upload")
+                .addField("name", "upload.csv")
+                .addField("url", "testURL")
+                .addField("package_id", "benchmark")
+                .addField("description", "upload.csv created on: 20180301_100000");
+        HttpEntity entity = multipart.build("upload", "upload.csv", CKAN_Content_Types.forFilename("upload.csv"), content.open(), content.length(), "hash");
+        try (InputStream in = entity.getContent()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // read like the non-blocking client does
+            }
+        }
+        return multipart.getHash();
+    }
+
+    private static final class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
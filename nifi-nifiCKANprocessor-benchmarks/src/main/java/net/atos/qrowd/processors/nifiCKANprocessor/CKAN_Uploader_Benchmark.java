@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One FlowFile through the whole processor, with the NiFi TestRunner, against a stub CKAN on the loopback interface.
+ * The caches are disabled, so each invocation checks the organization, looks the resource up in its package with package_show,
+ * and uploads the local file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CKAN_Uploader_Benchmark {
+
+    @Param({"1024", "1048576", "16777216"})
+    public int fileSize;
+
+    // Resources returned by package_show: 0 creates the resource, 1 updates it
+    @Param({"0", "1"})
+    public int resultCount;
+
+    private CKAN_Stub_Server stub;
+    private Path directory;
+    private Path file;
+    private TestRunner runner;
+    private final Map<String, String> attributes = new HashMap<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = CKAN_Stub_Server.start();
+        stub.setPackageResourceCount(resultCount);
+
+        byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        // The name of the first resource returned by the stub
+        directory = Files.createTempDirectory("ckan-benchmark");
+        file = directory.resolve("upload-0.csv");
+        Files.write(file, data);
+        attributes.put("absolute.path", file.getParent().toString());
+        attributes.put("filename", file.getFileName().toString());
+
+        runner = TestRunners.newTestRunner(CKAN_File_Uploader.class);
+        runner.setProperty("CKAN_url", stub.getUrl());
+        runner.setProperty("Api_Key", "benchmark");
+        runner.setProperty("organization_id", "benchmark");
+        runner.setProperty("package_name", "benchmark");
+        runner.setProperty("Cache Time To Live", "0 sec");
+
+        // Schedules the processor, and checks that the upload succeeds so that the failure path is not what gets measured
+        runner.enqueue(new byte[0], attributes);
+        runner.run(1, false, true);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        runner.clearTransferState();
+    }
+
+    @Benchmark
+    public void onTrigger() {
+        runner.enqueue(new byte[0], attributes);
+        runner.run(1, false, false);
+        runner.clearTransferState();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // Stops the processor, which closes its http clients
+        runner.run(1, true, false);
+        stub.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+}
@@ -16,26 +16,32 @@
  */
 package net.atos.qrowd.processors.nifiCKANprocessor;
 
-import com.google.gson.Gson;
-import net.atos.qrowd.processors.pojos.ResourceResponse;
+import com.google.gson.stream.JsonWriter;
+import net.atos.qrowd.processors.pojos.Result;
+import net.atos.qrowd.processors.pojos.Result_;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.ContentBody;
-import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 public class CKAN_API_Handler {
@@ -48,8 +54,25 @@ public class CKAN_API_Handler {
     private String package_description;
     private CloseableHttpClient httpclient;
     private Boolean package_private;
+    private CKAN_Id_Cache organizationCache;
+    private CKAN_Package_Cache packageCache;
+    private CKAN_Catalog catalog;
+    private CKAN_Resource_Index resourceIndex;
+    private CKAN_Retry_Policy retryPolicy;
+    private CKAN_Upload_Compression compression;
+    //Ids of the resources created empty together with the package, by name: their files are uploaded without searching them
+    private final Map<String, String> createdResources = new HashMap<>();
 
-    CKAN_API_Handler(String HOST, String api_key, String filename, String organization_id, String package_description, Boolean package_private) {
+    /**
+     * The http client, the caches, the resource index and the retry policy are shared by the whole processor and are not owned by the handler:
+     * they are created when the processor is scheduled and shut down when it is stopped.
+     * @param catalog null if the processor does not load one
+     * @param resourceIndex null if the processor does not keep one
+     * @param compression Which synchronous uploads are compressed
+     */
+    CKAN_API_Handler(String HOST, String api_key, String filename, String organization_id, String package_description, Boolean package_private,
+                     CloseableHttpClient httpclient, CKAN_Id_Cache organizationCache, CKAN_Package_Cache packageCache, CKAN_Catalog catalog, CKAN_Resource_Index resourceIndex,
+                     CKAN_Retry_Policy retryPolicy, CKAN_Upload_Compression compression) {
         this.HOST = HOST;
         this.api_key = api_key;
         this.package_id = filename.toLowerCase();
@@ -57,14 +80,61 @@ public class CKAN_API_Handler {
         this.organization_id = organization_id.toLowerCase();
         this.package_private = package_private;
 
-        this.httpclient = HttpClientBuilder.create().build();
+        this.httpclient = httpclient;
+        this.organizationCache = organizationCache;
+        this.packageCache = packageCache;
+        this.catalog = catalog;
+        this.resourceIndex = resourceIndex;
+        this.retryPolicy = retryPolicy;
+        this.compression = compression;
+    }
+
+    public String getPackageId() {
+        return package_id;
+    }
+
+    /**
+     * Id of the resource with that name, looked up in its package
+     * @return null if there is none
+     * @throws CKAN_Exception if there are several
+     */
+    public String findResourceId(String filename) throws IOException {
+        if(createdResources.containsKey(filename))
+        {
+            return createdResources.get(filename);
+        }
+        Result searchResult = findResources(filename);
+        if(searchResult.getCount()>1)
+        {
+            throw new CKAN_Exception("Found more than one resource named "+filename, false);
+        }
+        return searchResult.getCount()==1 ? searchResult.getResults().get(0).getId() : null;
     }
 
     // ToDo: Check if the package exists marked as delete, then reactivate it?
     public boolean packageExists() throws IOException{
+        //A package listed in the catalog is not looked up, its resources are loaded when a file needs them
+        if(catalog!=null && catalog.hasPackage(package_id))
+        {
+            log.debug("Package with id "+package_id+" found in catalog");
+            return true;
+        }
+        return loadPackage()!=null;
+    }
+
+    /**
+     * Gets the package from the cache, or with package_show if it is not cached
+     * @return null if the package does not exist
+     */
+    private CKAN_Package_Cache.Entry loadPackage() throws IOException{
+
+        CKAN_Package_Cache.Entry cached = packageCache.get(package_id);
+        if(cached!=null)
+        {
+            log.debug("Package with id "+package_id+" found in cache");
+            return cached;
+        }
 
-        String line;
-        StringBuilder sb = new StringBuilder();
         HttpPost postRequest;
 
         HttpEntity reqEntity = MultipartEntityBuilder.create()
@@ -75,72 +145,114 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        HttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-
-        if(statusCode==200)
-        {
-            log.info("Package with id "+package_id+" exists");
-            //Check if that package is deleted
-
-            log.info(sb);
-            return true;
-        }else{
-            log.warn("Package with id "+package_id+" not found");
-            log.warn(sb);
-            return false;
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode==200)
+            {
+                //The resources of the package are kept, the files are looked up among them instead of searched in the whole instance
+                List<Result_> resources = new ArrayList<>();
+                String id = CKAN_Response_Reader.readPackage(response, resources);
+                log.info("Package with id "+package_id+" exists with "+resources.size()+" resources");
+                if(catalog!=null)
+                {
+                    catalog.addPackage(package_id);
+                }
+                return packageCache.put(package_id, id, resources);
+            }
+            //Only the beginning of the body is kept, to be logged
+            String body = CKAN_Response_Reader.readForLog(response);
+            if(CKAN_Retry_Policy.isTransient(statusCode, CKAN_Response_Reader.readErrorType(body))){
+                //Not knowing is not the same as not existing
+                throw new CKAN_Exception("package_show", statusCode, body);
+            }else{
+                packageCache.invalidate(package_id);
+                if(catalog!=null)
+                {
+                    catalog.removePackage(package_id);
+                }
+                log.warn("Package with id "+package_id+" not found");
+                log.warn(body);
+                return null;
+            }
         }
     }
 
     public void createPackage() throws IOException{
+        createPackage(Collections.<String>emptyList());
+    }
 
-        HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
+    /**
+     * Creates the package together with its first resources, without content, in a single package_create.
+     * The ids of those resources are remembered, so uploading their files is a single resource_update, without searching them first.
+     * @param resourceNames Names of the resources to create with the package
+     */
+    public void createPackage(Collection<String> resourceNames) throws IOException{
+        SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        String date=dateFormatGmt.format(new Date());
 
-        HttpEntity reqEntity = MultipartEntityBuilder.create()
-                .addPart("name",new StringBody(package_id,ContentType.TEXT_PLAIN))
-                .addPart("owner_org",new StringBody(organization_id,ContentType.TEXT_PLAIN))
-                .addPart("notes",new StringBody(package_description,ContentType.TEXT_PLAIN))
-                .addPart("private",new StringBody(package_private.toString(),ContentType.TEXT_PLAIN))
-                .build();
+        //The resources are a list of objects, which a form cannot hold: the request is sent as JSON
+        StringWriter body = new StringWriter();
+        JsonWriter json = new JsonWriter(body);
+        json.beginObject()
+                .name("name").value(package_id)
+                .name("owner_org").value(organization_id)
+                .name("notes").value(package_description)
+                .name("private").value(package_private)
+                .name("resources").beginArray();
+        for(String filename : resourceNames)
+        {
+            json.beginObject()
+                    .name("key").value(filename.split("\\.")[0])
+                    .name("name").value(filename)
+                    .name("url").value("testURL")
+                    .name("url_type").value("upload")
+                    .name("description").value(filename+" created on: "+date)
+                    .endObject();
+        }
+        json.endArray().endObject().flush();
 
-        postRequest = new HttpPost(HOST+"/api/action/package_create");
-        postRequest.setEntity(reqEntity);
+        HttpPost postRequest = new HttpPost(HOST+"/api/action/package_create");
+        postRequest.setEntity(new StringEntity(body.toString(), ContentType.APPLICATION_JSON));
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        HttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        sb.append(statusCode);
-        sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-        //ToDo: Save the returned package to store it's alfanumerical id (to be later used when updating the file)
-        if(statusCode!=200){
-            log.error("statusCode =!=" +statusCode);
-            log.error(sb);
-        }
-        else {
-            log.info("Request returns statusCode 200: OK");
-            log.info(sb);
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode!=200){
+                String responseBody = CKAN_Response_Reader.readForLog(response);
+                invalidateOnNotFoundOrConflict(packageCache, package_id, statusCode);
+                log.error("statusCode =!=" +statusCode);
+                log.error(responseBody);
+                //The files cannot be uploaded without their package
+                throw new CKAN_Exception("package_create of "+package_id, statusCode, responseBody);
+            }
+            List<Result_> resources = new ArrayList<>();
+            String id = CKAN_Response_Reader.readPackage(response, resources);
+            packageCache.put(package_id, id, resources);
+            if(catalog!=null)
+            {
+                catalog.addPackage(package_id);
+            }
+            for(Result_ resource : resources)
+            {
+                createdResources.put(resource.getName(), resource.getId());
+            }
+            log.info("Created package "+package_id+" with resources "+createdResources.keySet());
         }
     }
 
     public boolean organizationExists() throws IOException{
-        String line;
-        StringBuilder sb = new StringBuilder();
+        if(organizationCache.contains(organization_id))
+        {
+            log.debug("Organization with id "+organization_id+" found in cache");
+            return true;
+        }
+        if(catalog!=null && catalog.hasOrganization(organization_id))
+        {
+            log.debug("Organization with id "+organization_id+" found in catalog");
+            organizationCache.put(organization_id);
+            return true;
+        }
+
         HttpPost postRequest;
 
         HttpEntity reqEntity = MultipartEntityBuilder.create()
@@ -151,33 +263,40 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        HttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-        }
-
-        if(statusCode==200)
-        {
-            log.info("Organization with id "+organization_id+" exists");
-            log.info(sb);
-            return true;
-        }else{
-            log.warn("Organization with id "+organization_id+" not found");
-            log.warn(sb);
-            return false;
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            //Only the beginning of the body is kept, to be logged
+            String body = CKAN_Response_Reader.readForLog(response);
+
+            if(statusCode==200)
+            {
+                log.info("Organization with id "+organization_id+" exists");
+                log.info(body);
+                organizationCache.put(organization_id);
+                if(catalog!=null)
+                {
+                    catalog.addOrganization(organization_id);
+                }
+                return true;
+            }else if(CKAN_Retry_Policy.isTransient(statusCode) || statusCode==401 || statusCode==403){
+                //Not knowing is not the same as not existing, neither is not being allowed to know (e.g. a wrong API key)
+                throw new CKAN_Exception("organization_show", statusCode, body);
+            }else{
+                organizationCache.invalidate(organization_id);
+                if(catalog!=null)
+                {
+                    catalog.removeOrganization(organization_id);
+                }
+                log.warn("Organization with id "+organization_id+" not found");
+                log.warn(body);
+                return false;
+            }
         }
     }
 
     public void createOrganization() throws IOException{
 
         HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
 
         HttpEntity reqEntity = MultipartEntityBuilder.create()
                 .addPart("name", new StringBody(organization_id, ContentType.TEXT_PLAIN))
@@ -189,173 +308,648 @@ public class CKAN_API_Handler {
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        HttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = CKAN_Response_Reader.readForLog(response);
+            if (statusCode != 200) {
+                invalidateOnNotFoundOrConflict(organizationCache, organization_id, statusCode);
+                log.error("statusCode =!=" + statusCode);
+                log.error(body);
+                throw new CKAN_Exception("organization_create of " + organization_id, statusCode, body);
+            } else {
+                organizationCache.put(organization_id);
+                if(catalog!=null)
+                {
+                    catalog.addOrganization(organization_id);
+                }
+                log.info("Request returns statusCode 200: OK");
+                log.info(body);
+            }
+        }
+    }
 
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        sb.append(statusCode);
-        sb.append("\n");
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
+    /**
+     * Creates the resource, or updates it when resourceId is not null, with the given content.
+     * The content is sent once, and its hash is computed while it is sent and stored in the resource,
+     * so later uploads of the same content can be skipped.
+     * @return the status code of the CKAN response
+     */
+    private int uploadResource(String filename, CKAN_Resource_Content content, String resourceId) throws IOException {
+        CKAN_Digesting_Body cbFile = uploadBody(filename, content);
+        HttpPost postRequest = buildUploadRequest(filename, cbFile, resourceId);
+
+        try (CloseableHttpResponse response = executeCreate(postRequest, resourceId==null)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode==200 && resourceId==null)
+            {
+                //The id of a created resource is only known from the response, the rest of it is not needed
+                Result_ created = CKAN_Response_Reader.readResource(response);
+                String createdId = created==null ? null : created.getId();
+                handleUploadResponse(filename, null, cbFile.getHash(), content.length(), statusCode, "Created resource "+createdId, createdId);
+            }else{
+                handleUploadResponse(filename, resourceId, cbFile.getHash(), content.length(), statusCode, CKAN_Response_Reader.readForLog(response), null);
+            }
+            return statusCode;
         }
-        if (statusCode != 200) {
-            log.error("statusCode =!=" + statusCode);
-            log.error(sb);
-        } else {
-            log.info("Request returns statusCode 200: OK");
-            log.info(sb);
+    }
+
+    /**
+     * The body of the content of an upload, with the content type of the file. With the Gzip File compression,
+     * a compressible content is sent as a gzip file named after the original file.
+     */
+    CKAN_Digesting_Body uploadBody(String filename, CKAN_Resource_Content content) {
+        if(isStoredCompressed(filename, content))
+        {
+            return new CKAN_Digesting_Body(content, CKAN_Content_Types.GZIP, filename+".gz", true);
         }
+        return new CKAN_Digesting_Body(content, CKAN_Content_Types.forFilename(filename), filename);
+    }
+
+    private boolean isStoredCompressed(String filename, CKAN_Resource_Content content) {
+        return compression.getMode()==CKAN_Upload_Compression.Mode.GZIP_FILE
+                && compression.shouldCompress(CKAN_Content_Types.forFilename(filename), content.length());
     }
 
     /**
-     * Function that uploads a file to CKAN through it's API
-     * @param path Local filesystem path of the file to upload
-     * @return
+     * Builds the request that creates the resource, or updates it when resourceId is not null, with the content of the given body.
+     * With the Gzip Content-Encoding compression, the whole request body of a compressible content is compressed.
      */
-    public String uploadFile(String path) throws IOException {
-        String line;
-        StringBuilder sb = new StringBuilder();
-        File file = new File(path);
+    HttpPost buildUploadRequest(String filename, CKAN_Digesting_Body cbFile, String resourceId) {
         SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyyMMdd_HHmmss");
         String date=dateFormatGmt.format(new Date());
 
         HttpPost postRequest;
-        ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
-        HttpEntity reqEntity = MultipartEntityBuilder.create()
-                .addPart("file", cbFile)
-                .addPart("key", new StringBody(file.getName().split("\\.")[0],ContentType.TEXT_PLAIN))
-                .addPart("name", new StringBody(file.getName(),ContentType.TEXT_PLAIN))
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        if(resourceId!=null)
+        {
+            builder.addPart("id",new StringBody(resourceId,ContentType.TEXT_PLAIN));
+        }
+        HttpEntity reqEntity = builder
+                .addPart("key", new StringBody(filename.split("\\.")[0],ContentType.TEXT_PLAIN))
+                .addPart("name", new StringBody(filename,ContentType.TEXT_PLAIN))
                 .addPart("url",new StringBody("testURL",ContentType.TEXT_PLAIN))
                 .addPart("package_id",new StringBody(package_id,ContentType.TEXT_PLAIN))
+                .addPart("description",new StringBody(filename+" created on: "+date,ContentType.TEXT_PLAIN))
                 .addPart("upload",cbFile)
-                .addPart("description",new StringBody(file.getName()+" created on: "+date,ContentType.TEXT_PLAIN))
+                //Must go after the upload, its value is computed while the upload is written
+                .addPart("hash",cbFile.hashField())
                 .build();
+        if(cbFile.isCompressed())
+        {
+            //The length of the compressed body is unknown, which makes the entity look not repeatable,
+            //but the content is opened and compressed again for each attempt
+            reqEntity = new HttpEntityWrapper(reqEntity) {
+                @Override
+                public boolean isRepeatable() {
+                    return true;
+                }
+            };
+        }else if(compression.getMode()==CKAN_Upload_Compression.Mode.GZIP_ENCODING
+                && compression.shouldCompress(cbFile.getContentType(), cbFile.getContentLength()))
+        {
+            reqEntity = new GzipCompressingEntity(reqEntity);
+        }
 
-        postRequest = new HttpPost(HOST+"/api/action/resource_create");
+        postRequest = new HttpPost(HOST+(resourceId==null ? "/api/action/resource_create" : "/api/action/resource_update"));
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
+        return postRequest;
+    }
 
-        HttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
+    public Outcome createOrUpdateResource(String path) throws IOException {
+        File file = new File(path);
+        return createOrUpdateResource(file.getName(), CKAN_Resource_Content.ofFile(file));
+    }
 
-        sb.append(statusCode);
-        sb.append("\n");
-        if(statusCode!=200){
-            log.error("statusCode =!=" +statusCode);
+    public Outcome createOrUpdateResource(String filename, CKAN_Resource_Content content) throws IOException {
+        //A resource created with its package has no content yet, there is nothing to compare
+        String created = createdResources.remove(filename);
+        if(created!=null)
+        {
+            log.info("Resource created with its package, uploading its file");
+            return outcomeOf(uploadResource(filename, content, created));
+        }
+        //The local index knows the id of the resources already uploaded, so they don't have to be searched
+        CKAN_Resource_Index.Entry indexed = resourceIndex==null ? null : resourceIndex.get(organization_id, package_id, filename);
+        if(indexed!=null)
+        {
+            if(isUnchanged(indexed.getHash(), indexed.getSize(), content))
+            {
+                log.info("Resource found in the index with the same content, skipping upload");
+                return Outcome.UNCHANGED;
+            }
+            log.info("Resource found in the index, updating it");
+            int statusCode = uploadResource(filename, content, indexed.getId());
+            if(statusCode!=404)
+            {
+                return outcomeOf(statusCode);
+            }
+            //The resource no longer exists in CKAN, forget it and search it as if it was not indexed
+            log.warn("Indexed resource "+indexed.getId()+" not found in CKAN, searching it");
+            forgetResource(filename, indexed.getId());
         }
-        else log.info("Request returns statusCode 200: OK");
 
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-            System.out.println("+"+line);
+        Result searchResult = findResources(filename);
+        //Now we need to check if the count of results is 1 (otherwise error)
+        //if the count is 0, call uploadResource to create the file
+        if(searchResult.getCount()==0)
+        {
+            log.info("No resource found under that name, creating it...");
+            return outcomeOf(uploadResource(filename, content, null));
+        //if the count is 1, get all the needed data to update the resource
+        }else if(searchResult.getCount()==1)
+        {
+            //The resources are the ones of the package, so the one found is in the expected package
+            Result_ existing = searchResult.getResults().get(0);
+            String id = existing.getId();
+            //The size of a file stored compressed is the compressed one, only its hash can be compared
+            if(isUnchanged(existing.getHash(), isStoredCompressed(filename, content) ? null : sizeOf(existing), content))
+            {
+                log.info("Resource found with the same content, skipping upload");
+                indexResource(filename, id, existing.getHash(), content.length());
+                return Outcome.UNCHANGED;
+            }
+            log.info("Resource found, updating it");
+            return outcomeOf(uploadResource(filename, content, id));
+        }else{
+            log.error("Found more than one resource with that name. Cancel update...");
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Creates or updates the resource with a large file, sent in parts through the multipart upload of ckanext-cloudstorage.
+     * The resource is created first without content when it does not exist yet, since the parts are uploaded to an existing resource.
+     * The hash is stored once the upload is finished, so an interrupted upload is never taken as unchanged.
+     */
+    public Outcome createOrUpdateLargeResource(File file, CKAN_Multipart_Uploader uploader) throws IOException {
+        String filename = file.getName();
+        CKAN_Resource_Content content = CKAN_Resource_Content.ofFile(file);
+        //The parts are sent in parallel, so the hash cannot be computed while sending them
+        String hash = CKAN_Digesting_Body.hash(content);
+
+        String resourceId = createdResources.remove(filename);
+        CKAN_Resource_Index.Entry indexed = resourceId!=null || resourceIndex==null ? null : resourceIndex.get(organization_id, package_id, filename);
+        if(resourceId!=null)
+        {
+            log.info("Resource created with its package, uploading its file");
+        }else if(indexed!=null)
+        {
+            if(hash.equalsIgnoreCase(indexed.getHash()) && indexed.getSize()==content.length())
+            {
+                log.info("Resource found in the index with the same content, skipping upload");
+                return Outcome.UNCHANGED;
+            }
+            resourceId = indexed.getId();
+        }else{
+            Result searchResult = findResources(filename);
+            if(searchResult.getCount()==0)
+            {
+                log.info("No resource found under that name, creating it...");
+                resourceId = createEmptyResource(filename);
+            }else if(searchResult.getCount()==1)
+            {
+                Result_ existing = searchResult.getResults().get(0);
+                Long existingSize = sizeOf(existing);
+                if(hash.equalsIgnoreCase(existing.getHash()) && (existingSize==null || existingSize==content.length()))
+                {
+                    log.info("Resource found with the same content, skipping upload");
+                    indexResource(filename, existing.getId(), hash, content.length());
+                    return Outcome.UNCHANGED;
+                }
+                resourceId = existing.getId();
+            }else{
+                log.error("Found more than one resource with that name. Cancel update...");
+                return Outcome.FAILED;
+            }
         }
 
-        return sb.toString();
+        int statusCode = uploader.upload(resourceId, filename, file);
+        if(statusCode!=200)
+        {
+            invalidateOnNotFoundOrConflict(packageCache, package_id, statusCode);
+            if(statusCode==404)
+            {
+                forgetResource(filename, resourceId);
+            }
+            return outcomeOf(statusCode);
+        }
+        if(storeHash(resourceId, hash))
+        {
+            indexResource(filename, resourceId, hash, content.length());
+        }else{
+            rememberResource(filename, resourceId, null, null);
+        }
+        return Outcome.UPLOADED;
     }
 
-    public String updateFile(String path, String resourceId) throws IOException {
-        String line;
-        StringBuilder sb = new StringBuilder();
-        File file = new File(path);
+    /**
+     * Creates the resource without any content
+     * @return the id of the created resource
+     */
+    private String createEmptyResource(String filename) throws IOException {
         SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyyMMdd_HHmmss");
         String date=dateFormatGmt.format(new Date());
 
-        HttpPost postRequest;
-        ContentBody cbFile = new FileBody(file, ContentType.TEXT_HTML);
         HttpEntity reqEntity = MultipartEntityBuilder.create()
-                .addPart("id",new StringBody(resourceId,ContentType.TEXT_PLAIN))
-                .addPart("file", cbFile)
-                .addPart("key", new StringBody(file.getName().split("\\.")[0],ContentType.TEXT_PLAIN))
-                .addPart("name", new StringBody(file.getName(),ContentType.TEXT_PLAIN))
+                .addPart("key", new StringBody(filename.split("\\.")[0],ContentType.TEXT_PLAIN))
+                .addPart("name", new StringBody(filename,ContentType.TEXT_PLAIN))
                 .addPart("url",new StringBody("testURL",ContentType.TEXT_PLAIN))
+                .addPart("url_type",new StringBody("upload",ContentType.TEXT_PLAIN))
                 .addPart("package_id",new StringBody(package_id,ContentType.TEXT_PLAIN))
-                .addPart("upload",cbFile)
-                .addPart("description",new StringBody(file.getName()+" created on: "+date,ContentType.TEXT_PLAIN))
+                .addPart("description",new StringBody(filename+" created on: "+date,ContentType.TEXT_PLAIN))
                 .build();
 
-        postRequest = new HttpPost(HOST+"/api/action/resource_update");
+        HttpPost postRequest = new HttpPost(HOST+"/api/action/resource_create");
         postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
 
-        HttpResponse response = httpclient.execute(postRequest);
-        int statusCode = response.getStatusLine().getStatusCode();
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-
-        sb.append(statusCode);
-        sb.append("\n");
-        if(statusCode!=200){
-            log.error("statusCode =!=" +statusCode);
+        try (CloseableHttpResponse response = executeCreate(postRequest, true)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if(statusCode!=200){
+                invalidateOnNotFoundOrConflict(packageCache, package_id, statusCode);
+                invalidateOnUncertainCreate(statusCode);
+                String body = CKAN_Response_Reader.readForLog(response);
+                log.error("statusCode =!=" +statusCode);
+                log.error(body);
+                throw new CKAN_Exception("resource_create of "+filename, statusCode, body);
+            }
+            Result_ created = CKAN_Response_Reader.readResource(response);
+            if(created==null || created.getId()==null)
+            {
+                throw new IOException("CKAN did not return the id of the created resource "+filename);
+            }
+            rememberResource(filename, created.getId(), null, null);
+            return created.getId();
         }
-        else log.info("Request returns statusCode 200: OK");
+    }
 
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
-            sb.append("\n");
-            System.out.println("+"+line);
-        }
+    /**
+     * Stores the hash of the content of a resource whose upload has finished
+     * @return true if it was stored
+     */
+    private boolean storeHash(String resourceId, String hash) throws IOException {
+        HttpEntity reqEntity = MultipartEntityBuilder.create()
+                .addPart("id", new StringBody(resourceId,ContentType.TEXT_PLAIN))
+                .addPart("hash", new StringBody(hash,ContentType.TEXT_PLAIN))
+                .build();
 
-        return sb.toString();
+        HttpPost postRequest = new HttpPost(HOST+"/api/action/resource_patch");
+        postRequest.setEntity(reqEntity);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = CKAN_Response_Reader.readForLog(response);
+            if(statusCode!=200){
+                //The content is uploaded anyway, it will only be sent again next time even if unchanged
+                log.warn("Could not store the hash of resource "+resourceId+", statusCode =!=" +statusCode);
+                log.warn(body);
+                return false;
+            }
+            return true;
+        }
     }
 
-    public Boolean createOrUpdateResource(String path) throws IOException {
+    /**
+     * Resolves whether the resource has to be created or updated and builds the request to do it, without sending it.
+     * Used by the asynchronous mode: the file is streamed from disk when the request is sent.
+     * @param path Local filesystem path of the file to upload
+     * @return the request to send, or the outcome if there is nothing to send
+     */
+    public PreparedUpload prepareUploadRequest(String path) throws IOException {
         File file = new File(path);
         String filename = file.getName();
-        HttpPost postRequest;
-        StringBuilder sb = new StringBuilder();
-        String line;
+        CKAN_Resource_Content content = CKAN_Resource_Content.ofFile(file);
+        String resourceId = createdResources.remove(filename);
+        CKAN_Resource_Index.Entry indexed = resourceId!=null || resourceIndex==null ? null : resourceIndex.get(organization_id, package_id, filename);
+        if(resourceId!=null)
+        {
+            log.info("Resource created with its package, uploading its file");
+        }else if(indexed!=null)
+        {
+            if(isUnchanged(indexed.getHash(), indexed.getSize(), content))
+            {
+                log.info("Resource found in the index with the same content, skipping upload");
+                return new PreparedUpload(null, Outcome.UNCHANGED);
+            }
+            //If it no longer exists in CKAN the update fails with a 404, which removes it from the index for the next try
+            resourceId = indexed.getId();
+        }else{
+            Result searchResult = findResources(filename);
+            if(searchResult.getCount()==1)
+            {
+                Result_ existing = searchResult.getResults().get(0);
+                if(isUnchanged(existing.getHash(), sizeOf(existing), content))
+                {
+                    log.info("Resource found with the same content, skipping upload");
+                    indexResource(filename, existing.getId(), existing.getHash(), content.length());
+                    return new PreparedUpload(null, Outcome.UNCHANGED);
+                }
+                resourceId = existing.getId();
+            }else if(searchResult.getCount()>1)
+            {
+                log.error("Found more than one resource with that name. Cancel update...");
+                return new PreparedUpload(null, Outcome.FAILED);
+            }
+        }
 
-        Gson gson = new Gson();
+        SimpleDateFormat dateFormatGmt = new SimpleDateFormat("yyyyMMdd_HHmmss");
+        String date=dateFormatGmt.format(new Date());
 
-        //query the API to get the resources with that file name
-        postRequest = new HttpPost(HOST+"/api/action/resource_search?query=name:"+filename);
+        CKAN_Streaming_Multipart multipart = new CKAN_Streaming_Multipart();
+        if(resourceId!=null)
+        {
+            multipart.addField("id", resourceId);
+        }
+        multipart.addField("key", filename.split("\\.")[0])
+                .addField("name", filename)
+                .addField("url", "testURL")
+                .addField("package_id", package_id)
+                .addField("description", filename+" created on: "+date);
+        //The file is only opened once the request is sent: a request that is not sent after all (open circuit, failed submit) leaves nothing open
+        HttpEntity reqEntity = multipart.build("upload", filename, CKAN_Content_Types.forFilename(filename), content.openOnFirstRead(), content.length(), "hash");
+
+        HttpPost postRequest = new HttpPost(HOST+(resourceId==null ? "/api/action/resource_create" : "/api/action/resource_update"));
+        postRequest.setEntity(reqEntity);
         postRequest.setHeader("X-CKAN-API-Key", api_key);
+        //Unlike the blocking client, the non-blocking one does not ask for compressed responses by itself
+        postRequest.setHeader("Accept-Encoding", "gzip");
+        return new PreparedUpload(postRequest, null, filename, resourceId, multipart, content.length());
+    }
 
-        HttpResponse response = httpclient.execute(postRequest);
-        BufferedReader br = new BufferedReader(
-                new InputStreamReader((response.getEntity().getContent())));
-        while ((line = br.readLine()) != null) {
-            sb.append(line);
+    /**
+     * Handles the response of an upload request, and records the uploaded resource in the index
+     * @param resourceId Id of the updated resource, null if it was being created
+     * @param body Response body, or its beginning, to be logged
+     * @param createdId Id read from the response when the resource was created, null otherwise
+     * @return true if the resource was created or updated
+     */
+    private boolean handleUploadResponse(String filename, String resourceId, String hash, long size, int statusCode, String body, String createdId)
+    {
+        if(statusCode!=200){
+            //The package may have been deleted in CKAN since it was cached
+            invalidateOnNotFoundOrConflict(packageCache, package_id, statusCode);
+            if(resourceId==null)
+            {
+                invalidateOnUncertainCreate(statusCode);
+            }
+            if(statusCode==404 && resourceId!=null)
+            {
+                forgetResource(filename, resourceId);
+            }
+            log.error("statusCode =!=" +statusCode);
+            log.error(body);
+            return false;
         }
-        //Parse the response into a POJO to be able to get results from it.
-        ResourceResponse resResponse = gson.fromJson(sb.toString(),ResourceResponse.class);
-        System.out.println(resResponse);
-        //Now we need to check if the count of results is 1 (otherwise error)
-        //if the count is 0, call uploadFile to create the file
-        if(resResponse.getResult().getCount()==0)
+        log.info("Request returns statusCode 200: OK");
+        log.info(body);
+        if(resourceId==null)
         {
-            log.info("No resource found under that name, creating it...");
-            uploadFile(path);
-            return true;
-        //if the count is 1, get all the needed data to update the resource
-        }else if(resResponse.getResult().getCount()==1)
-        {
-            String id = resResponse.getResult().getResults().get(0).getId();
-            String result_package_id = resResponse.getResult().getResults().get(0).getPackageId();
-            //ToDo: Check if the resource belongs to the same package
-            //result_package_id is the id, package_id is the name of the package: How to get the alfanumeric ID?
-            //if(result_package_id.equals(package_id)) {
-                log.info("Resource found, updating it");
-                updateFile(path, id);
+            if(createdId==null)
+            {
                 return true;
-            /**}else{
-                log.error("The found resource does not belong to the same package we are expecting");
-                log.error("Package id found:"+result_package_id+". Package expected:"+package_id);
-                return false;
-            }*/
-        }else{
-            log.error("Found more than one resource with that name. Cancel update...");
+            }
+            resourceId = createdId;
+        }
+        indexResource(filename, resourceId, hash, size);
+        return true;
+    }
+
+    //The index only saves lookups, failing to write it must not fail the upload
+    private void indexResource(String filename, String resourceId, String hash, long size)
+    {
+        rememberResource(filename, resourceId, hash, size);
+        if(resourceIndex!=null)
+        {
+            try {
+                resourceIndex.put(organization_id, package_id, filename, resourceId, hash, size);
+            } catch (IOException ioe) {
+                log.warn("Could not write resource "+resourceId+" to the index", ioe);
+            }
+        }
+    }
+
+    /**
+     * Records the resource in its cached package, so the next lookup of the file finds it with its current hash
+     */
+    private void rememberResource(String filename, String resourceId, String hash, Long size)
+    {
+        CKAN_Package_Cache.Entry cached = packageCache.get(package_id);
+        if(cached!=null)
+        {
+            cached.put(filename, resourceId, hash, size);
+        }
+    }
+
+    /**
+     * Forgets a resource that CKAN no longer knows, from the index and from its cached package
+     */
+    private void forgetResource(String filename, String resourceId)
+    {
+        CKAN_Package_Cache.Entry cached = packageCache.get(package_id);
+        if(cached!=null)
+        {
+            cached.remove(filename, resourceId);
+        }
+        forgetResource(filename);
+    }
+
+    private void forgetResource(String filename)
+    {
+        if(resourceIndex!=null)
+        {
+            try {
+                resourceIndex.remove(organization_id, package_id, filename);
+            } catch (IOException ioe) {
+                log.warn("Could not remove resource "+filename+" from the index", ioe);
+            }
+        }
+    }
+
+    /**
+     * Compares the content with the hash stored by a previous upload.
+     * The size is checked first, so the content only has to be read when it might be the same.
+     * The hash has to be known before the upload is sent to skip it, so it cannot be the one computed while sending: a content
+     * of the known size that did change is read twice, the second time usually from the page cache.
+     * @param knownSize null if unknown
+     */
+    private boolean isUnchanged(String knownHash, Long knownSize, CKAN_Resource_Content content) throws IOException {
+        if(knownHash==null || knownHash.isEmpty())
+        {
             return false;
         }
+        if(knownSize!=null && knownSize!=content.length())
+        {
+            return false;
+        }
+        return knownHash.equalsIgnoreCase(CKAN_Digesting_Body.hash(content));
+    }
+
+    private static Long sizeOf(Result_ resource) {
+        return resource.getSize() instanceof Number ? ((Number) resource.getSize()).longValue() : null;
+    }
+
+    /**
+     * Finds the resources with that name among the resources of the package, loading them with package_show
+     * when the package is not cached. Resources with the same name in other packages are not found.
+     * Only the count and the first two results are returned: callers only need to tell apart none, one or more than one.
+     */
+    private Result findResources(String filename) throws IOException {
+        CKAN_Package_Cache.Entry cached = loadPackage();
+        if(cached==null)
+        {
+            //The package was deleted after it was checked, e.g. listed in a catalog that was not refreshed yet:
+            //the next attempt checks it again and creates it
+            throw new CKAN_Exception("Package "+package_id+" no longer exists", true);
+        }
+        return cached.find(filename);
+    }
+
+    /**
+     * A 404 or 409 from CKAN means that what we believed about that id is no longer true,
+     * so it has to be checked again against CKAN the next time.
+     */
+    private void invalidateOnNotFoundOrConflict(CKAN_Id_Cache cache, String id, int statusCode)
+    {
+        if(statusCode==404 || statusCode==409)
+        {
+            cache.invalidate(id);
+            if(catalog!=null)
+            {
+                catalog.removeOrganization(id);
+            }
+        }
+    }
+
+    private void invalidateOnNotFoundOrConflict(CKAN_Package_Cache cache, String packageName, int statusCode)
+    {
+        if(statusCode==404 || statusCode==409)
+        {
+            cache.invalidate(packageName);
+            if(catalog!=null)
+            {
+                catalog.removePackage(packageName);
+            }
+        }
+    }
+
+    /**
+     * Sends a request, and when it creates a resource, forgets the cached package if it fails without a response:
+     * CKAN may have created the resource anyway
+     */
+    private CloseableHttpResponse executeCreate(HttpPost request, boolean creates) throws IOException
+    {
+        try {
+            return retryPolicy.execute(httpclient, request);
+        } catch (IOException ioe) {
+            if(creates && !CKAN_Retry_Policy.isNotReceived(ioe))
+            {
+                packageCache.invalidate(package_id);
+            }
+            throw ioe;
+        }
     }
 
-    public void close()
+    /**
+     * A create that failed with a transient error (e.g. a 504 of a proxy) may still have been done by CKAN, which the retry policy
+     * does not resend. The package is read again from CKAN before the next attempt, which then finds the resource instead of creating it twice.
+     */
+    private void invalidateOnUncertainCreate(int statusCode)
     {
-        httpclient.getConnectionManager().shutdown();
+        if(CKAN_Retry_Policy.isTransient(statusCode) && statusCode!=429)
+        {
+            packageCache.invalidate(package_id);
+        }
+    }
+
+    /**
+     * Transient errors (server errors, throttling) are worth trying again later, the other ones are not
+     */
+    static Outcome outcomeOf(int statusCode)
+    {
+        return outcomeOf(statusCode, null);
+    }
+
+    /**
+     * @param errorType "__type" of the CKAN error, which comes before the status when known
+     */
+    static Outcome outcomeOf(int statusCode, String errorType)
+    {
+        if(statusCode==200)
+        {
+            return Outcome.UPLOADED;
+        }
+        return CKAN_Retry_Policy.isTransient(statusCode, errorType) ? Outcome.RETRY : Outcome.FAILED;
+    }
+
+    public enum Outcome {
+        UPLOADED,
+        //The resource already has the same content, nothing was sent
+        UNCHANGED,
+        //CKAN failed with a transient error, the upload can be tried again later
+        RETRY,
+        FAILED
+    }
+
+    /**
+     * Either a request to send to CKAN, or the outcome when there is nothing to send
+     */
+    public final class PreparedUpload {
+        private final HttpPost request;
+        private final Outcome outcome;
+        private final String filename;
+        private final String resourceId;
+        private final CKAN_Streaming_Multipart multipart;
+        private final long size;
+
+        private PreparedUpload(HttpPost request, Outcome outcome) {
+            this(request, outcome, null, null, null, 0);
+        }
+
+        private PreparedUpload(HttpPost request, Outcome outcome, String filename, String resourceId, CKAN_Streaming_Multipart multipart, long size) {
+            this.request = request;
+            this.outcome = outcome;
+            this.filename = filename;
+            this.resourceId = resourceId;
+            this.multipart = multipart;
+            this.size = size;
+        }
+
+        /**
+         * Handles the response of the request once it has been sent
+         * @return true if the resource was created or updated
+         */
+        public boolean handleResponse(int statusCode, String body) {
+            String createdId = null;
+            if(statusCode==200 && resourceId==null)
+            {
+                try {
+                    Result_ created = CKAN_Response_Reader.readResource(body);
+                    createdId = created==null ? null : created.getId();
+                } catch (IOException ioe) {
+                    log.warn("Could not read the id of the created resource "+filename, ioe);
+                }
+            }
+            return handleUploadResponse(filename, resourceId, multipart.getHash(), size, statusCode, body, createdId);
+        }
+
+        /**
+         * Handles the failure of the request to get a response, e.g. a timeout
+         */
+        public void handleFailure(Exception e) {
+            if(resourceId==null && !(e instanceof IOException && CKAN_Retry_Policy.isNotReceived((IOException) e)))
+            {
+                packageCache.invalidate(package_id);
+            }
+        }
+
+        public HttpPost getRequest() {
+            return request;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
     }
 }
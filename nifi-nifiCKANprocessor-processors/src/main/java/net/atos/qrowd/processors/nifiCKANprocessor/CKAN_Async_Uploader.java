@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends uploads to CKAN through the non-blocking http client, so one processor thread can have many of them in flight.
+ * The number of requests in flight is bounded for the whole processor, and the outcome of each request is
+ * put in a queue chosen by the caller as soon as it arrives.
+ */
+public class CKAN_Async_Uploader {
+    private final Logger log = Logger.getLogger(CKAN_Async_Uploader.class);
+
+    private final CloseableHttpAsyncClient httpclient;
+    private final Semaphore inFlight;
+    private final CKAN_Metrics metrics;
+
+    /**
+     * The http client is not owned by the uploader: it is started and closed by the processor lifecycle.
+     * @param metrics Where every request is recorded, from the time it is submitted
+     */
+    CKAN_Async_Uploader(CloseableHttpAsyncClient httpclient, int maxInFlight, CKAN_Metrics metrics) {
+        this.httpclient = httpclient;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sends the request without waiting for its response.
+     * @param tag Object identifying the request, returned with its completion
+     * @return false if the max number of requests were still in flight after the timeout, the request is not sent then
+     */
+    public <T> boolean submit(final HttpPost request, final T tag, final BlockingQueue<Completion<T>> completions, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!inFlight.tryAcquire(timeout, unit)) {
+            return false;
+        }
+        final long start = System.nanoTime();
+        try {
+            httpclient.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    String body = null;
+                    try {
+                        body = response.getEntity() == null ? "" : EntityUtils.toString(decompressed(response.getEntity()));
+                    } catch (IOException ioe) {
+                        log.warn("Could not read the response body of an upload", ioe);
+                    }
+                    complete(new Completion<>(tag, statusCode, body, null));
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    complete(new Completion<>(tag, -1, null, ex));
+                }
+
+                @Override
+                public void cancelled() {
+                    complete(new Completion<>(tag, -1, null, new IOException("Upload request cancelled")));
+                }
+
+                private void complete(Completion<T> completion) {
+                    metrics.recordRequest(request.getURI(), System.nanoTime() - start, completion.getException() != null || completion.getStatusCode() >= 400);
+                    inFlight.release();
+                    completions.add(completion);
+                }
+            });
+        } catch (RuntimeException e) {
+            // The request never left, so it does not hold a slot
+            inFlight.release();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * The non-blocking client does not decompress the responses by itself
+     */
+    private static HttpEntity decompressed(HttpEntity entity) {
+        final Header encoding = entity.getContentEncoding();
+        return encoding != null && "gzip".equalsIgnoreCase(encoding.getValue()) ? new GzipDecompressingEntity(entity) : entity;
+    }
+
+    /**
+     * Outcome of an asynchronous request: either the status code and body of the response, or the exception that prevented it.
+     */
+    public static final class Completion<T> {
+        private final T tag;
+        private final int statusCode;
+        private final String body;
+        private final Exception exception;
+
+        private Completion(T tag, int statusCode, String body, Exception exception) {
+            this.tag = tag;
+            this.statusCode = statusCode;
+            this.body = body;
+            this.exception = exception;
+        }
+
+        public T getTag() {
+            return tag;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+    }
+}
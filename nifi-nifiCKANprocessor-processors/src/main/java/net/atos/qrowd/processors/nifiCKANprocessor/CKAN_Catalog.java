@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Names of all the organizations and packages of a CKAN instance, loaded in pages when the processor starts and refreshed
+ * in the background, so that an organization or package is known to exist without asking CKAN.
+ * Only the names found are trusted: a name missing from the catalog may have been created since, so it is still checked in CKAN.
+ *
+ * Organizations are few, and listed again whole with organization_list at each refresh. Packages are listed with package_search,
+ * since package_list leaves out the private ones, and after the first load only the packages modified since the previous refresh are read.
+ * The packages deleted in CKAN are not seen by these incremental refreshes: they are dropped when a processor finds them missing.
+ * The names are kept as 64-bit hashes in a CKAN_Name_Index, replaced at each refresh while the processors keep reading the previous one.
+ */
+public class CKAN_Catalog implements Closeable {
+    private final Logger log = Logger.getLogger(CKAN_Catalog.class);
+
+    // Names read per request
+    static final int PAGE_SIZE = 1000;
+    // The packages modified a little before the previous refresh are read again, in case the clocks of NiFi and CKAN differ
+    private static final long MODIFIED_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpClient httpclient;
+    private final CKAN_Retry_Policy retryPolicy;
+    private final ScheduledExecutorService executor;
+
+    private volatile CKAN_Name_Index organizations = CKAN_Name_Index.EMPTY;
+    private volatile CKAN_Name_Index packages = CKAN_Name_Index.EMPTY;
+    // What the processors found or created, or found missing, since the last refresh, with the time they did: name -> millis
+    private final Map<String, Long> addedOrganizations = new ConcurrentHashMap<>();
+    private final Map<String, Long> removedOrganizations = new ConcurrentHashMap<>();
+    private final Map<String, Long> addedPackages = new ConcurrentHashMap<>();
+    private final Map<String, Long> removedPackages = new ConcurrentHashMap<>();
+    // Start of the last successful refresh of the packages, -1 before the first one. Only used by the refresh thread
+    private long packagesRefreshedAt = -1;
+
+    /**
+     * The http client and the retry policy are not owned by the catalog, they are shut down by their owner
+     */
+    CKAN_Catalog(String HOST, String api_key, CloseableHttpClient httpclient, CKAN_Retry_Policy retryPolicy) {
+        this.HOST = HOST;
+        this.api_key = api_key;
+        this.httpclient = httpclient;
+        this.retryPolicy = retryPolicy;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CKAN catalog refresh " + HOST);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the catalog in the background at once, and refreshes it with that delay between the end of a refresh and the start of the next
+     */
+    void start(long refreshInterval, TimeUnit unit) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (IOException | RuntimeException e) {
+                // The previous names are kept, and the organizations and packages not in them are checked in CKAN meanwhile
+                log.warn("Failed to refresh the catalog of CKAN " + HOST + ", trying again in " + refreshInterval + " " + unit, e);
+            }
+        }, 0, refreshInterval, unit);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public boolean hasOrganization(String name) {
+        return !removedOrganizations.containsKey(name) && (addedOrganizations.containsKey(name) || organizations.contains(name));
+    }
+
+    public boolean hasPackage(String name) {
+        return !removedPackages.containsKey(name) && (addedPackages.containsKey(name) || packages.contains(name));
+    }
+
+    /**
+     * Records an organization found or created in CKAN, until the next refresh lists it
+     */
+    public void addOrganization(String name) {
+        removedOrganizations.remove(name);
+        addedOrganizations.put(name, System.currentTimeMillis());
+    }
+
+    /**
+     * Records an organization found missing in CKAN
+     */
+    public void removeOrganization(String name) {
+        addedOrganizations.remove(name);
+        removedOrganizations.put(name, System.currentTimeMillis());
+    }
+
+    public void addPackage(String name) {
+        removedPackages.remove(name);
+        addedPackages.put(name, System.currentTimeMillis());
+    }
+
+    public void removePackage(String name) {
+        addedPackages.remove(name);
+        removedPackages.put(name, System.currentTimeMillis());
+    }
+
+    /**
+     * Reads the organizations, and the packages modified since the previous refresh (all of them the first time)
+     */
+    void refresh() throws IOException {
+        final long startedAt = System.currentTimeMillis();
+
+        final CKAN_Name_Index.Builder organizationNames = new CKAN_Name_Index.Builder();
+        for (int offset = 0; ; offset += PAGE_SIZE) {
+            if (list(page("organization_list").setParameter("limit", String.valueOf(PAGE_SIZE)).setParameter("offset", String.valueOf(offset)),
+                    "organization_list", organizationNames) < PAGE_SIZE) {
+                break;
+            }
+        }
+        // The complete list replaces the previous one, and knows better than what was recorded before it was read
+        organizations = organizationNames.build();
+        forgetRecordedBefore(startedAt, addedOrganizations, removedOrganizations);
+
+        final CKAN_Name_Index.Builder packageNames = new CKAN_Name_Index.Builder();
+        final String modified = packagesRefreshedAt < 0 ? "*"
+                : Instant.ofEpochMilli(packagesRefreshedAt - MODIFIED_MARGIN_MILLIS).truncatedTo(ChronoUnit.SECONDS).toString();
+        for (int start = 0; ; start += PAGE_SIZE) {
+            // In modification order, so the packages modified while they are listed move to the end instead of shifting the pages
+            if (list(page("package_search").setParameter("q", "*:*").setParameter("fq", "metadata_modified:[" + modified + " TO *]")
+                    .setParameter("fl", "name").setParameter("include_private", "true").setParameter("sort", "metadata_modified asc")
+                    .setParameter("rows", String.valueOf(PAGE_SIZE)).setParameter("start", String.valueOf(start)), "package_search", packageNames) < PAGE_SIZE) {
+                break;
+            }
+        }
+        // The packages missing from an incremental list were not modified, only the ones found missing since are removed
+        packages = packagesRefreshedAt < 0 ? packageNames.build()
+                : packages.merge(packageNames, namesRecordedBefore(startedAt, removedPackages));
+        forgetRecordedBefore(startedAt, addedPackages, removedPackages);
+        packagesRefreshedAt = startedAt;
+        log.info("Catalog of CKAN " + HOST + " refreshed: " + organizations.size() + " organizations, " + packages.size() + " packages");
+    }
+
+    private URIBuilder page(String action) throws IOException {
+        try {
+            return new URIBuilder(HOST + "/api/action/" + action);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid CKAN url " + HOST, e);
+        }
+    }
+
+    /**
+     * @return the number of names in the page
+     */
+    private int list(URIBuilder uri, String action, CKAN_Name_Index.Builder names) throws IOException {
+        final HttpGet getRequest;
+        try {
+            getRequest = new HttpGet(uri.build());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid CKAN url " + HOST, e);
+        }
+        getRequest.setHeader("X-CKAN-API-Key", api_key);
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, getRequest)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                throw new CKAN_Exception(action, statusCode, CKAN_Response_Reader.readForLog(response));
+            }
+            return CKAN_Response_Reader.readNames(response, names);
+        }
+    }
+
+    private static List<String> namesRecordedBefore(long time, Map<String, Long> recorded) {
+        final List<String> before = new ArrayList<>();
+        recorded.forEach((name, at) -> {
+            if (at < time) {
+                before.add(name);
+            }
+        });
+        return before;
+    }
+
+    /**
+     * What was recorded before a list was read is in the list, or rightly not in it
+     */
+    @SafeVarargs
+    private static void forgetRecordedBefore(long time, Map<String, Long>... recorded) {
+        for (Map<String, Long> names : recorded) {
+            names.values().removeIf(at -> at < time);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for the CKAN host of the processor.
+ *
+ * After a number of consecutive transient failures (server errors, throttling, timeouts) the circuit opens and no request is sent
+ * to the host for a while. Then a single request is let through: if it succeeds the circuit closes again, otherwise it stays open
+ * for another period.
+ * It is shared by all the concurrent tasks of the processor, so every access is synchronized.
+ */
+public class CKAN_Circuit_Breaker {
+    private final Logger log = Logger.getLogger(CKAN_Circuit_Breaker.class);
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    CKAN_Circuit_Breaker(String host, int failureThreshold, long openDuration, TimeUnit unit) {
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * Whether a request can be sent now. Once the open period is over, only the first caller is allowed, to probe the host.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            default:
+                // In HALF_OPEN, openedAt is when the probe was let through. If its outcome is never recorded
+                // (e.g. it failed before reaching the host), another probe is let through after the same period.
+                if (System.nanoTime() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    openedAt = System.nanoTime();
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Whether requests are being refused, without taking the probe of a half open circuit
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED && System.nanoTime() - openedAt < openNanos;
+    }
+
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.info("CKAN host " + host + " answers again, closing the circuit");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn("CKAN host " + host + " is unhealthy after " + consecutiveFailures + " consecutive failures, opening the circuit for "
+                    + TimeUnit.NANOSECONDS.toMillis(openNanos) + " ms");
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+}
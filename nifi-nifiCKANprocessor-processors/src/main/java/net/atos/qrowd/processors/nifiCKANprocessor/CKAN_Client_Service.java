@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+/**
+ * Connection to a CKAN instance shared by the processors that reference it: its url and API key, one pooled http client,
+ * the caches of the organizations and packages known to exist, the circuit breaker of the host and the limit of the request rate.
+ * With many processors writing to the same CKAN, they then share their connections and what they learnt of CKAN
+ * instead of each one opening its own and looking up the same organizations and packages again.
+ */
+@Tags({"ckan","client","http","pool","cache"})
+@CapabilityDescription("Provides the processors of this bundle with a shared connection to a CKAN instance")
+public interface CKAN_Client_Service extends ControllerService {
+
+    /**
+     * @return Base url of the CKAN instance, e.g. http://ckan.example.org
+     */
+    String getUrl();
+
+    String getApiKey();
+
+    /**
+     * @return The pooled client of the service. It is closed when the service is disabled, never by the processors.
+     */
+    CloseableHttpClient getHttpClient();
+
+    CKAN_Id_Cache getOrganizationCache();
+
+    CKAN_Package_Cache getPackageCache();
+
+    /**
+     * @return The catalog of the organizations and packages of CKAN, null if the service does not load one
+     */
+    CKAN_Catalog getCatalog();
+
+    /**
+     * Creates a retry policy with the retry settings of the service, its circuit breaker and its rate limiter, so that the failures seen
+     * by every processor count for the same host and their requests together stay under the rate limit.
+     * The requests are recorded in the metrics of the processor.
+     */
+    CKAN_Retry_Policy createRetryPolicy(CKAN_Metrics metrics);
+}
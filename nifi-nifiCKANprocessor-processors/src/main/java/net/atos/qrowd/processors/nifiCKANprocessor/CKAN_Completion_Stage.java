@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Carries out the Completion Strategy of the uploaded files (delete them, or move them to another directory) in the background,
+ * so the processing threads do not wait for the file system, which can be a slow network mount.
+ *
+ * The actions are first appended to a journal, forced to disk once per batch of files: the actions not done yet when NiFi stops
+ * are read back and carried out when the processor starts again. A file that is no longer there counts as done, but replaying an
+ * action already done is not always harmless: a new file may have been written at the same path since, and would be deleted or moved.
+ * So the actions done are forced to disk too, once per run of the background thread.
+ *
+ * The actions are carried out by a single thread, grouped by the directory of the files. When one fails, e.g. the mount is gone for a while,
+ * the rest of its directory is left for the next attempt, which comes after an exponential backoff. An action is given up after MAX_ATTEMPTS.
+ */
+public class CKAN_Completion_Stage implements Closeable {
+    private final Logger log = Logger.getLogger(CKAN_Completion_Stage.class);
+
+    static final String JOURNAL_FILE = "completion.journal";
+    static final int MAX_ATTEMPTS = 10;
+    private static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Period at which the actions waiting for a retry are checked
+    private static final long RETRY_CHECK_MILLIS = 500;
+
+    private static final byte RECORD_ACTION = 'A';
+    private static final byte RECORD_DONE = 'D';
+
+    /**
+     * What to do when a file is moved to a directory that already has a file with its name
+     */
+    enum Conflict {
+        // Move it with a random UUID added to its name
+        RENAME,
+        REPLACE,
+        // Delete it instead of moving it
+        KEEP_EXISTING,
+        // Leave it where it is
+        FAIL
+    }
+
+    /**
+     * Deletes the file when the target directory is null, else moves it there
+     */
+    static final class Action {
+        private final Path source;
+        private final Path targetDirectory;
+        private final Conflict conflict;
+        private long sequence;
+        private int attempts;
+        private long notBefore;
+
+        static Action delete(Path source) {
+            return new Action(source, null, Conflict.FAIL);
+        }
+
+        static Action move(Path source, Path targetDirectory, Conflict conflict) {
+            return new Action(source, targetDirectory, conflict);
+        }
+
+        private Action(Path source, Path targetDirectory, Conflict conflict) {
+            this.source = source;
+            this.targetDirectory = targetDirectory;
+            this.conflict = conflict;
+        }
+
+        @Override
+        public String toString() {
+            return targetDirectory == null ? "delete of " + source : "move of " + source + " to " + targetDirectory;
+        }
+    }
+
+    private final Path journal;
+    private final FileOutputStream journalFile;
+    private final DataOutputStream journalOut;
+    // Actions recorded and not done yet, in the order they were recorded. Guarded by this
+    private final Map<Long, Action> pending = new LinkedHashMap<>();
+    private long nextSequence;
+    private final ScheduledExecutorService worker;
+    private final AtomicBoolean drainRequested = new AtomicBoolean();
+
+    private CKAN_Completion_Stage(Path journal, Collection<Action> replayed) throws IOException {
+        this.journal = journal;
+        for (Action action : replayed) {
+            action.sequence = nextSequence++;
+            pending.put(action.sequence, action);
+        }
+        // The journal is rewritten with only the actions left, so it does not grow over restarts
+        final Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile()); DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+            for (Action action : pending.values()) {
+                writeAction(data, action);
+            }
+            data.flush();
+            out.getChannel().force(false);
+        }
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.journalFile = new FileOutputStream(journal.toFile(), true);
+        this.journalOut = new DataOutputStream(new BufferedOutputStream(journalFile));
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "CKAN completion " + journal.getParent());
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.scheduleWithFixedDelay(this::drain, 0, RETRY_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the journal of the directory, and starts carrying out the actions left in it
+     */
+    static CKAN_Completion_Stage open(Path directory) throws IOException {
+        final Path journal = directory.resolve(JOURNAL_FILE);
+        final Map<Long, Action> replayed = new LinkedHashMap<>();
+        if (Files.exists(journal)) {
+            try (InputStream in = Files.newInputStream(journal); DataInputStream data = new DataInputStream(new BufferedInputStream(in))) {
+                while (true) {
+                    final byte type;
+                    try {
+                        type = data.readByte();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    try {
+                        final long sequence = data.readLong();
+                        if (type == RECORD_ACTION) {
+                            final Path source = Paths.get(data.readUTF());
+                            final String targetDirectory = data.readUTF();
+                            final Conflict conflict = Conflict.values()[data.readByte()];
+                            replayed.put(sequence, targetDirectory.isEmpty() ? Action.delete(source) : Action.move(source, Paths.get(targetDirectory), conflict));
+                        } else {
+                            replayed.remove(sequence);
+                        }
+                    } catch (EOFException e) {
+                        // The last record was cut by a crash before it was forced to disk, so its batch was not acknowledged
+                        break;
+                    }
+                }
+            }
+        }
+        final CKAN_Completion_Stage stage = new CKAN_Completion_Stage(journal, replayed.values());
+        if (!replayed.isEmpty()) {
+            stage.log.info("Resuming " + replayed.size() + " completion actions left in " + journal);
+        }
+        return stage;
+    }
+
+    /**
+     * Records the actions of a batch, forced to disk, before returning. They are carried out in the background.
+     */
+    public void record(List<Action> actions) throws IOException {
+        if (actions.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            for (Action action : actions) {
+                action.sequence = nextSequence++;
+                writeAction(journalOut, action);
+            }
+            journalOut.flush();
+            journalFile.getChannel().force(false);
+            for (Action action : actions) {
+                pending.put(action.sequence, action);
+            }
+        }
+        if (drainRequested.compareAndSet(false, true)) {
+            worker.execute(this::drain);
+        }
+    }
+
+    /**
+     * @return the number of actions recorded and not done yet
+     */
+    public synchronized int getBacklog() {
+        return pending.size();
+    }
+
+    /**
+     * Stops carrying out the actions. The ones left stay in the journal for the next time it is opened.
+     */
+    @Override
+    public void close() throws IOException {
+        worker.shutdownNow();
+        try {
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            journalOut.close();
+        }
+    }
+
+    private void drain() {
+        drainRequested.set(false);
+        final long now = System.currentTimeMillis();
+        // The actions due, grouped by the directory of their file
+        final Map<Path, List<Action>> byDirectory = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Action action : pending.values()) {
+                if (action.notBefore <= now) {
+                    byDirectory.computeIfAbsent(action.source.toAbsolutePath().getParent(), k -> new ArrayList<>()).add(action);
+                }
+            }
+        }
+        if (byDirectory.isEmpty()) {
+            return;
+        }
+        final List<Action> done = new ArrayList<>();
+        // Each target directory is created at most once per run
+        final Set<Path> targetDirectories = new HashSet<>();
+        for (Map.Entry<Path, List<Action>> directory : byDirectory.entrySet()) {
+            final List<Action> actions = directory.getValue();
+            for (int i = 0; i < actions.size() && !Thread.currentThread().isInterrupted(); i++) {
+                final Action action = actions.get(i);
+                try {
+                    perform(action, targetDirectories);
+                    done.add(action);
+                } catch (IOException | RuntimeException e) {
+                    action.attempts++;
+                    if (action.attempts >= MAX_ATTEMPTS) {
+                        log.error("Giving up the " + action + " after " + action.attempts + " attempts: " + e, e);
+                        done.add(action);
+                        continue;
+                    }
+                    final long retryAt = System.currentTimeMillis() + backoffMillis(action.attempts);
+                    log.warn("Failed the " + action + ", attempt " + action.attempts + ", retrying the " + (actions.size() - i)
+                            + " actions left in " + directory.getKey() + " later: " + e);
+                    // The rest of the directory would most likely fail the same way
+                    for (int j = i; j < actions.size(); j++) {
+                        actions.get(j).notBefore = retryAt;
+                    }
+                    break;
+                }
+            }
+        }
+        markDone(done);
+    }
+
+    private void markDone(List<Action> done) {
+        if (done.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                for (Action action : done) {
+                    pending.remove(action.sequence);
+                    journalOut.writeByte(RECORD_DONE);
+                    journalOut.writeLong(action.sequence);
+                }
+                journalOut.flush();
+                journalFile.getChannel().force(false);
+                if (pending.isEmpty()) {
+                    // Nothing left to replay: the journal starts over empty
+                    journalFile.getChannel().truncate(0);
+                }
+            } catch (IOException e) {
+                // The actions done are then replayed at the next start
+                log.warn("Failed to record the completion actions done in " + journal + ", they will be carried out again at the next start: " + e);
+            }
+        }
+    }
+
+    private static long backoffMillis(int attempts) {
+        final long exponential = INITIAL_BACKOFF_MILLIS << Math.min(attempts - 1, 30);
+        return exponential <= 0 ? MAX_BACKOFF_MILLIS : Math.min(exponential, MAX_BACKOFF_MILLIS);
+    }
+
+    private static void writeAction(DataOutputStream out, Action action) throws IOException {
+        out.writeByte(RECORD_ACTION);
+        out.writeLong(action.sequence);
+        out.writeUTF(action.source.toString());
+        out.writeUTF(action.targetDirectory == null ? "" : action.targetDirectory.toString());
+        out.writeByte(action.conflict.ordinal());
+    }
+
+    /**
+     * Carries out an action now. A file that is no longer there was already deleted or moved.
+     * @param targetDirectories target directories already created, to skip creating them again
+     */
+    static void perform(Action action, Set<Path> targetDirectories) throws IOException {
+        final Path source = action.source;
+        if (action.targetDirectory == null) {
+            Files.deleteIfExists(source);
+            return;
+        }
+        if (!Files.exists(source)) {
+            return;
+        }
+        if (targetDirectories.add(action.targetDirectory)) {
+            Files.createDirectories(action.targetDirectory);
+        }
+        final Path target = action.targetDirectory.resolve(source.getFileName());
+        try {
+            if (!Files.exists(target)) {
+                Files.move(source, target);
+            } else if (action.conflict == Conflict.KEEP_EXISTING) {
+                // don't move, just delete the original
+                Files.delete(source);
+            } else if (action.conflict == Conflict.RENAME) {
+                // rename to add a random UUID but keep the file extension if it has one.
+                final String simpleFilename = target.getFileName().toString();
+                final String newName;
+                if (simpleFilename.contains(".")) {
+                    newName = StringUtils.substringBeforeLast(simpleFilename, ".") + "-" + UUID.randomUUID().toString() + "." + StringUtils.substringAfterLast(simpleFilename, ".");
+                } else {
+                    newName = simpleFilename + "-" + UUID.randomUUID().toString();
+                }
+                Files.move(source, action.targetDirectory.resolve(newName));
+            } else if (action.conflict == Conflict.REPLACE) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (NoSuchFileException e) {
+            if (Files.exists(source)) {
+                // e.g. the target directory was deleted since it was created: it is created again by the next attempt
+                targetDirectories.remove(action.targetDirectory);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.context.PropertyContext;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection of a processor to CKAN: its url, API key, http client and retry policy. They are the ones of the CKAN Client Service
+ * when the processor references one, otherwise the processor builds its own from its connection properties, which are the same
+ * for every processor of the bundle and are defined here.
+ */
+public class CKAN_Connection implements Closeable {
+
+    static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Connection Timeout")
+            .description("Maximum time to wait for a connection to CKAN to be established, or for a free connection from the pool")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+    static final PropertyDescriptor SOCKET_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Socket Timeout")
+            .description("Maximum time of inactivity between two data packets while sending a request to or reading a response from CKAN")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("60 sec")
+            .required(true)
+            .build();
+    static final PropertyDescriptor RETRY_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Initial Retry Backoff")
+            .description("Upper bound of the random wait before the first retry. It doubles for every following retry, up to the Max Retry Backoff.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 sec")
+            .required(true)
+            .build();
+    static final PropertyDescriptor MAX_RETRY_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Max Retry Backoff")
+            .description("Maximum wait before a retry, also when CKAN asks for a longer one with a Retry-After header")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+    static final PropertyDescriptor CIRCUIT_BREAKER_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Failure Threshold")
+            .description("Number of consecutive transient failures after which CKAN is considered unhealthy: the processor then stops sending requests "
+                    + "and yields until the Circuit Breaker Open Duration is over")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("5")
+            .required(true)
+            .build();
+    static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_DURATION = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Open Duration")
+            .description("How long no request is sent to an unhealthy CKAN before trying a single one to check whether it answers again")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+    static final PropertyDescriptor CACHE_TTL = new PropertyDescriptor.Builder()
+            .name("Cache Time To Live")
+            .description("How long an organization or package confirmed to exist in CKAN is remembered before checking it again. "
+                    + "The resources of a package are remembered with it, so the resources added or deleted by others are only seen after this time.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 min")
+            .required(true)
+            .build();
+    static final PropertyDescriptor CACHE_MAX_ENTRIES = new PropertyDescriptor.Builder()
+            .name("Cache Max Entries")
+            .description("Maximum number of organizations, and of packages with their resources, remembered as existing in CKAN. When full, the least recently used ones are forgotten.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .required(true)
+            .build();
+
+    /**
+     * The Max Retries property, whose description ends with what the processor does once the retries are exhausted
+     */
+    static PropertyDescriptor maxRetries(final String exhausted) {
+        return new PropertyDescriptor.Builder()
+                .name("Max Retries")
+                .description("Number of times a request that fails with a transient error (server error, throttling, timeout) is tried again before giving up. "
+                        + exhausted)
+                .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+                .defaultValue("3")
+                .required(true)
+                .build();
+    }
+
+    // Null when the processor has its own connection to CKAN
+    private final CKAN_Client_Service clientService;
+    private final String url;
+    private final String apiKey;
+    private final CloseableHttpClient httpClient;
+    private final CKAN_Retry_Policy retryPolicy;
+
+    private CKAN_Connection(CKAN_Client_Service clientService, String url, String apiKey, CloseableHttpClient httpClient, CKAN_Retry_Policy retryPolicy) {
+        this.clientService = clientService;
+        this.url = url;
+        this.apiKey = apiKey;
+        this.httpClient = httpClient;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Takes the connection of the CKAN Client Service set in clientServiceProperty, or else builds one from the url, the API key
+     * and the connection properties of the processor, with a pooled client that keeps its idle connections for 30 seconds.
+     * @param maxConnections Size of the pool of the client built by the processor
+     * @param metrics Metrics of the processor, where the requests of its retry policy are recorded
+     */
+    static CKAN_Connection open(final ProcessContext context, final PropertyDescriptor clientServiceProperty, final PropertyDescriptor urlProperty,
+                                final PropertyDescriptor apiKeyProperty, final PropertyDescriptor maxRetriesProperty, final int maxConnections,
+                                final CKAN_Metrics metrics) {
+        return open(context, clientServiceProperty, urlProperty, apiKeyProperty, maxRetriesProperty, maxConnections, TimeUnit.SECONDS.toMillis(30), -1, metrics);
+    }
+
+    /**
+     * @param keepAliveMillis How long the client built by the processor keeps an idle connection
+     * @param ttlMillis Maximum lifetime of a connection of the client built by the processor, -1 for none
+     */
+    static CKAN_Connection open(final ProcessContext context, final PropertyDescriptor clientServiceProperty, final PropertyDescriptor urlProperty,
+                                final PropertyDescriptor apiKeyProperty, final PropertyDescriptor maxRetriesProperty, final int maxConnections,
+                                final long keepAliveMillis, final long ttlMillis, final CKAN_Metrics metrics) {
+        final CKAN_Client_Service clientService = context.getProperty(clientServiceProperty).asControllerService(CKAN_Client_Service.class);
+        if (clientService != null) {
+            return new CKAN_Connection(clientService, clientService.getUrl(), clientService.getApiKey(), clientService.getHttpClient(),
+                    clientService.createRetryPolicy(metrics));
+        }
+        final String url = context.getProperty(urlProperty).getValue();
+        final CloseableHttpClient httpClient = CKAN_Standard_Client_Service.createHttpClient(maxConnections, keepAliveMillis, ttlMillis,
+                context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(SOCKET_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+
+        final CKAN_Retry_Policy retryPolicy = createRetryPolicy(context, maxRetriesProperty, createCircuitBreaker(context, url), metrics);
+        return new CKAN_Connection(null, url, context.getProperty(apiKeyProperty).getValue(), httpClient, retryPolicy);
+    }
+
+    /**
+     * Circuit breaker of the CKAN host of the url, from the circuit breaker properties of a processor or of the CKAN Client Service.
+     * They only talk to one CKAN instance, so its circuit breaker is the one of that host.
+     */
+    static CKAN_Circuit_Breaker createCircuitBreaker(final PropertyContext context, final String url) {
+        return new CKAN_Circuit_Breaker(URI.create(url).getHost(),
+                context.getProperty(CIRCUIT_BREAKER_THRESHOLD).asInteger(),
+                context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retry policy from the retry properties of a processor or of the CKAN Client Service
+     * @param maxRetriesProperty Their Max Retries property, built by maxRetries
+     */
+    static CKAN_Retry_Policy createRetryPolicy(final PropertyContext context, final PropertyDescriptor maxRetriesProperty,
+                                               final CKAN_Circuit_Breaker circuitBreaker, final CKAN_Metrics metrics) {
+        return new CKAN_Retry_Policy(context.getProperty(maxRetriesProperty).asInteger(),
+                context.getProperty(RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(MAX_RETRY_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS, circuitBreaker, metrics);
+    }
+
+    /**
+     * Cache of the organizations known to exist: the one of the CKAN Client Service, or else a new one sized by the cache properties
+     */
+    CKAN_Id_Cache createOrganizationCache(final ProcessContext context) {
+        if (clientService != null) {
+            return clientService.getOrganizationCache();
+        }
+        return new CKAN_Id_Cache(context.getProperty(CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS,
+                context.getProperty(CACHE_MAX_ENTRIES).asInteger());
+    }
+
+    /**
+     * Cache of the packages known to exist: the one of the CKAN Client Service, or else a new one sized by the cache properties
+     */
+    CKAN_Package_Cache createPackageCache(final ProcessContext context) {
+        if (clientService != null) {
+            return clientService.getPackageCache();
+        }
+        return new CKAN_Package_Cache(context.getProperty(CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS,
+                context.getProperty(CACHE_MAX_ENTRIES).asInteger());
+    }
+
+    /**
+     * @return null when the processor has its own connection to CKAN
+     */
+    public CKAN_Client_Service getClientService() {
+        return clientService;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public CKAN_Retry_Policy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Closes the client built by the processor. The client of a CKAN Client Service is shared with other processors,
+     * the service closes it when it is disabled.
+     */
+    @Override
+    public void close() throws IOException {
+        if (clientService == null) {
+            httpClient.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.entity.ContentType;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content type of the uploaded files, from the extension of their name, so that CKAN stores and serves them with the right one
+ */
+final class CKAN_Content_Types {
+
+    static final ContentType GZIP = ContentType.create("application/gzip");
+
+    private static final Map<String, ContentType> BY_EXTENSION = new HashMap<>();
+
+    static {
+        BY_EXTENSION.put("csv", ContentType.create("text/csv"));
+        BY_EXTENSION.put("tsv", ContentType.create("text/tab-separated-values"));
+        BY_EXTENSION.put("txt", ContentType.create("text/plain"));
+        BY_EXTENSION.put("html", ContentType.create("text/html"));
+        BY_EXTENSION.put("htm", ContentType.create("text/html"));
+        BY_EXTENSION.put("json", ContentType.create("application/json"));
+        BY_EXTENSION.put("jsonld", ContentType.create("application/ld+json"));
+        BY_EXTENSION.put("geojson", ContentType.create("application/geo+json"));
+        BY_EXTENSION.put("xml", ContentType.create("application/xml"));
+        BY_EXTENSION.put("rdf", ContentType.create("application/rdf+xml"));
+        BY_EXTENSION.put("kml", ContentType.create("application/vnd.google-earth.kml+xml"));
+        BY_EXTENSION.put("pdf", ContentType.create("application/pdf"));
+        BY_EXTENSION.put("xls", ContentType.create("application/vnd.ms-excel"));
+        BY_EXTENSION.put("xlsx", ContentType.create("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"));
+        BY_EXTENSION.put("zip", ContentType.create("application/zip"));
+        BY_EXTENSION.put("gz", GZIP);
+        BY_EXTENSION.put("kmz", ContentType.create("application/vnd.google-earth.kmz"));
+        BY_EXTENSION.put("png", ContentType.create("image/png"));
+        BY_EXTENSION.put("jpg", ContentType.create("image/jpeg"));
+        BY_EXTENSION.put("jpeg", ContentType.create("image/jpeg"));
+    }
+
+    private CKAN_Content_Types() {
+    }
+
+    /**
+     * @return application/octet-stream when the extension is not known
+     */
+    static ContentType forFilename(String filename) {
+        int dot = filename.lastIndexOf('.');
+        ContentType contentType = dot < 0 ? null : BY_EXTENSION.get(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return contentType == null ? ContentType.APPLICATION_OCTET_STREAM : contentType;
+    }
+}
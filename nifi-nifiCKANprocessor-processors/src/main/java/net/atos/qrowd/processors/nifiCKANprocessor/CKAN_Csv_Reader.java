@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the records of a UTF-8 CSV file (RFC 4180: quoted fields may hold commas, doubled quotes and line breaks) from a byte offset,
+ * keeping the offset right after the last complete record.
+ *
+ * A record is only complete once its line break is read: a last line without one may still be being written, so it is not returned
+ * and its bytes are read again, complete, the next time.
+ */
+final class CKAN_Csv_Reader {
+
+    private final InputStream in;
+    private final char delimiter;
+    private final ByteArrayOutputStream field = new ByteArrayOutputStream();
+    private long position;
+    private long offset;
+
+    /**
+     * @param in Stream positioned at the offset
+     * @param offset Offset of the stream in the file, at the start of a record
+     */
+    CKAN_Csv_Reader(InputStream in, long offset, char delimiter) {
+        this.in = in;
+        this.delimiter = delimiter;
+        this.position = offset;
+        this.offset = offset;
+    }
+
+    /**
+     * Offset in the file right after the last record returned
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the fields of the next complete record, skipping empty lines, or null if there is none
+     */
+    List<String> next() throws IOException {
+        List<String> fields = new ArrayList<>();
+        field.reset();
+        boolean quoted = false;
+        boolean quoteInQuoted = false;
+        boolean fieldStarted = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            position++;
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                    quoteInQuoted = true;
+                } else {
+                    field.write(c);
+                }
+                continue;
+            }
+            if (quoteInQuoted) {
+                quoteInQuoted = false;
+                if (c == '"') {
+                    // "" inside a quoted field
+                    field.write(c);
+                    quoted = true;
+                    continue;
+                }
+            }
+            if (c == delimiter) {
+                fields.add(endField());
+                fieldStarted = false;
+            } else if (c == '\n') {
+                fields.add(endField());
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    // Empty line
+                    offset = position;
+                    fields.clear();
+                    fieldStarted = false;
+                    continue;
+                }
+                offset = position;
+                return fields;
+            } else if (c == '"' && !fieldStarted) {
+                quoted = true;
+                fieldStarted = true;
+            } else if (c != '\r') {
+                field.write(c);
+                fieldStarted = true;
+            }
+        }
+        // End of the file in the middle of a record, or right after the last one
+        return null;
+    }
+
+    private String endField() {
+        String value = new String(field.toByteArray(), StandardCharsets.UTF_8);
+        field.reset();
+        return value;
+    }
+}
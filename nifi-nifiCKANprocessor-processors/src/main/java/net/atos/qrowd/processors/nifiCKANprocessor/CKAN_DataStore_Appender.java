@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends the rows added to a growing CSV file to the DataStore table of its resource, with datastore_upsert (method insert),
+ * reading only the bytes past the offset reached by the previous append. The cost of an append is then proportional to the new rows,
+ * not to the size of the file.
+ *
+ * The first line of the file holds the column names. The table (and the resource, if needed) is created with them by datastore_create
+ * on the first append, with every column as text. If the file becomes shorter than the offset it was truncated or replaced,
+ * so the rows of the table are deleted and the whole file is appended again.
+ *
+ * Each batch is inserted once, without retries: the rows have no primary key, so a batch sent again after CKAN inserted it would
+ * duplicate them. A failed batch is only sent again by the next append, from the offset saved after the last confirmed batch.
+ */
+public class CKAN_DataStore_Appender {
+    private final Logger log = Logger.getLogger(CKAN_DataStore_Appender.class);
+
+    private final CKAN_DataStore_Client dataStore;
+    private final int batchRows;
+
+    /**
+     * @param batchRows Maximum number of rows sent in one datastore_upsert
+     */
+    CKAN_DataStore_Appender(CKAN_DataStore_Client dataStore, int batchRows) {
+        this.dataStore = dataStore;
+        this.batchRows = batchRows;
+    }
+
+    /**
+     * Appends the complete rows past the offset of the progress.
+     * @param resourceId Id of the resource of the file, null to create it in the package when the table is created
+     * @param listener Told of the progress after each batch, to save it. The rows of a batch sent but not saved are sent again by the next append.
+     * @return the progress once every complete row is appended
+     * @throws IOException if a batch could not be appended, the progress of the previous batches having been given to the listener
+     */
+    public Progress append(File file, String resourceName, String packageId, Progress progress, ProgressListener listener) throws IOException {
+        if (file.length() < progress.getOffset()) {
+            log.warn(file + " is shorter than the " + progress.getOffset() + " bytes already appended, appending it again from the start");
+            if (progress.getResourceId() != null) {
+                dataStore.deleteRows(progress.getResourceId());
+            }
+            progress = new Progress(progress.getResourceId(), 0, 0);
+            listener.onProgress(progress);
+        }
+        if (file.length() == progress.getOffset()) {
+            return progress;
+        }
+
+        final List<String> columns = readHeader(file);
+        if (columns == null) {
+            // Not even the header line is complete yet
+            return progress;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            CKAN_Csv_Reader reader;
+            if (progress.getOffset() == 0) {
+                reader = new CKAN_Csv_Reader(in, 0, ',');
+                reader.next();
+                // The table is created as soon as the header is complete, even before the file has any row
+                progress = new Progress(createTable(progress.getResourceId(), resourceName, packageId, columns), reader.getOffset(), 0);
+                listener.onProgress(progress);
+            } else {
+                skipFully(in, progress.getOffset());
+                reader = new CKAN_Csv_Reader(in, progress.getOffset(), ',');
+            }
+
+            final List<List<String>> batch = new ArrayList<>(batchRows);
+            List<String> row;
+            while ((row = reader.next()) != null) {
+                batch.add(row);
+                if (batch.size() == batchRows) {
+                    progress = insert(progress, columns, batch, reader.getOffset());
+                    listener.onProgress(progress);
+                }
+            }
+            if (!batch.isEmpty()) {
+                progress = insert(progress, columns, batch, reader.getOffset());
+                listener.onProgress(progress);
+            }
+        }
+        return progress;
+    }
+
+    private Progress insert(Progress progress, List<String> columns, List<List<String>> batch, long offset) throws IOException {
+        final StringWriter records = new StringWriter();
+        final JsonWriter json = new JsonWriter(records);
+        json.beginArray();
+        for (List<String> row : batch) {
+            json.beginObject();
+            for (int i = 0; i < columns.size() && i < row.size(); i++) {
+                json.name(columns.get(i)).value(row.get(i));
+            }
+            json.endObject();
+        }
+        json.endArray().flush();
+
+        dataStore.upsert(progress.getResourceId(), "insert", records.toString());
+        log.debug("Appended " + batch.size() + " rows to the DataStore table of resource " + progress.getResourceId());
+        final Progress appended = new Progress(progress.getResourceId(), offset, progress.getRows() + batch.size());
+        batch.clear();
+        return appended;
+    }
+
+    /**
+     * Creates the table with the columns of the file, and the resource first when resourceId is null
+     * @return the id of the resource
+     */
+    private String createTable(String resourceId, String resourceName, String packageId, List<String> columns) throws IOException {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        for (String column : columns) {
+            fields.put(column, "text");
+        }
+        return dataStore.createTable(resourceId, resourceName, packageId, "CSV", fields, null);
+    }
+
+    /**
+     * @return the column names, null if the first line is not complete yet
+     */
+    private static List<String> readHeader(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            final List<String> header = new CKAN_Csv_Reader(in, 0, ',').next();
+            if (header == null) {
+                return null;
+            }
+            final List<String> columns = new ArrayList<>(header.size());
+            for (int i = 0; i < header.size(); i++) {
+                // Without the byte order mark some editors write first, and with a name for the unnamed columns
+                String column = i == 0 && header.get(i).startsWith("\uFEFF") ? header.get(i).substring(1) : header.get(i);
+                columns.add(column.trim().isEmpty() ? "column_" + (i + 1) : column.trim());
+            }
+            return columns;
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new IOException("The file ended before the offset " + bytes);
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * How far a file has been appended: the byte offset right after the last row appended and the number of rows appended
+     */
+    public static final class Progress {
+        private final String resourceId;
+        private final long offset;
+        private final long rows;
+
+        public Progress(String resourceId, long offset, long rows) {
+            this.resourceId = resourceId;
+            this.offset = offset;
+            this.rows = rows;
+        }
+
+        public String getResourceId() {
+            return resourceId;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(Progress progress) throws IOException;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+/**
+ * Calls the DataStore actions of CKAN (datastore_create, datastore_upsert and datastore_delete) with JSON bodies.
+ * A failed action throws a CKAN_Exception, whose status code tells whether it is worth retrying.
+ * Inserts are sent once: rows have no identity without a primary key, so an insert sent again after CKAN did it,
+ * e.g. when its response was lost to a read timeout or a proxy answered 504, would insert them twice.
+ */
+public class CKAN_DataStore_Client {
+    private final Logger log = Logger.getLogger(CKAN_DataStore_Client.class);
+
+    private static final Gson gson = new Gson();
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpClient httpclient;
+    private final CKAN_Retry_Policy retryPolicy;
+    private final CKAN_Retry_Policy insertPolicy;
+
+    /**
+     * The http client and the retry policy are shared by the whole processor and are not owned by the client.
+     */
+    CKAN_DataStore_Client(String HOST, String api_key, CloseableHttpClient httpclient, CKAN_Retry_Policy retryPolicy) {
+        this.HOST = HOST;
+        this.api_key = api_key;
+        this.httpclient = httpclient;
+        this.retryPolicy = retryPolicy;
+        this.insertPolicy = retryPolicy.withoutRetries();
+    }
+
+    /**
+     * Creates the table of a resource, and the resource first when resourceId is null.
+     * On an existing table, the fields not there yet are added.
+     * @param format Format of the resource created, null to leave it empty
+     * @param fields Type of each field (text, int4, float8, timestamp, json...) by name, in the order of the columns
+     * @param primaryKey Name of the field that identifies a row, null for none
+     * @return the id of the resource
+     */
+    public String createTable(String resourceId, String resourceName, String packageId, String format, Map<String, String> fields, String primaryKey) throws IOException {
+        final StringWriter body = new StringWriter();
+        final JsonWriter json = new JsonWriter(body);
+        json.beginObject();
+        if (resourceId != null) {
+            json.name("resource_id").value(resourceId);
+        } else {
+            json.name("resource").beginObject()
+                    .name("package_id").value(packageId)
+                    .name("name").value(resourceName);
+            if (format != null) {
+                json.name("format").value(format);
+            }
+            json.endObject();
+        }
+        // The table of an uploaded file is read-only for everything but force
+        json.name("force").value(true).name("fields").beginArray();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            json.beginObject().name("id").value(field.getKey()).name("type").value(field.getValue()).endObject();
+        }
+        json.endArray();
+        if (primaryKey != null) {
+            json.name("primary_key").value(primaryKey);
+        }
+        json.endObject().flush();
+
+        final String createdId = post("datastore_create", body.toString(), true, retryPolicy);
+        if (createdId == null) {
+            throw new IOException("CKAN did not return the resource of the DataStore table of " + resourceName);
+        }
+        log.info("Created the DataStore table of " + resourceName + " in resource " + createdId + " with fields " + fields);
+        return createdId;
+    }
+
+    /**
+     * Sends rows to the table of a resource
+     * @param method insert, upsert (needs a primary key) or update. Inserts are not retried.
+     * @param records JSON array of the rows, each one an object keyed by field name
+     */
+    public void upsert(String resourceId, String method, String records) throws IOException {
+        // The rows are already serialized by the caller, so they are not parsed again to be wrapped
+        final StringBuilder body = new StringBuilder(records.length() + 128)
+                .append("{\"resource_id\":").append(gson.toJson(resourceId))
+                .append(",\"method\":").append(gson.toJson(method))
+                .append(",\"force\":true,\"records\":").append(records)
+                .append('}');
+        post("datastore_upsert", body.toString(), false, "insert".equals(method) ? insertPolicy : retryPolicy);
+    }
+
+    /**
+     * Deletes every row of the table of a resource, but keeps the table
+     */
+    public void deleteRows(String resourceId) throws IOException {
+        final StringWriter body = new StringWriter();
+        // Empty filters delete every row but keep the table, without filters the table itself would be deleted
+        new JsonWriter(body).beginObject()
+                .name("resource_id").value(resourceId)
+                .name("force").value(true)
+                .name("filters").beginObject().endObject()
+                .endObject().flush();
+        post("datastore_delete", body.toString(), false, retryPolicy);
+    }
+
+    /**
+     * @return the resource_id of the result if asked for
+     */
+    private String post(String action, String json, boolean readResourceId, CKAN_Retry_Policy policy) throws IOException {
+        final HttpPost postRequest = new HttpPost(HOST + "/api/action/" + action);
+        postRequest.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = policy.execute(httpclient, postRequest)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                final String body = CKAN_Response_Reader.readForLog(response);
+                log.error("statusCode =!=" + statusCode);
+                log.error(body);
+                throw new CKAN_Exception(action, statusCode, body);
+            }
+            return readResourceId ? CKAN_Response_Reader.readResultField(response, "resource_id") : null;
+        }
+    }
+}
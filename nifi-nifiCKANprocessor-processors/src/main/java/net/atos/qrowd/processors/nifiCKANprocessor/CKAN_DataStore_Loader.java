@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnRemoved;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.LogLevel;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ckan","web service","datastore","record","put","insert"})
+@CapabilityDescription("Nifi Processor that loads the records of each FlowFile into the DataStore table of a CKAN resource, through datastore_create and datastore_upsert. "
+        + "The table (and the resource, if needed) is created with a field per field of the record schema, and the records are sent in batches, "
+        + "several of them in parallel. It will create the organization and package if needed.")
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@WritesAttributes({
+        @WritesAttribute(attribute = "ckan.resource.id", description = "Id of the resource whose DataStore table the records were loaded into"),
+        @WritesAttribute(attribute = "ckan.datastore.rows", description = "Number of records loaded")
+})
+public class CKAN_DataStore_Loader extends AbstractProcessor {
+
+    private static final AllowableValue PRIVATE_TRUE = new AllowableValue("True", "Private", "Marks the package as private");
+    private static final AllowableValue PRIVATE_FALSE = new AllowableValue("False", "Public", "Marks the package as public");
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to write to. Required unless a CKAN Client Service is set.")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN. Required unless a CKAN Client Service is set.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("CKAN Client Service")
+            .description("Shared connection to CKAN. When set, the url, API key, connection pool, caches, retries and circuit breaker of the service are used, "
+                    + "and the corresponding properties of this processor are ignored. The pool of the service should then have a connection "
+                    + "for each of the Parallel Batches of each task, in addition to the ones used by the other processors.")
+            .identifiesControllerService(CKAN_Client_Service.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor organization_id = new PropertyDescriptor
+            .Builder().name("organization_id")
+            .displayName("Organization id to add the resource to")
+            .description("Organization id to add the package to, or create if necessary. Must contain only alphanumeric characters.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor package_name = new PropertyDescriptor
+            .Builder().name("package_name")
+            .displayName("Name of the package to add the resource to")
+            .description("Name of the package to add the resource to, or create if necessary. Must contain only alphanumeric characters.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor package_description = new PropertyDescriptor
+            .Builder().name("package_description")
+            .displayName("Description of the package to add the resource to")
+            .description("Description of the package to add the resource to.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor package_private = new PropertyDescriptor.Builder()
+            .name("Package visibility")
+            .description("Select if the package to be created will be marked as private or public")
+            .expressionLanguageSupported(false)
+            .allowableValues(PRIVATE_TRUE, PRIVATE_FALSE)
+            .defaultValue(PRIVATE_TRUE.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor RESOURCE_NAME = new PropertyDescriptor.Builder()
+            .name("Resource Name")
+            .description("Name of the resource whose DataStore table the records are loaded into. The resource is created if the package has none with that name.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .defaultValue("${filename}")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .name("Record Reader")
+            .description("Controller Service used to read the records of the FlowFiles. Its schema gives the fields of the DataStore table.")
+            .identifiesControllerService(RecordReaderFactory.class)
+            .required(true)
+            .build();
+    private static final PropertyDescriptor PRIMARY_KEY = new PropertyDescriptor.Builder()
+            .name("Primary Key")
+            .description("Field of the records that identifies a row. When set, it becomes the primary key of the table and the records are upserted, "
+                    + "so a FlowFile loaded again (e.g. after a failure) updates its rows instead of adding them twice. When not set, the records are inserted.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor BATCH_ROWS = new PropertyDescriptor.Builder()
+            .name("DataStore Batch Rows")
+            .description("Maximum number of records sent in one datastore_upsert request")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor MAX_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("DataStore Max Batch Size")
+            .description("Size of the JSON of the records past which a batch is sent even if it has fewer than <DataStore Batch Rows> records, "
+                    + "so wide records do not make requests too large for CKAN or the proxy in front of it")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("4 MB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor PARALLEL_BATCHES = new PropertyDescriptor.Builder()
+            .name("Parallel Batches")
+            .description("Maximum number of batches of a FlowFile sent at the same time, while the next one is read. "
+                    + "The rows then reach the table in no particular order. Set to 1 to keep the order of the records.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor MAX_RETRIES = CKAN_Connection.maxRetries(
+            "FlowFiles whose load still fails with a transient error are penalized and returned to the incoming queue instead of going to failure, "
+                    + "unless some of their records were already inserted without a <Primary Key>. Inserts without a <Primary Key> are never tried again.");
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("Any FlowFile whose records were all loaded into the DataStore table is transferred to this Relationship.")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Any FlowFile whose records could not be read, or could not be loaded because CKAN refused them, is transferred to this Relationship.")
+            .build();
+
+    // Organizations and packages confirmed to exist are remembered as long as for the CKAN_File_Uploader defaults
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile CKAN_Connection connection;
+    private volatile String url;
+    private volatile String apiKey;
+    private volatile CloseableHttpClient httpClient;
+    private volatile CKAN_Id_Cache organizationCache;
+    private volatile CKAN_Package_Cache packageCache;
+    // The catalog of the CKAN Client Service, if it loads one
+    private volatile CKAN_Catalog catalog;
+    private volatile ExecutorService batchExecutor;
+    private volatile CKAN_Retry_Policy retryPolicy;
+    private volatile CKAN_Metrics metrics;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CLIENT_SERVICE);
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(organization_id);
+        descriptors.add(package_name);
+        descriptors.add(package_description);
+        descriptors.add(package_private);
+        descriptors.add(RESOURCE_NAME);
+        descriptors.add(RECORD_READER);
+        descriptors.add(PRIMARY_KEY);
+        descriptors.add(BATCH_ROWS);
+        descriptors.add(MAX_BATCH_SIZE);
+        descriptors.add(PARALLEL_BATCHES);
+        descriptors.add(CKAN_Connection.CONNECT_TIMEOUT);
+        descriptors.add(CKAN_Connection.SOCKET_TIMEOUT);
+        descriptors.add(CKAN_Connection.CACHE_TTL);
+        descriptors.add(CKAN_Connection.CACHE_MAX_ENTRIES);
+        descriptors.add(MAX_RETRIES);
+        descriptors.add(CKAN_Connection.RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.MAX_RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_OPEN_DURATION);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!validationContext.getProperty(CLIENT_SERVICE).isSet()) {
+            for (final PropertyDescriptor connection : Arrays.asList(CKAN_url, api_key)) {
+                if (!validationContext.getProperty(connection).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(connection.getDisplayName())
+                            .valid(false)
+                            .explanation("it is required when no " + CLIENT_SERVICE.getDisplayName() + " is set")
+                            .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final int parallelBatches = context.getProperty(PARALLEL_BATCHES).asInteger();
+
+        metrics = CKAN_Metrics.register(getIdentifier());
+
+        // A connection for each batch in flight, plus one for each task to check the organization, package and resource
+        connection = CKAN_Connection.open(context, CLIENT_SERVICE, CKAN_url, api_key, MAX_RETRIES, parallelBatches + context.getMaxConcurrentTasks(), metrics);
+        url = connection.getUrl();
+        apiKey = connection.getApiKey();
+        httpClient = connection.getHttpClient();
+        retryPolicy = connection.getRetryPolicy();
+        organizationCache = connection.createOrganizationCache(context);
+        packageCache = connection.createPackageCache(context);
+        catalog = connection.getClientService() == null ? null : connection.getClientService().getCatalog();
+
+        // Shared by the concurrent tasks, each of them keeping at most Parallel Batches of its own in flight
+        batchExecutor = Executors.newFixedThreadPool(parallelBatches);
+
+        // First contact with CKAN before the first FlowFile, as for the CKAN_File_Uploader: it opens a pooled connection,
+        // caches the organization, and keeps the processor from starting if CKAN cannot be reached or refuses the API key
+        final String organizationId = context.getProperty(organization_id).getValue();
+        final CKAN_API_Handler handler = new CKAN_API_Handler(url, apiKey, "", organizationId, null,
+                PRIVATE_TRUE.getValue().equals(context.getProperty(package_private).getValue()), httpClient,
+                organizationCache, packageCache, catalog, null, retryPolicy.withoutRetries(), CKAN_Upload_Compression.NONE);
+        try {
+            handler.organizationExists();
+        } catch (final IOException ioe) {
+            throw new ProcessException("Could not check organization " + organizationId + " in CKAN " + url + " due to " + ioe, ioe);
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+            batchExecutor = null;
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the CKAN http client due to {}", new Object[]{ioe}, ioe);
+            }
+        }
+        httpClient = null;
+        catalog = null;
+        connection = null;
+    }
+
+    @OnRemoved
+    public void onRemoved() {
+        CKAN_Metrics.unregister(getIdentifier());
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        // While CKAN is unhealthy the FlowFiles are left in the queue, instead of being sent to a failing server
+        final CKAN_Circuit_Breaker circuitBreaker = retryPolicy.getCircuitBreaker();
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+            return;
+        }
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        final String organizationId = context.getProperty(organization_id).getValue();
+        final String packageName = context.getProperty(package_name).evaluateAttributeExpressions(flowFile).getValue();
+        final String packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(flowFile).getValue();
+        final boolean packagePrivate = PRIVATE_TRUE.getValue().equals(context.getProperty(package_private).getValue());
+        final String resourceName = context.getProperty(RESOURCE_NAME).evaluateAttributeExpressions(flowFile).getValue();
+        final String primaryKey = context.getProperty(PRIMARY_KEY).getValue();
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+
+        final CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey, packageName, organizationId, packageDescription, packagePrivate, httpClient,
+                organizationCache, packageCache, catalog, null, retryPolicy, CKAN_Upload_Compression.NONE);
+        final CKAN_DataStore_Client dataStore = new CKAN_DataStore_Client(url, apiKey, httpClient, retryPolicy);
+        final CKAN_Record_Upserter upserter = new CKAN_Record_Upserter(dataStore, batchExecutor, context.getProperty(PARALLEL_BATCHES).asInteger(),
+                context.getProperty(BATCH_ROWS).asInteger(), context.getProperty(MAX_BATCH_SIZE).asDataSize(DataUnit.B).longValue());
+
+        try {
+            if (!ckan_api_handler.organizationExists()) {
+                ckan_api_handler.createOrganization();
+            }
+            if (!ckan_api_handler.packageExists()) {
+                ckan_api_handler.createPackage(Collections.singletonList(resourceName));
+            }
+            final String resourceId;
+            final long rows;
+            try (final InputStream in = session.read(flowFile);
+                 final RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger())) {
+                // The table is created (or completed with the new fields) before any record is sent
+                resourceId = dataStore.createTable(ckan_api_handler.findResourceId(resourceName), resourceName, ckan_api_handler.getPackageId(), null,
+                        CKAN_Record_Upserter.fieldsOf(reader.getSchema()), primaryKey);
+                rows = upserter.upsert(resourceId, primaryKey == null ? "insert" : "upsert", reader);
+            }
+            getLogger().info("Loaded {} records of {} into the DataStore table of resource {}", new Object[]{rows, flowFile, resourceId});
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put("ckan.resource.id", resourceId);
+            attributes.put("ckan.datastore.rows", String.valueOf(rows));
+            flowFile = session.putAllAttributes(flowFile, attributes);
+            session.getProvenanceReporter().send(flowFile, url + "/dataset/" + packageName + "/resource/" + resourceId);
+            session.transfer(flowFile, REL_SUCCESS);
+        } catch (IOException ioe) {
+            // Without a primary key the rows already inserted, or maybe inserted by a batch whose response was lost, would be inserted again by a retry
+            final boolean retry = CKAN_Retry_Policy.isTransient(ioe)
+                    && (primaryKey != null || (upserter.getRowsSent() == 0 && !upserter.isUncertain()));
+            getLogger().log(LogLevel.ERROR, "Error while loading the records of {} into resource {} of package {} in CKAN {} due to {}, "
+                            + "after {} records were loaded. Routing to {}",
+                    new Object[]{flowFile, resourceName, packageName, url, ioe, upserter.getRowsSent(), retry ? "the incoming queue" : "failure"});
+            if (retry) {
+                session.transfer(session.penalize(flowFile));
+            } else {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        } catch (MalformedRecordException | SchemaNotFoundException e) {
+            getLogger().error("Could not read the records of {} due to {}. Routing to failure", new Object[]{flowFile, e});
+            session.transfer(flowFile, REL_FAILURE);
+        }
+        metrics.publishCounters(session);
+        session.commit();
+
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+        }
+    }
+}
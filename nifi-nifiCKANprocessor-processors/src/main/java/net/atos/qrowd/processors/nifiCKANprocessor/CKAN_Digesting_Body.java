@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Multipart body of the resource content that computes its hash while it is being sent.
+ * The hash can then be sent in the same request, in the field returned by hashField(), as long as that field is placed
+ * after this body, so the content is only read once.
+ * The content can be gzip-compressed while it is sent. The hash is still the one of the original content.
+ */
+public class CKAN_Digesting_Body extends AbstractContentBody {
+
+    static final String HASH_ALGORITHM = "SHA-256";
+
+    private final CKAN_Resource_Content content;
+    private final String filename;
+    private final boolean compressed;
+    private final MessageDigest digest;
+    private String hash;
+
+    CKAN_Digesting_Body(CKAN_Resource_Content content, ContentType contentType, String filename) {
+        this(content, contentType, filename, false);
+    }
+
+    /**
+     * @param compressed whether to gzip the content, the content type and filename are then the ones of the compressed file
+     */
+    CKAN_Digesting_Body(CKAN_Resource_Content content, ContentType contentType, String filename, boolean compressed) {
+        super(contentType);
+        this.content = content;
+        this.filename = filename;
+        this.compressed = compressed;
+        this.digest = newDigest();
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        digest.reset();
+        hash = null;
+        try (InputStream in = content.open()) {
+            // Closing the gzip stream writes its trailer and releases its deflater, but the request body goes on after this part
+            OutputStream target = compressed ? new GZIPOutputStream(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, 8192) : out;
+            DigestOutputStream digestOut = new DigestOutputStream(target, digest);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digestOut.write(buffer, 0, read);
+            }
+            if (compressed) {
+                digestOut.close();
+            } else {
+                digestOut.flush();
+            }
+        }
+    }
+
+    @Override
+    public String getTransferEncoding() {
+        return MIME.ENC_BINARY;
+    }
+
+    /**
+     * -1 when compressed, the compressed length is only known once sent
+     */
+    @Override
+    public long getContentLength() {
+        return compressed ? -1 : content.length();
+    }
+
+    /**
+     * Text field holding the hex hash of the content, only known once this body has been written
+     */
+    public ContentBody hashField() {
+        return new AbstractContentBody(ContentType.TEXT_PLAIN) {
+            @Override
+            public String getFilename() {
+                return null;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(getHash().getBytes(StandardCharsets.US_ASCII));
+            }
+
+            @Override
+            public String getTransferEncoding() {
+                return MIME.ENC_8BIT;
+            }
+
+            @Override
+            public long getContentLength() {
+                return digest.getDigestLength() * 2L;
+            }
+        };
+    }
+
+    /**
+     * Hex hash of the content, only available once this body has been written
+     */
+    public String getHash() {
+        if (hash == null) {
+            hash = toHex(digest.digest());
+        }
+        return hash;
+    }
+
+    /**
+     * Reads the whole content to compute its hex hash
+     */
+    static String hash(CKAN_Resource_Content content) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = content.open()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Digest of the algorithm of a hex hash read from CKAN, told by its length: SHA-256 as sent by this bundle, or SHA-1 or MD5
+     * as sent by other clients. A prefix naming the algorithm, like "sha256:", is ignored.
+     * @return null if the hash is empty or not a hex hash of one of these lengths
+     */
+    static MessageDigest newDigestFor(String hash) {
+        final String hex = hexOf(hash);
+        if (hex == null) {
+            return null;
+        }
+        final String algorithm;
+        switch (hex.length()) {
+            case 64:
+                algorithm = HASH_ALGORITHM;
+                break;
+            case 40:
+                algorithm = "SHA-1";
+                break;
+            case 32:
+                algorithm = "MD5";
+                break;
+            default:
+                return null;
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to provide SHA-1 and MD5 too
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the hex digits of a hash read from CKAN, without its algorithm prefix, null if it is not a hex hash
+     */
+    static String hexOf(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        final String hex = hash.substring(hash.indexOf(':') + 1).trim();
+        return !hex.isEmpty() && hex.matches("[0-9a-fA-F]+") ? hex : null;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
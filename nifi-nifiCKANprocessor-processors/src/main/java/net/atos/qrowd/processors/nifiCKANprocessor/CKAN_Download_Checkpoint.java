@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Progress of a download of a CKAN resource in segments: the segments received are written in place in a data file,
+ * and their numbers are saved to disk after every segment so that a later attempt only downloads the missing ones.
+ *
+ * A checkpoint only applies to the same content (same url, size and ETag or Last-Modified), split with the same segment size.
+ */
+public class CKAN_Download_Checkpoint {
+
+    static final String SUFFIX = ".checkpoint";
+    static final String DATA_SUFFIX = ".download";
+
+    private final Path file;
+    private final Path dataFile;
+    private final String resourceId;
+    private final String url;
+    private final long length;
+    private final String validator;
+    private final long segmentSize;
+    // Numbers (starting at 1) of the segments written to the data file
+    private final BitSet committedSegments = new BitSet();
+
+    private CKAN_Download_Checkpoint(Path file, Path dataFile, String resourceId, String url, long length, String validator, long segmentSize) {
+        this.file = file;
+        this.dataFile = dataFile;
+        this.resourceId = resourceId;
+        this.url = url;
+        this.length = length;
+        this.validator = validator;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Loads the checkpoint of the download of that resource, or starts a new one if there is none
+     * or if it was saved for a different content or segment size, whose data is then deleted
+     * @param validator ETag or Last-Modified of the content, null if the server sends neither
+     */
+    public static CKAN_Download_Checkpoint load(Path directory, String resourceId, String url, long length, String validator, long segmentSize) throws IOException {
+        String baseName = resourceId.replaceAll("[^A-Za-z0-9_-]", "_");
+        Path file = directory.resolve(baseName + SUFFIX);
+        CKAN_Download_Checkpoint checkpoint = new CKAN_Download_Checkpoint(file, directory.resolve(baseName + DATA_SUFFIX), resourceId, url, length, validator, segmentSize);
+        if (Files.exists(file)) {
+            Properties saved = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                saved.load(in);
+            }
+            if (checkpoint.matches(saved) && Files.exists(checkpoint.dataFile)) {
+                for (String segment : StringUtils.split(saved.getProperty("segments", ""), ',')) {
+                    checkpoint.committedSegments.set(Integer.parseInt(segment));
+                }
+            } else {
+                checkpoint.delete();
+            }
+        }
+        return checkpoint;
+    }
+
+    private boolean matches(Properties saved) {
+        // Without a validator the content cannot be told apart from a new one of the same size, so nothing is resumed
+        return validator != null
+                && resourceId.equals(saved.getProperty("resourceId"))
+                && url.equals(saved.getProperty("url"))
+                && String.valueOf(length).equals(saved.getProperty("length"))
+                && Objects.equals(validator, saved.getProperty("validator"))
+                && String.valueOf(segmentSize).equals(saved.getProperty("segmentSize"));
+    }
+
+    /**
+     * File the segments are written to, at their offset. It is only complete once every segment is committed.
+     */
+    public Path getDataFile() {
+        return dataFile;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getValidator() {
+        return validator;
+    }
+
+    public int getSegmentCount() {
+        return (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+    }
+
+    public long getSegmentOffset(int segmentNumber) {
+        return (segmentNumber - 1) * segmentSize;
+    }
+
+    public long getSegmentLength(int segmentNumber) {
+        return Math.min(segmentSize, length - getSegmentOffset(segmentNumber));
+    }
+
+    public synchronized boolean isCommitted(int segmentNumber) {
+        return committedSegments.get(segmentNumber);
+    }
+
+    public synchronized int getCommittedCount() {
+        return committedSegments.cardinality();
+    }
+
+    /**
+     * Records a segment written to the data file. The segment must be forced to disk before, so a saved one is never lost in a crash.
+     */
+    public synchronized void commit(int segmentNumber) throws IOException {
+        committedSegments.set(segmentNumber);
+        save();
+    }
+
+    /**
+     * Removes the checkpoint and its data, once the download is consumed or when it cannot be resumed
+     */
+    public synchronized void delete() throws IOException {
+        committedSegments.clear();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dataFile);
+    }
+
+    // Written to a temporary file first, so a crash never leaves a half written checkpoint
+    private void save() throws IOException {
+        Properties saved = new Properties();
+        saved.setProperty("resourceId", resourceId);
+        saved.setProperty("url", url);
+        saved.setProperty("length", String.valueOf(length));
+        if (validator != null) {
+            saved.setProperty("validator", validator);
+        }
+        saved.setProperty("segmentSize", String.valueOf(segmentSize));
+        StringBuilder segments = new StringBuilder();
+        for (int segment = committedSegments.nextSetBit(0); segment >= 0; segment = committedSegments.nextSetBit(segment + 1)) {
+            if (segments.length() > 0) {
+                segments.append(',');
+            }
+            segments.append(segment);
+        }
+        saved.setProperty("segments", segments.toString());
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            saved.store(out, "CKAN download of resource " + resourceId);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
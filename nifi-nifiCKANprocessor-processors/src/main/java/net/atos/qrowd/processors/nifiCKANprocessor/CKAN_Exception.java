@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.io.IOException;
+
+/**
+ * Error answered by CKAN to an action, classified as transient (worth trying again later) or permanent.
+ */
+public class CKAN_Exception extends IOException {
+
+    private final int statusCode;
+    private final String errorType;
+    private final boolean transientError;
+
+    /**
+     * @param body Response body, used to read the type of the CKAN error (e.g. "Validation Error")
+     */
+    CKAN_Exception(String action, int statusCode, String body) {
+        this(statusCode, action, CKAN_Response_Reader.readErrorType(body));
+    }
+
+    /**
+     * @param errorType "__type" of the CKAN error, which comes before the status code to tell whether it is transient
+     */
+    private CKAN_Exception(int statusCode, String action, String errorType) {
+        super(action + " failed with status " + statusCode + (errorType == null ? "" : " (" + errorType + ")"));
+        this.statusCode = statusCode;
+        this.errorType = errorType;
+        this.transientError = CKAN_Retry_Policy.isTransient(statusCode, errorType);
+    }
+
+    /**
+     * Raised without sending the request, e.g. while the circuit of the host is open
+     */
+    CKAN_Exception(String message, boolean transientError) {
+        super(message);
+        this.statusCode = -1;
+        this.errorType = null;
+        this.transientError = transientError;
+    }
+
+    /**
+     * @return the status code of the response, -1 if there was none
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the "__type" of the CKAN error, null if the response had none
+     */
+    public String getErrorType() {
+        return errorType;
+    }
+
+    public boolean isTransient() {
+        return transientError;
+    }
+}
@@ -18,13 +18,25 @@
 package net.atos.qrowd.processors.nifiCKANprocessor;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnRemoved;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.logging.LogLevel;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
@@ -32,14 +44,22 @@ import org.apache.nifi.processor.util.StandardValidators;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.CopyOption;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Tags({"ckan","web service","request","files","local"})
 @CapabilityDescription("Nifi Processor that will upload the specified file to CKAN through its API, it will create the organization and package if needed.")
+@Stateful(scopes = Scope.LOCAL, description = "With the Append New Rows update strategy, the resource id, the byte offset and the number of rows appended "
+        + "are kept for each local file, so the next upload of the file only sends the rows added since.")
 public class CKAN_File_Uploader extends AbstractProcessor {
 
     private static final AllowableValue COMPLETION_NONE = new AllowableValue("None", "None", "Leave the file as-is");
@@ -56,13 +76,32 @@ public class CKAN_File_Uploader extends AbstractProcessor {
     private static final AllowableValue PRIVATE_TRUE = new AllowableValue("True", "Private", "Marks the package as private");
     private static final AllowableValue PRIVATE_FALSE = new AllowableValue("False", "Public", "Marks the package as public");
 
+    private static final AllowableValue SOURCE_LOCAL_FILE = new AllowableValue("Local File", "Local File", "Uploads the local file found at <File Path>");
+    private static final AllowableValue SOURCE_FLOWFILE_CONTENT = new AllowableValue("FlowFile Content", "FlowFile Content", "Uploads the content of the FlowFile, "
+            + "streamed from the content repository. The name of the resource is taken from the filename attribute");
+
+    private static final AllowableValue MODE_SYNCHRONOUS = new AllowableValue("Synchronous", "Synchronous", "Each upload blocks the processor thread until CKAN answers");
+    private static final AllowableValue MODE_ASYNCHRONOUS = new AllowableValue("Asynchronous", "Asynchronous", "Uploads are sent through a non-blocking client, so one processor "
+            + "thread can have up to <Max In-Flight Requests> uploads in progress at the same time");
+
+    private static final AllowableValue UPDATE_REPLACE = new AllowableValue("Replace File", "Replace File", "The whole file is uploaded as the file of the resource");
+    private static final AllowableValue UPDATE_APPEND = new AllowableValue("Append New Rows", "Append New Rows", "For growing CSV files: only the rows added since "
+            + "the previous upload of the file are read, and inserted into the DataStore table of the resource");
+
+    private static final AllowableValue COMPRESSION_NONE = new AllowableValue("None", "None", "Files are sent as they are");
+    private static final AllowableValue COMPRESSION_GZIP_FILE = new AllowableValue("Gzip File", "Gzip File", "Compressible files are gzip-compressed while they are sent, "
+            + "and stored compressed in CKAN as <filename>.gz (the resource keeps the original name)");
+    private static final AllowableValue COMPRESSION_GZIP_ENCODING = new AllowableValue("Gzip Content-Encoding", "Gzip Content-Encoding", "The requests uploading "
+            + "compressible files are gzip-compressed with Content-Encoding: gzip. CKAN or the proxy in front of it must inflate request bodies, "
+            + "e.g. Apache httpd with the DEFLATE input filter, and then stores the original file");
+
 
     private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
             .Builder().name("CKAN_url")
             .displayName("CKAN Url")
-            .description("Hostname of the CKAN instance to write to")
+            .description("Hostname of the CKAN instance to write to. Required unless a CKAN Client Service is set.")
             .addValidator(StandardValidators.URL_VALIDATOR)
-            .required(true)
+            .required(false)
             .build();
     private static final PropertyDescriptor file_path = new PropertyDescriptor
             .Builder().name("file_path")
@@ -73,14 +112,28 @@ public class CKAN_File_Uploader extends AbstractProcessor {
             .defaultValue("${absolute.path}/${filename}")
             .required(true)
             .build();
+    private static final PropertyDescriptor CONTENT_SOURCE = new PropertyDescriptor.Builder()
+            .name("Content Source")
+            .description("Where the content to upload is read from. With FlowFile Content, the File Path and the Completion Strategy are ignored.")
+            .allowableValues(SOURCE_LOCAL_FILE, SOURCE_FLOWFILE_CONTENT)
+            .defaultValue(SOURCE_LOCAL_FILE.getValue())
+            .required(true)
+            .build();
     private static final PropertyDescriptor api_key = new PropertyDescriptor
             .Builder().name("Api_Key")
             .displayName("File Api_Key")
-            .description("Api Key to be used to interact with CKAN")
+            .description("Api Key to be used to interact with CKAN. Required unless a CKAN Client Service is set.")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .required(true)
+            .required(false)
             .sensitive(true)
             .build();
+    private static final PropertyDescriptor CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("CKAN Client Service")
+            .description("Shared connection to CKAN. When set, the url, API key, connection pool, caches, retries and circuit breaker of the service are used, "
+                    + "together with every other processor referencing it, and the corresponding properties of this processor are ignored.")
+            .identifiesControllerService(CKAN_Client_Service.class)
+            .required(false)
+            .build();
     private static final PropertyDescriptor organization_id = new PropertyDescriptor
             .Builder().name("organization_id")
             .displayName("Organization id to add the file to")
@@ -135,11 +188,160 @@ public class CKAN_File_Uploader extends AbstractProcessor {
             .defaultValue(CONFLICT_RENAME.getValue())
             .required(true)
             .build();
+    private static final PropertyDescriptor COMPLETION_JOURNAL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Completion Journal Directory")
+            .description("If set, the Completion Strategy is carried out in the background: the files to move or delete are recorded in a journal in this directory "
+                    + "once the uploads are committed, and a single thread moves or deletes them, grouped by directory, retrying with a backoff when the file system fails. "
+                    + "The actions left when the processor stops are carried out when it starts again. It must not be shared with other processors. "
+                    + "If not set, the files are moved or deleted by the task that uploaded them.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(true, true))
+            .required(false)
+            .build();
+    private static final PropertyDescriptor MAX_CONNECTIONS_PER_ROUTE = new PropertyDescriptor.Builder()
+            .name("Max Connections Per Route")
+            .description("Maximum number of pooled connections kept open to the CKAN instance. The pool is shared by all the concurrent tasks of the processor.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor KEEP_ALIVE = new PropertyDescriptor.Builder()
+            .name("Keep Alive Duration")
+            .description("How long an idle connection is kept in the pool to be reused. If CKAN announces a shorter keep-alive, the shorter one is used.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor CONNECTION_TTL = new PropertyDescriptor.Builder()
+            .name("Connection Time To Live")
+            .description("Maximum lifetime of a pooled connection, after which it is closed instead of being reused (so DNS changes are eventually picked up)")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor CATALOG_REFRESH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Catalog Refresh Interval")
+            .description("If set, the names of all the organizations and packages of CKAN are loaded when the processor starts, then refreshed at this interval, "
+                    + "so that an organization or package already listed is not looked up in CKAN. Ignored when a CKAN Client Service is used, which has its own.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor RESOURCE_INDEX_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Resource Index Directory")
+            .description("Directory where the processor keeps a persistent index of the resources it uploaded (their CKAN id and last hash), "
+                    + "so it can update them without searching CKAN, also after a restart. It must not be shared with other processors. "
+                    + "If not set, every update searches the resource in CKAN.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(true, true))
+            .required(false)
+            .build();
+    private static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor.Builder()
+            .name("Execution Mode")
+            .description("How the files are uploaded to CKAN. The organization, package and resource lookups are always synchronous.")
+            .allowableValues(MODE_SYNCHRONOUS, MODE_ASYNCHRONOUS)
+            .defaultValue(MODE_SYNCHRONOUS.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor MAX_IN_FLIGHT = new PropertyDescriptor.Builder()
+            .name("Max In-Flight Requests")
+            .description("Maximum number of uploads in progress at the same time, for the whole processor, when the Execution Mode is Asynchronous. "
+                    + "A single execution only has as many uploads in flight as its Batch Size, so the Batch Size should be at least this big.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("16")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .description("Maximum number of FlowFiles processed in a single execution. The files of a batch are grouped by package, so the organization "
+                    + "and each package are checked (or created) only once per batch, and the session is committed once for the whole batch.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor LARGE_FILE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Large File Threshold")
+            .description("Local files at least this big are uploaded in parts, in parallel, through the multipart upload actions of the ckanext-cloudstorage "
+                    + "extension, which CKAN must then provide. An interrupted upload is resumed from the parts already sent. "
+                    + "If not set, every file is sent in a single request. Not used with FlowFile Content.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor PART_SIZE = new PropertyDescriptor.Builder()
+            .name("Part Size")
+            .description("Size of each part of a large file upload. Object stores usually require at least 5 MB.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("64 MB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor PART_CONCURRENCY = new PropertyDescriptor.Builder()
+            .name("Parallel Part Uploads")
+            .description("Maximum number of parts being uploaded at the same time, for the whole processor. "
+                    + "Each of them uses a connection, so the Max Connections Per Route should be bigger.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor CHECKPOINT_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Upload Checkpoint Directory")
+            .description("Directory where the progress of the large file uploads is saved, so that they can be resumed after a failure or a restart. "
+                    + "Required when the Large File Threshold is set. It must not be shared with other processors.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(true, true))
+            .required(false)
+            .build();
+
+    private static final PropertyDescriptor UPDATE_STRATEGY = new PropertyDescriptor.Builder()
+            .name("Update Strategy")
+            .description("How a local file is sent to its resource. With Append New Rows, the file must be a UTF-8 CSV file with a header line that is only "
+                    + "ever appended to. The offset reached is kept in the state of the processor, and each upload only reads and inserts the complete rows "
+                    + "past it, in batches, into the DataStore table of the resource (created with the header on the first upload, every column as text). "
+                    + "If the file becomes shorter, the rows of the table are deleted and the file is appended again from the start. "
+                    + "The other upload options (Execution Mode, Large File Threshold, Upload Compression) do not apply then.")
+            .allowableValues(UPDATE_REPLACE, UPDATE_APPEND)
+            .defaultValue(UPDATE_REPLACE.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor DATASTORE_BATCH_ROWS = new PropertyDescriptor.Builder()
+            .name("DataStore Batch Rows")
+            .description("Maximum number of rows inserted by a single datastore_upsert request with Append New Rows. The offset is saved after each batch.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .required(true)
+            .build();
+
+    private static final PropertyDescriptor UPLOAD_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("Upload Compression")
+            .description("Whether compressible files are gzip-compressed while they are uploaded, to use less bandwidth. "
+                    + "Only applies to the Synchronous Execution Mode and to files below the Large File Threshold.")
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_GZIP_FILE, COMPRESSION_GZIP_ENCODING)
+            .defaultValue(COMPRESSION_NONE.getValue())
+            .required(true)
+            .build();
+    private static final PropertyDescriptor COMPRESSION_MIN_SIZE = new PropertyDescriptor.Builder()
+            .name("Compression Minimum Size")
+            .description("Files smaller than this are not compressed, it would not save enough to be worth it")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("1 KB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor COMPRESSIBLE_TYPES = new PropertyDescriptor.Builder()
+            .name("Compressible Content Types")
+            .description("Comma separated content types that are compressed, type/* matching all the subtypes. The content type of a file is "
+                    + "found from its extension. Already compressed formats (zip, gzip, xlsx, images...) should not be listed.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .defaultValue("text/*, application/json, application/ld+json, application/geo+json, application/xml, application/rdf+xml, "
+                    + "application/vnd.google-earth.kml+xml")
+            .required(true)
+            .build();
+
+    private static final PropertyDescriptor MAX_RETRIES = CKAN_Connection.maxRetries(
+            "FlowFiles whose upload still fails with a transient error are penalized and returned to the incoming queue instead of going to failure.");
 
     private static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("SUCCESS")
             .description("Success relationship")
             .build();
+    private static final Relationship REL_UNCHANGED = new Relationship.Builder()
+            .name("unchanged")
+            .description("Any FlowFile whose content is identical to the resource already in CKAN (same hash) is transferred to this Relationship without uploading it again.")
+            .build();
     private static final Relationship REL_NOT_FOUND = new Relationship.Builder()
             .name("not.found")
             .description("Any FlowFile that could not be fetched from the file system because the file could not be found will be transferred to this Relationship.")
@@ -154,14 +356,46 @@ public class CKAN_File_Uploader extends AbstractProcessor {
                     "Any FlowFile that could not be fetched from the file system for any reason other than insufficient permissions or the file not existing will be transferred to this Relationship.")
             .build();
 
+    // Suffixes of the state keys of an appended file, after its absolute path
+    private static final String STATE_RESOURCE_ID = ".resource_id";
+    private static final String STATE_OFFSET = ".offset";
+    private static final String STATE_ROWS = ".rows";
+
     private List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
 
+    private volatile CKAN_Connection connection;
+    private volatile String url;
+    private volatile String apiKey;
+    private volatile CloseableHttpClient httpClient;
+    private volatile CKAN_Id_Cache organizationCache;
+    private volatile CKAN_Package_Cache packageCache;
+    // null unless a Catalog Refresh Interval is set
+    private volatile CKAN_Catalog catalog;
+    private volatile CKAN_Resource_Index resourceIndex;
+    private volatile CloseableHttpAsyncClient asyncHttpClient;
+    private volatile CKAN_Async_Uploader asyncUploader;
+    private volatile ExecutorService partExecutor;
+    private volatile CKAN_Retry_Policy retryPolicy;
+    private volatile CKAN_Metrics metrics;
+    private volatile CKAN_Upload_Compression uploadCompression;
+    private volatile Settings settings;
+    // null when no file is uploaded in parts
+    private volatile CKAN_Multipart_Uploader multipartUploader;
+    // null unless the Update Strategy is Append New Rows
+    private volatile CKAN_DataStore_Appender appender;
+    // null when the Completion Strategy is carried out inline
+    private volatile CKAN_Completion_Stage completionStage;
+    // Keeps concurrent tasks from creating the same package or resource twice
+    private final CKAN_Single_Flight singleFlight = new CKAN_Single_Flight();
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CLIENT_SERVICE);
         descriptors.add(CKAN_url);
+        descriptors.add(CONTENT_SOURCE);
         descriptors.add(file_path);
         descriptors.add(api_key);
         descriptors.add(organization_id);
@@ -171,11 +405,39 @@ public class CKAN_File_Uploader extends AbstractProcessor {
         descriptors.add(COMPLETION_STRATEGY);
         descriptors.add(MOVE_DESTINATION_DIR);
         descriptors.add(CONFLICT_STRATEGY);
+        descriptors.add(COMPLETION_JOURNAL_DIRECTORY);
+        descriptors.add(MAX_CONNECTIONS_PER_ROUTE);
+        descriptors.add(KEEP_ALIVE);
+        descriptors.add(CONNECTION_TTL);
+        descriptors.add(CKAN_Connection.CONNECT_TIMEOUT);
+        descriptors.add(CKAN_Connection.SOCKET_TIMEOUT);
+        descriptors.add(CKAN_Connection.CACHE_TTL);
+        descriptors.add(CKAN_Connection.CACHE_MAX_ENTRIES);
+        descriptors.add(CATALOG_REFRESH_INTERVAL);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(RESOURCE_INDEX_DIRECTORY);
+        descriptors.add(EXECUTION_MODE);
+        descriptors.add(MAX_IN_FLIGHT);
+        descriptors.add(LARGE_FILE_THRESHOLD);
+        descriptors.add(PART_SIZE);
+        descriptors.add(PART_CONCURRENCY);
+        descriptors.add(CHECKPOINT_DIRECTORY);
+        descriptors.add(UPDATE_STRATEGY);
+        descriptors.add(DATASTORE_BATCH_ROWS);
+        descriptors.add(UPLOAD_COMPRESSION);
+        descriptors.add(COMPRESSION_MIN_SIZE);
+        descriptors.add(COMPRESSIBLE_TYPES);
+        descriptors.add(MAX_RETRIES);
+        descriptors.add(CKAN_Connection.RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.MAX_RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_OPEN_DURATION);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<>();
         relationships.add(REL_SUCCESS);
+        relationships.add(REL_UNCHANGED);
         relationships.add(REL_NOT_FOUND);
         relationships.add(REL_PERMISSION_DENIED);
         relationships.add(REL_FAILURE);
@@ -192,53 +454,547 @@ public class CKAN_File_Uploader extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!validationContext.getProperty(CLIENT_SERVICE).isSet()) {
+            for (final PropertyDescriptor connection : Arrays.asList(CKAN_url, api_key)) {
+                if (!validationContext.getProperty(connection).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(connection.getDisplayName())
+                            .valid(false)
+                            .explanation("it is required when no " + CLIENT_SERVICE.getDisplayName() + " is set")
+                            .build());
+                }
+            }
+        }
+        // The content of a FlowFile can only be read by the thread that holds its session, not by the non-blocking client
+        if (SOURCE_FLOWFILE_CONTENT.getValue().equals(validationContext.getProperty(CONTENT_SOURCE).getValue())
+                && MODE_ASYNCHRONOUS.getValue().equals(validationContext.getProperty(EXECUTION_MODE).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(EXECUTION_MODE.getDisplayName())
+                    .valid(false)
+                    .explanation("the Asynchronous mode can only upload local files, set the Content Source to " + SOURCE_LOCAL_FILE.getDisplayName())
+                    .build());
+        }
+        if (UPDATE_APPEND.getValue().equals(validationContext.getProperty(UPDATE_STRATEGY).getValue())) {
+            if (SOURCE_FLOWFILE_CONTENT.getValue().equals(validationContext.getProperty(CONTENT_SOURCE).getValue())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(UPDATE_STRATEGY.getDisplayName())
+                        .valid(false)
+                        .explanation("only local files can be appended, set the Content Source to " + SOURCE_LOCAL_FILE.getDisplayName())
+                        .build());
+            }
+            if (!COMPLETION_NONE.getValue().equals(validationContext.getProperty(COMPLETION_STRATEGY).getValue())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(COMPLETION_STRATEGY.getDisplayName())
+                        .valid(false)
+                        .explanation("an appended file has to stay in place to keep growing, set the Completion Strategy to " + COMPLETION_NONE.getDisplayName())
+                        .build());
+            }
+        }
+        if (validationContext.getProperty(LARGE_FILE_THRESHOLD).isSet() && !validationContext.getProperty(CHECKPOINT_DIRECTORY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(CHECKPOINT_DIRECTORY.getDisplayName())
+                    .valid(false)
+                    .explanation("it is required to upload large files in parts, since their progress is saved there")
+                    .build());
+        }
+        return results;
+    }
+
     @OnScheduled
-    public void onScheduled(final ProcessContext context) {
+    public void onScheduled(final ProcessContext context) throws IOException {
+        final long keepAliveMillis = context.getProperty(KEEP_ALIVE).asTimePeriod(TimeUnit.MILLISECONDS);
+        final int connectTimeout = context.getProperty(CKAN_Connection.CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+        final int socketTimeout = context.getProperty(CKAN_Connection.SOCKET_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+
+        metrics = CKAN_Metrics.register(getIdentifier());
+
+        // One pooled client for the whole processor, so the connections (and their TLS sessions) to CKAN
+        // are reused between files and between concurrent tasks instead of being opened for every FlowFile
+        connection = CKAN_Connection.open(context, CLIENT_SERVICE, CKAN_url, api_key, MAX_RETRIES, context.getProperty(MAX_CONNECTIONS_PER_ROUTE).asInteger(),
+                keepAliveMillis, context.getProperty(CONNECTION_TTL).asTimePeriod(TimeUnit.MILLISECONDS), metrics);
+        url = connection.getUrl();
+        apiKey = connection.getApiKey();
+        httpClient = connection.getHttpClient();
+        retryPolicy = connection.getRetryPolicy();
+        organizationCache = connection.createOrganizationCache(context);
+        packageCache = connection.createPackageCache(context);
+        if (connection.getClientService() != null) {
+            catalog = connection.getClientService().getCatalog();
+        } else if (context.getProperty(CATALOG_REFRESH_INTERVAL).isSet()) {
+            catalog = new CKAN_Catalog(url, apiKey, httpClient, retryPolicy);
+            catalog.start(context.getProperty(CATALOG_REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        }
+
+        final String compression = context.getProperty(UPLOAD_COMPRESSION).getValue();
+        uploadCompression = COMPRESSION_NONE.getValue().equals(compression) ? CKAN_Upload_Compression.NONE : new CKAN_Upload_Compression(
+                COMPRESSION_GZIP_FILE.getValue().equals(compression) ? CKAN_Upload_Compression.Mode.GZIP_FILE : CKAN_Upload_Compression.Mode.GZIP_ENCODING,
+                context.getProperty(COMPRESSION_MIN_SIZE).asDataSize(DataUnit.B).longValue(),
+                Arrays.asList(context.getProperty(COMPRESSIBLE_TYPES).getValue().split(",")));
+
+        if (context.getProperty(RESOURCE_INDEX_DIRECTORY).isSet()) {
+            resourceIndex = CKAN_Resource_Index.open(Paths.get(context.getProperty(RESOURCE_INDEX_DIRECTORY).getValue()));
+        }
+
+        if (MODE_ASYNCHRONOUS.getValue().equals(context.getProperty(EXECUTION_MODE).getValue())) {
+            // Each upload in flight needs its own connection, so the non-blocking pool is sized by the in-flight limit
+            final int maxInFlight = context.getProperty(MAX_IN_FLIGHT).asInteger();
+            asyncHttpClient = HttpAsyncClients.custom()
+                    .setMaxConnPerRoute(maxInFlight)
+                    .setMaxConnTotal(maxInFlight)
+                    .setKeepAliveStrategy(CKAN_Standard_Client_Service.keepAliveStrategy(keepAliveMillis))
+                    .setDefaultRequestConfig(CKAN_Standard_Client_Service.requestConfig(connectTimeout, socketTimeout))
+                    .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                            .setConnectTimeout(connectTimeout)
+                            .setSoTimeout(socketTimeout)
+                            .setSoKeepAlive(true)
+                            .build())
+                    .build();
+            asyncHttpClient.start();
+            asyncUploader = new CKAN_Async_Uploader(asyncHttpClient, maxInFlight, metrics);
+        }
+
+        if (context.getProperty(LARGE_FILE_THRESHOLD).isSet()) {
+            partExecutor = Executors.newFixedThreadPool(context.getProperty(PART_CONCURRENCY).asInteger());
+            multipartUploader = new CKAN_Multipart_Uploader(url, apiKey, httpClient, partExecutor, Paths.get(context.getProperty(CHECKPOINT_DIRECTORY).getValue()),
+                    context.getProperty(PART_SIZE).asDataSize(DataUnit.B).longValue(), retryPolicy);
+        }
+        if (UPDATE_APPEND.getValue().equals(context.getProperty(UPDATE_STRATEGY).getValue())) {
+            appender = new CKAN_DataStore_Appender(new CKAN_DataStore_Client(url, apiKey, httpClient, retryPolicy), context.getProperty(DATASTORE_BATCH_ROWS).asInteger());
+        }
+        settings = new Settings(context);
+
+        if (context.getProperty(COMPLETION_JOURNAL_DIRECTORY).isSet() && !COMPLETION_NONE.getValue().equals(settings.completionStrategy)) {
+            completionStage = CKAN_Completion_Stage.open(Paths.get(context.getProperty(COMPLETION_JOURNAL_DIRECTORY).getValue()));
+            metrics.setCompletionBacklog(completionStage::getBacklog);
+        }
+
+        warmUp(settings);
+    }
+
+    /**
+     * First contact with CKAN, before the first FlowFile: the DNS lookup, the connection and the TLS handshake are done here and the connection
+     * stays in the pool for the first uploads. The organization, and the package when it is not named after the files, are cached if they exist.
+     * A CKAN that cannot be reached, or that refuses the API key, keeps the processor from starting instead of failing the first batch.
+     */
+    private void warmUp(final Settings settings) {
+        // A single attempt: scheduling is retried by NiFi, and should not be held by the backoff
+        final CKAN_API_Handler handler = new CKAN_API_Handler(url, apiKey, settings.packageName == null ? "" : settings.packageName, settings.organizationId,
+                null, settings.packagePrivate, httpClient, organizationCache, packageCache, catalog, resourceIndex, retryPolicy.withoutRetries(), uploadCompression);
+        try {
+            if (handler.organizationExists() && settings.packageName != null) {
+                handler.packageExists();
+            }
+        } catch (final IOException ioe) {
+            throw new ProcessException("Could not check organization " + settings.organizationId + " in CKAN " + url + " due to " + ioe, ioe);
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        // The client and the catalog of a CKAN Client Service are shared with other processors, the service closes them when it is disabled
+        if (catalog != null && connection.getClientService() == null) {
+            catalog.close();
+        }
+        catalog = null;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the CKAN http client due to {}", new Object[]{ioe}, ioe);
+            }
+        }
+        httpClient = null;
+        connection = null;
+        asyncUploader = null;
+        multipartUploader = null;
+        appender = null;
+        if (partExecutor != null) {
+            partExecutor.shutdownNow();
+            partExecutor = null;
+        }
+        if (resourceIndex != null) {
+            try {
+                resourceIndex.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the resource index due to {}", new Object[]{ioe}, ioe);
+            }
+            resourceIndex = null;
+        }
+        if (asyncHttpClient != null) {
+            try {
+                asyncHttpClient.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the CKAN asynchronous http client due to {}", new Object[]{ioe}, ioe);
+            }
+            asyncHttpClient = null;
+        }
+        if (completionStage != null) {
+            metrics.setCompletionBacklog(null);
+            try {
+                completionStage.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the completion journal due to {}", new Object[]{ioe}, ioe);
+            }
+            completionStage = null;
+        }
+    }
 
+    @OnRemoved
+    public void onRemoved() {
+        CKAN_Metrics.unregister(getIdentifier());
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        //This is the way to get the value of a property
-        String url = context.getProperty(CKAN_url).getValue();
-        final String filepath = context.getProperty(file_path).evaluateAttributeExpressions(flowFile).getValue();
-        final File file = new File(filepath);
-        final String apiKey = context.getProperty(api_key).getValue();
-        final String packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(flowFile).getValue();
-        final Boolean packagePrivate;
-        packagePrivate = context.getProperty(package_private).getValue().equals("True");
-
-        //If the property package_name is not filled, then use the filename (without extension) as package name
-        //ToDo: Fix an error, the processos throws null pointer when package_name property is empty
-        String filename = null;
-        if(context.getProperty(package_name).isSet())
-        {
-            filename =context.getProperty(package_name).getValue();
+        // While CKAN is unhealthy the FlowFiles are left in the queue, instead of being sent to a failing server
+        final CKAN_Circuit_Breaker circuitBreaker = retryPolicy.getCircuitBreaker();
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+            return;
         }
-        //Check if the property is filled with spaces, empty, or null to use the file name as filename
-        if(filename == null || filename.isEmpty() || filename.trim().length()==0)
-        {
-            filename=getFileName(file);
+        final Settings settings = this.settings;
+        final List<FlowFile> flowFiles = session.get(settings.batchSize);
+        if (flowFiles.isEmpty()) {
+            return;
         }
-        final String organizationId = context.getProperty(organization_id).getValue();
+        final String organizationId = settings.organizationId;
+        final CKAN_Multipart_Uploader multipartUploader = this.multipartUploader;
+        final CKAN_DataStore_Appender appender = this.appender;
 
-        if (flowFile == null) {
+        // Check every file and group the ones that can be uploaded by their target package,
+        // the organization is the same for all of them
+        final Map<String, List<PendingUpload>> uploadsByPackage = new LinkedHashMap<>();
+        for (final FlowFile flowFile : flowFiles) {
+            final PendingUpload upload = prepareUpload(context, settings, session, flowFile);
+            if (upload != null) {
+                uploadsByPackage.computeIfAbsent(upload.packageName, k -> new ArrayList<>()).add(upload);
+            }
+        }
+        if (uploadsByPackage.isEmpty()) {
+            metrics.publishCounters(session);
+            session.commit();
             return;
         }
 
+        //  *******************
+        //   Main logic of the CKAN uploader
+        // - Create the CKAN API Handler
+        // - Check that the target organization exists in CKAN
+        //      - If it doesn't, create it
+        // - For each group of files with the same package:
+        //      - Check if the package exists in CKAN
+        //          - If it doesn't, create it together with the (empty) resources of the group
+        //      - Upload the files to CKAN, with their filename as ID
+        // -- In case of any exception in the process, send the flowfile (or the whole group) to FAILURE.
+        // *********************
+
+        final List<PendingUpload> uploaded = new ArrayList<>();
+        // Only used in Asynchronous mode: completions of this execution's uploads, and the prepared request of each one to interpret them
+        final BlockingQueue<CKAN_Async_Uploader.Completion<PendingUpload>> completions = new LinkedBlockingQueue<>();
+        final Map<PendingUpload, CKAN_API_Handler.PreparedUpload> prepared = new HashMap<>();
+        int inFlight = 0;
+        boolean organizationChecked = false;
+        try {
+            for (final List<PendingUpload> uploads : uploadsByPackage.values()) {
+                final PendingUpload first = uploads.get(0);
+                CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey, first.packageName, organizationId, first.packageDescription, settings.packagePrivate, httpClient,
+                        organizationCache, packageCache, catalog, resourceIndex, retryPolicy, uploadCompression);
+                // A task never waits for a flight while it is in others: its uploads in flight are routed first, which gets it out of their flights
+                CKAN_Single_Flight.Flight packageFlight = singleFlight.tryJoin(organizationId, ckan_api_handler.getPackageId(), null);
+                if (packageFlight == null) {
+                    while (inFlight > 0) {
+                        inFlight -= routeCompletions(session, completions, prepared, uploaded, url, organizationId, true);
+                    }
+                    packageFlight = joinFlight(organizationId, ckan_api_handler.getPackageId(), null);
+                }
+                try {
+                    if (!organizationChecked) {
+                        if (!ckan_api_handler.organizationExists()) {
+                            ckan_api_handler.createOrganization();
+                        }
+                        organizationChecked = true;
+                    }
+                    if (!ckan_api_handler.packageExists()) {
+                        // A new package is created with the resources of the whole group, which then only need their file uploaded
+                        final Set<String> resourceNames = new LinkedHashSet<>();
+                        for (final PendingUpload upload : uploads) {
+                            resourceNames.add(upload.resourceName);
+                        }
+                        ckan_api_handler.createPackage(resourceNames);
+                    }
+                } catch (IOException ioe) {
+                    final CKAN_API_Handler.Outcome outcome = CKAN_Retry_Policy.isTransient(ioe) ? CKAN_API_Handler.Outcome.RETRY : CKAN_API_Handler.Outcome.FAILED;
+                    getLogger().log(LogLevel.ERROR, "Error while preparing package {} in CKAN {}: Organization {} due to {}. Routing {} files to {}",
+                            new Object[]{first.packageName, url, organizationId, ioe, uploads.size(), outcome == CKAN_API_Handler.Outcome.RETRY ? "the incoming queue" : "failure"});
+                    for (final PendingUpload upload : uploads) {
+                        routeOutcome(session, upload, outcome, uploaded);
+                    }
+                    continue;
+                } finally {
+                    packageFlight.close();
+                }
+
+                for (final PendingUpload upload : uploads) {
+                    try {
+                        upload.flight = singleFlight.tryJoin(organizationId, ckan_api_handler.getPackageId(), upload.resourceName);
+                        if (upload.flight == null) {
+                            while (inFlight > 0) {
+                                inFlight -= routeCompletions(session, completions, prepared, uploaded, url, organizationId, true);
+                            }
+                            upload.flight = joinFlight(organizationId, ckan_api_handler.getPackageId(), upload.resourceName);
+                        }
+                        if (appender != null) {
+                            routeOutcome(session, upload, appendNewRows(context, ckan_api_handler, appender, upload), uploaded);
+                        // Large files are sent in parts from this thread, whatever the Execution Mode
+                        } else if (upload.file != null && upload.file.length() >= settings.largeFileThreshold) {
+                            routeOutcome(session, upload, ckan_api_handler.createOrUpdateLargeResource(upload.file, multipartUploader), uploaded);
+                        } else if (asyncUploader != null) {
+                            final CKAN_API_Handler.PreparedUpload preparedUpload = ckan_api_handler.prepareUploadRequest(upload.file.getAbsolutePath());
+                            if (preparedUpload.getRequest() == null) {
+                                routeOutcome(session, upload, preparedUpload.getOutcome(), uploaded);
+                                continue;
+                            }
+                            if (!circuitBreaker.allowRequest()) {
+                                routeOutcome(session, upload, CKAN_API_Handler.Outcome.RETRY, uploaded);
+                                continue;
+                            }
+                            prepared.put(upload, preparedUpload);
+                            // Route the uploads that already finished while waiting for a free in-flight slot
+                            while (!asyncUploader.submit(preparedUpload.getRequest(), upload, completions, 100, TimeUnit.MILLISECONDS)) {
+                                inFlight -= routeCompletions(session, completions, prepared, uploaded, url, organizationId, false);
+                            }
+                            inFlight++;
+                            inFlight -= routeCompletions(session, completions, prepared, uploaded, url, organizationId, false);
+                        } else if (upload.file == null) {
+                            routeOutcome(session, upload, ckan_api_handler.createOrUpdateResource(upload.resourceName, flowFileContent(session, upload.flowFile)), uploaded);
+                        } else {
+                            routeOutcome(session, upload, ckan_api_handler.createOrUpdateResource(upload.file.getAbsolutePath()), uploaded);
+                        }
+                    } catch (IOException ioe) {
+                        getLogger().log(LogLevel.ERROR, "Error while uploading file {} to CKAN {}: Organization {} due to {}",
+                                new Object[]{upload.resourceName, url, organizationId, ioe});
+                        routeOutcome(session, upload, CKAN_Retry_Policy.isTransient(ioe) ? CKAN_API_Handler.Outcome.RETRY : CKAN_API_Handler.Outcome.FAILED, uploaded);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new ProcessException("Interrupted while waiting to upload " + upload.resourceName, ie);
+                    }
+                }
+            }
+            // Every FlowFile of the batch has to be routed before committing
+            while (inFlight > 0) {
+                inFlight -= routeCompletions(session, completions, prepared, uploaded, url, organizationId, true);
+            }
+        } finally {
+            // Left by an error, the uploads that were not routed must not keep the other tasks out of their flight
+            for (final List<PendingUpload> uploads : uploadsByPackage.values()) {
+                for (final PendingUpload upload : uploads) {
+                    leaveFlight(upload);
+                }
+            }
+        }
+
+        // It is critical that we commit the session before we perform the Delete. Otherwise, we could have a case where we
+        // ingest the file, delete it, and then NiFi is restarted before the session is committed. That would result in data loss.
+        // As long as we commit the session right here, we are safe.
+        metrics.publishCounters(session);
+        session.commit();
+
+        performCompletionStrategy(settings, uploaded);
+
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+        }
+    }
+
+    /**
+     * Routes the asynchronous uploads that have completed.
+     * @param wait whether to wait for at least one completion if none is available yet
+     * @return the number of completions routed
+     */
+    private int routeCompletions(final ProcessSession session, final BlockingQueue<CKAN_Async_Uploader.Completion<PendingUpload>> completions,
+                                 final Map<PendingUpload, CKAN_API_Handler.PreparedUpload> prepared, final List<PendingUpload> uploaded, final String url, final String organizationId,
+                                 final boolean wait) {
+        final List<CKAN_Async_Uploader.Completion<PendingUpload>> completed = new ArrayList<>();
+        if (wait) {
+            try {
+                completed.add(completions.take());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException("Interrupted while waiting for uploads to CKAN to complete", ie);
+            }
+        }
+        completions.drainTo(completed);
+
+        // The asynchronous requests are not retried (their content is streamed once) but their failures still count for the circuit breaker
+        final CKAN_Circuit_Breaker circuitBreaker = retryPolicy.getCircuitBreaker();
+        for (final CKAN_Async_Uploader.Completion<PendingUpload> completion : completed) {
+            final PendingUpload upload = completion.getTag();
+            final boolean transientFailure;
+            if (completion.getException() != null) {
+                getLogger().log(LogLevel.ERROR, "Error while uploading file {} to CKAN {}: Organization {} due to {}",
+                        new Object[]{upload.resourceName, url, organizationId, completion.getException()});
+                transientFailure = completion.getException() instanceof IOException && CKAN_Retry_Policy.isTransient((IOException) completion.getException());
+                prepared.get(upload).handleFailure(completion.getException());
+                routeOutcome(session, upload, transientFailure ? CKAN_API_Handler.Outcome.RETRY : CKAN_API_Handler.Outcome.FAILED, uploaded);
+            } else {
+                prepared.get(upload).handleResponse(completion.getStatusCode(), completion.getBody());
+                final String errorType = CKAN_Response_Reader.readErrorType(completion.getBody());
+                transientFailure = CKAN_Retry_Policy.isTransient(completion.getStatusCode(), errorType);
+                routeOutcome(session, upload, CKAN_API_Handler.outcomeOf(completion.getStatusCode(), errorType), uploaded);
+            }
+            if (transientFailure) {
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+        }
+        return completed.size();
+    }
+
+    private CKAN_Single_Flight.Flight joinFlight(final String organizationId, final String packageName, final String resourceName) {
+        try {
+            return singleFlight.join(organizationId, packageName, resourceName);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while waiting for another task uploading to package " + packageName, ie);
+        }
+    }
+
+    private static void leaveFlight(final PendingUpload upload) {
+        if (upload.flight != null) {
+            upload.flight.close();
+            upload.flight = null;
+        }
+    }
+
+    /**
+     * Routes a FlowFile according to the outcome of its upload, and keeps it for the Completion Strategy if its file was handled
+     */
+    private void routeOutcome(final ProcessSession session, final PendingUpload upload, final CKAN_API_Handler.Outcome outcome, final List<PendingUpload> uploaded) {
+        leaveFlight(upload);
+        switch (outcome) {
+            case UPLOADED:
+                metrics.recordBytesUploaded(upload.appendedBytes >= 0 ? upload.appendedBytes : upload.file == null ? upload.flowFile.getSize() : upload.file.length());
+                session.transfer(upload.flowFile, REL_SUCCESS);
+                uploaded.add(upload);
+                break;
+            case UNCHANGED:
+                session.transfer(upload.flowFile, REL_UNCHANGED);
+                uploaded.add(upload);
+                break;
+            case RETRY:
+                // Back to the incoming queue, to be tried again once the penalty is over
+                session.transfer(session.penalize(upload.flowFile));
+                break;
+            default:
+                session.transfer(session.penalize(upload.flowFile), REL_FAILURE);
+                break;
+        }
+    }
+
+    /**
+     * Appends the rows added to the file since its previous upload, from the progress kept in the state
+     */
+    private CKAN_API_Handler.Outcome appendNewRows(final ProcessContext context, final CKAN_API_Handler handler, final CKAN_DataStore_Appender appender,
+                                                   final PendingUpload upload) throws IOException {
+        final String key = upload.file.getAbsolutePath();
+        final Map<String, String> state = context.getStateManager().getState(Scope.LOCAL).toMap();
+        String resourceId = state.get(key + STATE_RESOURCE_ID);
+        if (resourceId == null) {
+            // A resource with that name may already exist, e.g. uploaded before with Replace File
+            resourceId = handler.findResourceId(upload.resourceName);
+        }
+        final CKAN_DataStore_Appender.Progress previous = new CKAN_DataStore_Appender.Progress(resourceId,
+                state.containsKey(key + STATE_OFFSET) ? Long.parseLong(state.get(key + STATE_OFFSET)) : 0,
+                state.containsKey(key + STATE_ROWS) ? Long.parseLong(state.get(key + STATE_ROWS)) : 0);
+
+        final AtomicLong appendedBytes = new AtomicLong();
+        final AtomicLong lastOffset = new AtomicLong(previous.getOffset());
+        final CKAN_DataStore_Appender.Progress progress = appender.append(upload.file, upload.resourceName, handler.getPackageId(), previous, appended -> {
+            // The offset only goes back when the file was truncated, and is then appended again from the start
+            appendedBytes.addAndGet(Math.max(0, appended.getOffset() - lastOffset.getAndSet(appended.getOffset())));
+            saveAppendProgress(context, key, appended);
+        });
+        if (appendedBytes.get() == 0 && progress.getOffset() == previous.getOffset()) {
+            return CKAN_API_Handler.Outcome.UNCHANGED;
+        }
+        getLogger().info("Appended {} bytes of {} to resource {}, {} rows in total",
+                new Object[]{appendedBytes.get(), upload.file, progress.getResourceId(), progress.getRows()});
+        upload.appendedBytes = appendedBytes.get();
+        return CKAN_API_Handler.Outcome.UPLOADED;
+    }
+
+    /**
+     * Concurrent tasks append different files, but they share the state of the processor, so its updates are serialized
+     */
+    private synchronized void saveAppendProgress(final ProcessContext context, final String key, final CKAN_DataStore_Appender.Progress progress) throws IOException {
+        final StateManager stateManager = context.getStateManager();
+        final Map<String, String> state = new HashMap<>(stateManager.getState(Scope.LOCAL).toMap());
+        state.put(key + STATE_RESOURCE_ID, progress.getResourceId());
+        state.put(key + STATE_OFFSET, String.valueOf(progress.getOffset()));
+        state.put(key + STATE_ROWS, String.valueOf(progress.getRows()));
+        stateManager.setState(state, Scope.LOCAL);
+    }
+
+    /**
+     * The content of the FlowFile, read from the content repository each time it is opened
+     */
+    private CKAN_Resource_Content flowFileContent(final ProcessSession session, final FlowFile flowFile) {
+        return new CKAN_Resource_Content() {
+            @Override
+            public InputStream open() {
+                return session.read(flowFile);
+            }
+
+            @Override
+            public long length() {
+                return flowFile.getSize();
+            }
+        };
+    }
+
+    /**
+     * Resolves the file and the target package of a FlowFile and verifies that the file can be read and,
+     * if needed, moved afterwards.
+     * @return the upload to perform, or null if the FlowFile has already been routed because of a problem with the file
+     */
+    private PendingUpload prepareUpload(final ProcessContext context, final Settings settings, final ProcessSession session, final FlowFile flowFile) {
+        final boolean fromContent = settings.fromContent;
+        final String resourceName;
+        final File file;
+        if (fromContent) {
+            resourceName = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+            file = null;
+        } else {
+            final String filepath = context.getProperty(file_path).evaluateAttributeExpressions(flowFile).getValue();
+            file = new File(filepath);
+            resourceName = file.getName();
+        }
+        final String packageDescription = context.getProperty(package_description).evaluateAttributeExpressions(flowFile).getValue();
+
+        //If the property package_name is not filled, then use the filename (without extension) as package name
+        final String filename = settings.packageName != null ? settings.packageName : getFileName(resourceName);
+
+        // The content is already in NiFi, there is no file to verify nor to complete afterwards
+        if (fromContent) {
+            return new PendingUpload(flowFile, null, resourceName, filename, packageDescription, null);
+        }
+
         // Verify that file system is reachable and file exists
         Path filePath = file.toPath();
         if (!Files.exists(filePath) && !Files.notExists(filePath)) { // see https://docs.oracle.com/javase/tutorial/essential/io/check.html for more details
             getLogger().log(LogLevel.ERROR, "Could not fetch file {} from file system for {} because the existence of the file cannot be verified; routing to failure",
                     new Object[]{file, flowFile});
             session.transfer(session.penalize(flowFile), REL_FAILURE);
-            return;
+            return null;
         } else if (!Files.exists(filePath)) {
             getLogger().log(LogLevel.ERROR, "Could not fetch file {} from file system for {} because the file does not exist; routing to not.found", new Object[]{file, flowFile});
             session.getProvenanceReporter().route(flowFile, REL_NOT_FOUND);
             session.transfer(session.penalize(flowFile), REL_NOT_FOUND);
-            return;
+            return null;
         }
 
         // Verify read permission on file
@@ -248,11 +1004,11 @@ public class CKAN_File_Uploader extends AbstractProcessor {
                     new Object[]{file, flowFile, user});
             session.getProvenanceReporter().route(flowFile, REL_PERMISSION_DENIED);
             session.transfer(session.penalize(flowFile), REL_PERMISSION_DENIED);
-            return;
+            return null;
         }
         // If configured to move the file and fail if unable to do so, check that the existing file does not exist and that we have write permissions
         // for the parent file.
-        final String completionStrategy = context.getProperty(COMPLETION_STRATEGY).getValue();
+        final String completionStrategy = settings.completionStrategy;
         final String targetDirectoryName = context.getProperty(MOVE_DESTINATION_DIR).evaluateAttributeExpressions(flowFile).getValue();
         if (targetDirectoryName != null) {
             final File targetDir = new File(targetDirectoryName);
@@ -262,136 +1018,134 @@ public class CKAN_File_Uploader extends AbstractProcessor {
                                     + "but that is not a directory or user {} does not have permissions to write to that directory",
                             new Object[] {file, flowFile, targetDir, user});
                     session.transfer(flowFile, REL_FAILURE);
-                    return;
+                    return null;
                 }
 
-                final String conflictStrategy = context.getProperty(CONFLICT_STRATEGY).getValue();
-
-                if (CONFLICT_FAIL.getValue().equalsIgnoreCase(conflictStrategy)) {
+                if (settings.conflict == CKAN_Completion_Stage.Conflict.FAIL) {
                     final File targetFile = new File(targetDir, file.getName());
                     if (targetFile.exists()) {
                         getLogger().error("Could not fetch file {} from file system for {} because Completion Strategy is configured to move the original file to {}, "
                                         + "but a file with name {} already exists in that directory and the Move Conflict Strategy is configured for failure",
                                 new Object[] {file, flowFile, targetDir, file.getName()});
                         session.transfer(flowFile, REL_FAILURE);
-                        return;
+                        return null;
                     }
                 }
             }
         }
 
+        return new PendingUpload(flowFile, file, resourceName, filename, packageDescription, targetDirectoryName);
+    }
 
-        //  *******************
-        //   Main logic of the CKAN uploader
-        // - Create the CKAN API Handler
-        // - Check that the target organization exists in CKAN
-        //      - If it doesn't, create it
-        // - Check if the package exists in CKAN
-        //      - If it doesn't, create it
-        // - Upload the file to CKAN, with it's filename as ID
-        // -- In case of any exception in the process, send the flowfile to FAILURE.
-        // *********************
-
-        CKAN_API_Handler ckan_api_handler = new CKAN_API_Handler(url, apiKey, filename, organizationId, packageDescription, packagePrivate);
-        try {
-            if (!ckan_api_handler.organizationExists()) {
-                ckan_api_handler.createOrganization();
+    /**
+     * Performs the Completion Strategy action on the files that have been uploaded, or records it to be performed in the background.
+     * Must only be called once the session is committed.
+     */
+    private void performCompletionStrategy(final Settings settings, final List<PendingUpload> uploaded) {
+        final List<CKAN_Completion_Stage.Action> actions = new ArrayList<>();
+        for (final PendingUpload upload : uploaded) {
+            if (upload.file == null) {
+                continue;
             }
-            if (!ckan_api_handler.packageExists()) {
-                ckan_api_handler.createPackage();
+            if (COMPLETION_DELETE.getValue().equalsIgnoreCase(settings.completionStrategy)) {
+                actions.add(CKAN_Completion_Stage.Action.delete(upload.file.toPath()));
+            } else if (COMPLETION_MOVE.getValue().equalsIgnoreCase(settings.completionStrategy)) {
+                actions.add(CKAN_Completion_Stage.Action.move(upload.file.toPath(), Paths.get(upload.targetDirectoryName), settings.conflict));
             }
-            if(ckan_api_handler.createOrUpdateResource(file.getAbsolutePath())) {
-                session.transfer(flowFile, REL_SUCCESS);
-                ckan_api_handler.close();
-            }else
-            {
-                session.transfer(session.penalize(flowFile), REL_FAILURE);
-            }
-        }catch(IOException ioe)
-        {
-            getLogger().log(LogLevel.ERROR, "Error while uploading file {} to CKAN {}: Organization {}.",
-                    new Object[]{file.getName(), url, organizationId });
-            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        }
+        if (actions.isEmpty()) {
+            return;
         }
 
-
-
-        // It is critical that we commit the session before we perform the Delete. Otherwise, we could have a case where we
-        // ingest the file, delete it, and then NiFi is restarted before the session is committed. That would result in data loss.
-        // As long as we commit the session right here, we are safe.
-        session.commit();
-
-        // Attempt to perform the Completion Strategy action
-        Exception completionFailureException = null;
-        if (COMPLETION_DELETE.getValue().equalsIgnoreCase(completionStrategy)) {
-            // convert to path and use Files.delete instead of file.delete so that if we fail, we know why
+        final CKAN_Completion_Stage completionStage = this.completionStage;
+        if (completionStage != null) {
             try {
-                delete(file);
+                completionStage.record(actions);
+                return;
             } catch (final IOException ioe) {
-                completionFailureException = ioe;
+                getLogger().warn("Failed to record the Completion Action of {} files in the journal due to {}; performing it now",
+                        new Object[] {actions.size(), ioe}, ioe);
             }
-        } else if (COMPLETION_MOVE.getValue().equalsIgnoreCase(completionStrategy)) {
-            final File targetDirectory = new File(targetDirectoryName);
-            final File targetFile = new File(targetDirectory, file.getName());
+        }
+        final Set<Path> targetDirectories = new HashSet<>();
+        for (final CKAN_Completion_Stage.Action action : actions) {
             try {
-                if (targetFile.exists()) {
-                    final String conflictStrategy = context.getProperty(CONFLICT_STRATEGY).getValue();
-                    if (CONFLICT_KEEP_INTACT.getValue().equalsIgnoreCase(conflictStrategy)) {
-                        // don't move, just delete the original
-                        Files.delete(file.toPath());
-                    } else if (CONFLICT_RENAME.getValue().equalsIgnoreCase(conflictStrategy)) {
-                        // rename to add a random UUID but keep the file extension if it has one.
-                        final String simpleFilename = targetFile.getName();
-                        final String newName;
-                        if (simpleFilename.contains(".")) {
-                            newName = StringUtils.substringBeforeLast(simpleFilename, ".") + "-" + UUID.randomUUID().toString() + "." + StringUtils.substringAfterLast(simpleFilename, ".");
-                        } else {
-                            newName = simpleFilename + "-" + UUID.randomUUID().toString();
-                        }
-
-                        move(file, new File(targetDirectory, newName), false);
-                    } else if (CONFLICT_REPLACE.getValue().equalsIgnoreCase(conflictStrategy)) {
-                        move(file, targetFile, true);
-                    }
-                } else {
-                    move(file, targetFile, false);
-                }
+                CKAN_Completion_Stage.perform(action, targetDirectories);
             } catch (final IOException ioe) {
-                completionFailureException = ioe;
+                getLogger().warn("Successfully uploaded the file but failed to perform the Completion Action, the {}, due to {}",
+                        new Object[] {action, ioe}, ioe);
             }
         }
+    }
+
+    /**
+     * A FlowFile whose file has been verified and is waiting to be uploaded to its package.
+     */
+    private static final class PendingUpload {
+        private final FlowFile flowFile;
+        // null when the content is uploaded from the FlowFile
+        private final File file;
+        private final String resourceName;
+        private final String packageName;
+        private final String packageDescription;
+        private final String targetDirectoryName;
+        // Bytes of the file read and sent by an append, -1 when the whole content is uploaded
+        private long appendedBytes = -1;
+        // Flight of its resource, from its lookup until it is routed
+        private CKAN_Single_Flight.Flight flight;
 
-        // Handle completion failures
-        if (completionFailureException != null) {
-            getLogger().warn("Successfully fetched the content from {} for {} but failed to perform Completion Action due to {}; routing to success",
-                    new Object[] {file, flowFile, completionFailureException}, completionFailureException);
+        private PendingUpload(final FlowFile flowFile, final File file, final String resourceName, final String packageName, final String packageDescription,
+                              final String targetDirectoryName) {
+            this.flowFile = flowFile;
+            this.file = file;
+            this.resourceName = resourceName;
+            this.packageName = packageName;
+            this.packageDescription = packageDescription;
+            this.targetDirectoryName = targetDirectoryName;
         }
     }
 
-    // Auxiliary methods got from fetch files processor
-    private void move(final File source, final File target, final boolean overwrite) throws IOException {
-        final File targetDirectory = target.getParentFile();
+    /**
+     * The properties that are the same for every FlowFile, read once when the processor is scheduled
+     */
+    private static final class Settings {
+        private final int batchSize;
+        private final boolean fromContent;
+        private final String organizationId;
+        private final boolean packagePrivate;
+        // null when each package is named after its file
+        private final String packageName;
+        private final String completionStrategy;
+        private final CKAN_Completion_Stage.Conflict conflict;
+        // Long.MAX_VALUE when no file is uploaded in parts
+        private final long largeFileThreshold;
 
-        // convert to path and use Files.move instead of file.renameTo so that if we fail, we know why
-        final Path targetPath = target.toPath();
-        if (!targetDirectory.exists()) {
-            Files.createDirectories(targetDirectory.toPath());
+        private Settings(final ProcessContext context) {
+            this.batchSize = context.getProperty(BATCH_SIZE).asInteger();
+            this.fromContent = SOURCE_FLOWFILE_CONTENT.getValue().equals(context.getProperty(CONTENT_SOURCE).getValue());
+            this.organizationId = context.getProperty(organization_id).getValue();
+            this.packagePrivate = PRIVATE_TRUE.getValue().equals(context.getProperty(package_private).getValue());
+            this.packageName = StringUtils.isBlank(context.getProperty(package_name).getValue()) ? null : context.getProperty(package_name).getValue();
+            this.completionStrategy = context.getProperty(COMPLETION_STRATEGY).getValue();
+            final String conflictStrategy = context.getProperty(CONFLICT_STRATEGY).getValue();
+            this.conflict = CONFLICT_REPLACE.getValue().equals(conflictStrategy) ? CKAN_Completion_Stage.Conflict.REPLACE
+                    : CONFLICT_KEEP_INTACT.getValue().equals(conflictStrategy) ? CKAN_Completion_Stage.Conflict.KEEP_EXISTING
+                    : CONFLICT_FAIL.getValue().equals(conflictStrategy) ? CKAN_Completion_Stage.Conflict.FAIL
+                    : CKAN_Completion_Stage.Conflict.RENAME;
+            this.largeFileThreshold = context.getProperty(LARGE_FILE_THRESHOLD).isSet()
+                    ? context.getProperty(LARGE_FILE_THRESHOLD).asDataSize(DataUnit.B).longValue() : Long.MAX_VALUE;
         }
-
-        final CopyOption[] copyOptions = overwrite ? new CopyOption[] {StandardCopyOption.REPLACE_EXISTING} : new CopyOption[] {};
-        Files.move(source.toPath(), targetPath, copyOptions);
-    }
-    private void delete ( final File file) throws IOException {
-        Files.delete(file.toPath());
     }
+
+    // Auxiliary methods got from fetch files processor
     private boolean isReadable(final File file) {
         return file.canRead();
     }
 
-    private String getFileName(File file){
+    private String getFileName(String name){
 
-        getLogger().log(LogLevel.ERROR,"Filename to be processed: " + file.getName());
-        return file.getName().split("\\.")[0];
+        getLogger().log(LogLevel.ERROR,"Filename to be processed: " + name);
+        return name.split("\\.")[0];
     }
 
     private boolean isWritable(final File file) {
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory set of ids (organizations) that have been confirmed to exist in CKAN.
+ * Entries expire after the configured time to live, and once the maximum number of entries is reached
+ * the least recently used one is evicted.
+ * It is shared by all the concurrent tasks of the processor, so every access is synchronized.
+ */
+public class CKAN_Id_Cache {
+
+    private final long ttlNanos;
+    // id -> System.nanoTime() at which the entry expires, in access order for the LRU eviction
+    private final Map<String, Long> entries;
+
+    CKAN_Id_Cache(long ttl, TimeUnit unit, final int maxEntries) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized boolean contains(String id) {
+        Long expiresAt = entries.get(id);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (System.nanoTime() - expiresAt >= 0) {
+            entries.remove(id);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void put(String id) {
+        entries.put(id, System.nanoTime() + ttlNanos);
+    }
+
+    public synchronized void invalidate(String id) {
+        entries.remove(id);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
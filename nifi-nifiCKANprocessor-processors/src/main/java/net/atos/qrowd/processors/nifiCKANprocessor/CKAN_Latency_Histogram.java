@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: every power of two of microseconds is split in SUB_BUCKETS linear buckets,
+ * so a percentile is off by at most 1/SUB_BUCKETS (12.5%) whatever the latency, from 1 microsecond to more than a day.
+ * Recording is a few atomic increments, so it can be done for every request from any thread.
+ */
+public class CKAN_Latency_Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^40 microseconds (about 12 days), longer latencies are counted in the last bucket
+    private static final int MAX_EXPONENT = 37;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((MAX_EXPONENT + 1) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit) {
+        final long micros = Math.max(0, unit.toMicros(duration));
+        buckets.incrementAndGet(bucketOf(micros));
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Takes the latencies recorded so far and starts over, so each snapshot covers the time since the previous one.
+     * Latencies recorded while the snapshot is taken end up in either of them.
+     */
+    public Snapshot snapshotAndReset() {
+        final long[] counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.getAndSet(i, 0);
+        }
+        return new Snapshot(counts, max.getAndSet(0));
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        // Position of the highest bit, and the SUB_BUCKET_BITS bits below it
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        if (exponent > MAX_EXPONENT) {
+            return (MAX_EXPONENT + 1) * SUB_BUCKETS - 1;
+        }
+        final int subBucket = (int) (micros >>> (exponent - 1)) - SUB_BUCKETS;
+        return exponent * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Highest latency counted in a bucket, in microseconds
+     */
+    static long upperBoundOf(int bucket) {
+        final int exponent = bucket / SUB_BUCKETS;
+        final int subBucket = bucket % SUB_BUCKETS;
+        if (exponent == 0) {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - 1)) - 1;
+    }
+
+    /**
+     * Latencies recorded during an interval
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long maxMicros;
+
+        private Snapshot(long[] counts, long maxMicros) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the latency under which that percentage of the requests completed, in the given unit. 0 if nothing was recorded.
+         */
+        public double getPercentile(double percentile, TimeUnit unit) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return toUnit(Math.min(upperBoundOf(i), maxMicros), unit);
+                }
+            }
+            return toUnit(maxMicros, unit);
+        }
+
+        public double getMax(TimeUnit unit) {
+            return toUnit(maxMicros, unit);
+        }
+
+        private static double toUnit(long micros, TimeUnit unit) {
+            return micros * 1000.0 / unit.toNanos(1);
+        }
+    }
+}
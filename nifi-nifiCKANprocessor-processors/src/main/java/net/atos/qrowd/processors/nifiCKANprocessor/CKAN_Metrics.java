@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.processor.ProcessSession;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Latency and throughput of the requests a processor sends to CKAN, per endpoint (organization_show, package_create,
+ * package_show, resource_update...), i.e. per phase of the upload of a file.
+ *
+ * The counters are published as NiFi counters by the processor, through its sessions. The latency histograms are published
+ * by CKAN_Metrics_Reporting_Task, which finds the metrics of every processor in a registry shared by the components of the NAR.
+ */
+public class CKAN_Metrics {
+
+    static final String REQUESTS_COUNTER = "CKAN requests: ";
+    static final String FAILURES_COUNTER = "CKAN failed requests: ";
+    static final String BYTES_UPLOADED_COUNTER = "CKAN bytes uploaded";
+
+    private static final Map<String, CKAN_Metrics> REGISTRY = new ConcurrentHashMap<>();
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder unpublishedBytesUploaded = new LongAdder();
+    // Number of completion actions waiting to be carried out, null when they are carried out inline
+    private volatile IntSupplier completionBacklog;
+
+    /**
+     * The metrics of the processor, created the first time. They are kept while the processor is stopped.
+     */
+    static CKAN_Metrics register(String processorId) {
+        return REGISTRY.computeIfAbsent(processorId, id -> new CKAN_Metrics());
+    }
+
+    static void unregister(String processorId) {
+        REGISTRY.remove(processorId);
+    }
+
+    /**
+     * The metrics of every processor, by processor id
+     */
+    static Map<String, CKAN_Metrics> registered() {
+        return Collections.unmodifiableMap(REGISTRY);
+    }
+
+    /**
+     * Records a request to CKAN
+     * @param failed whether it failed, with an exception or an error status (which includes the 404 of the _show actions when
+     *               the organization or the package does not exist yet)
+     */
+    public void recordRequest(URI uri, long durationNanos, boolean failed) {
+        final Endpoint endpoint = endpoints.computeIfAbsent(endpointOf(uri), name -> new Endpoint());
+        endpoint.latency.record(durationNanos, TimeUnit.NANOSECONDS);
+        endpoint.requests.increment();
+        endpoint.unpublishedRequests.increment();
+        if (failed) {
+            endpoint.failures.increment();
+            endpoint.unpublishedFailures.increment();
+        }
+    }
+
+    public void recordBytesUploaded(long bytes) {
+        bytesUploaded.add(bytes);
+        unpublishedBytesUploaded.add(bytes);
+    }
+
+    /**
+     * @param backlog Gives the number of completion actions waiting, null to stop reporting it
+     */
+    public void setCompletionBacklog(IntSupplier backlog) {
+        this.completionBacklog = backlog;
+    }
+
+    /**
+     * Adds what was recorded since the last call to the NiFi counters, through the session (applied when it is committed).
+     * Any concurrent task can publish what the others recorded, the totals stay right.
+     */
+    public void publishCounters(ProcessSession session) {
+        for (Map.Entry<String, Endpoint> endpoint : endpoints.entrySet()) {
+            final long requests = endpoint.getValue().unpublishedRequests.sumThenReset();
+            if (requests > 0) {
+                session.adjustCounter(REQUESTS_COUNTER + endpoint.getKey(), requests, false);
+            }
+            final long failures = endpoint.getValue().unpublishedFailures.sumThenReset();
+            if (failures > 0) {
+                session.adjustCounter(FAILURES_COUNTER + endpoint.getKey(), failures, false);
+            }
+        }
+        final long bytes = unpublishedBytesUploaded.sumThenReset();
+        if (bytes > 0) {
+            session.adjustCounter(BYTES_UPLOADED_COUNTER, bytes, false);
+        }
+    }
+
+    /**
+     * Takes the latencies and counts of each endpoint since the previous report, by endpoint name
+     */
+    Map<String, Report> report() {
+        final Map<String, Report> reports = new TreeMap<>();
+        for (Map.Entry<String, Endpoint> endpoint : endpoints.entrySet()) {
+            final Endpoint e = endpoint.getValue();
+            reports.put(endpoint.getKey(), new Report(e.latency.snapshotAndReset(), e.requests.sumThenReset(), e.failures.sumThenReset()));
+        }
+        return reports;
+    }
+
+    /**
+     * Takes the number of bytes uploaded since the previous report
+     */
+    long reportBytesUploaded() {
+        return bytesUploaded.sumThenReset();
+    }
+
+    /**
+     * @return the number of completion actions waiting now, -1 when they are carried out inline
+     */
+    int reportCompletionBacklog() {
+        final IntSupplier backlog = completionBacklog;
+        return backlog == null ? -1 : backlog.getAsInt();
+    }
+
+    /**
+     * The CKAN action of a request, e.g. package_show for http://ckan/api/action/package_show
+     */
+    static String endpointOf(URI uri) {
+        final String path = uri.getPath() == null ? "" : uri.getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static final class Endpoint {
+        private final CKAN_Latency_Histogram latency = new CKAN_Latency_Histogram();
+        // Counted twice: since the last report of the reporting task, and since the last publication of the counters
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder unpublishedRequests = new LongAdder();
+        private final LongAdder unpublishedFailures = new LongAdder();
+    }
+
+    /**
+     * Requests to an endpoint during a reporting interval
+     */
+    static final class Report {
+        final CKAN_Latency_Histogram.Snapshot latency;
+        final long requests;
+        final long failures;
+
+        private Report(CKAN_Latency_Histogram.Snapshot latency, long requests, long failures) {
+            this.latency = latency;
+            this.requests = requests;
+            this.failures = failures;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.ReportingContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ckan","metrics","latency","reporting"})
+@CapabilityDescription("Reports, for every CKAN_File_Uploader and CKAN_DataStore_Loader of the instance, the latency (p50, p95, p99 and max) and the number of requests sent to each "
+        + "CKAN endpoint since the previous report, and the bytes uploaded. One line per processor and endpoint is written to the log of the task, "
+        + "as key=value pairs, so it can be collected by a log-based metrics pipeline.")
+public class CKAN_Metrics_Reporting_Task extends AbstractReportingTask {
+
+    private static final PropertyDescriptor REPORT_IDLE_ENDPOINTS = new PropertyDescriptor.Builder()
+            .name("Report Idle Endpoints")
+            .description("Whether to also report the endpoints that received no request since the previous report")
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .required(true)
+            .build();
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(REPORT_IDLE_ENDPOINTS);
+        return Collections.unmodifiableList(descriptors);
+    }
+
+    @Override
+    public void onTrigger(final ReportingContext context) {
+        final boolean reportIdle = context.getProperty(REPORT_IDLE_ENDPOINTS).asBoolean();
+        for (final Map.Entry<String, CKAN_Metrics> processor : CKAN_Metrics.registered().entrySet()) {
+            for (final Map.Entry<String, CKAN_Metrics.Report> endpoint : processor.getValue().report().entrySet()) {
+                final CKAN_Metrics.Report report = endpoint.getValue();
+                if (report.requests == 0 && !reportIdle) {
+                    continue;
+                }
+                getLogger().info(String.format("processor=%s endpoint=%s requests=%d failures=%d p50_ms=%.1f p95_ms=%.1f p99_ms=%.1f max_ms=%.1f",
+                        processor.getKey(), endpoint.getKey(), report.requests, report.failures,
+                        report.latency.getPercentile(50, TimeUnit.MILLISECONDS), report.latency.getPercentile(95, TimeUnit.MILLISECONDS),
+                        report.latency.getPercentile(99, TimeUnit.MILLISECONDS), report.latency.getMax(TimeUnit.MILLISECONDS)));
+            }
+            final long bytesUploaded = processor.getValue().reportBytesUploaded();
+            if (bytesUploaded > 0 || reportIdle) {
+                getLogger().info(String.format("processor=%s bytes_uploaded=%d", processor.getKey(), bytesUploaded));
+            }
+            final int completionBacklog = processor.getValue().reportCompletionBacklog();
+            if (completionBacklog > 0 || (completionBacklog == 0 && reportIdle)) {
+                getLogger().info(String.format("processor=%s completion_backlog=%d", processor.getKey(), completionBacklog));
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.StringBody;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a large file to an existing CKAN resource in parts, through the multipart upload actions of ckanext-cloudstorage
+ * (cloudstorage_initiate_multipart, cloudstorage_upload_multipart and cloudstorage_finish_multipart).
+ *
+ * The parts are sent in parallel over the pooled connections, and each part confirmed by CKAN is checkpointed on disk.
+ * When an upload fails, the next attempt for the same file resumes it: only the parts that were not confirmed are sent again.
+ */
+public class CKAN_Multipart_Uploader {
+    private final Logger log = Logger.getLogger(CKAN_Multipart_Uploader.class);
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpClient httpclient;
+    private final ExecutorService partExecutor;
+    private final Path checkpointDirectory;
+    private final long partSize;
+    private final CKAN_Retry_Policy retryPolicy;
+
+    /**
+     * The http client, the executor and the retry policy are shared by the whole processor and are not owned by the uploader.
+     * @param partExecutor Executor the parts are sent from, its number of threads bounds the parts in flight
+     */
+    CKAN_Multipart_Uploader(String HOST, String api_key, CloseableHttpClient httpclient, ExecutorService partExecutor, Path checkpointDirectory, long partSize,
+                            CKAN_Retry_Policy retryPolicy) {
+        this.HOST = HOST;
+        this.api_key = api_key;
+        this.httpclient = httpclient;
+        this.partExecutor = partExecutor;
+        this.checkpointDirectory = checkpointDirectory;
+        this.partSize = partSize;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Uploads the file to the resource, resuming the previous attempt if there is one for the same file.
+     * @return the status code of the first request CKAN refused, or 200 once the upload is finished
+     * @throws IOException if a part could not be sent. The parts already confirmed are kept for the next attempt.
+     */
+    public int upload(String resourceId, String filename, File file) throws IOException {
+        final CKAN_Upload_Checkpoint checkpoint = CKAN_Upload_Checkpoint.load(checkpointDirectory, resourceId, file, partSize);
+
+        if (checkpoint.getUploadId() != null && !isInProgress(resourceId, checkpoint.getUploadId())) {
+            log.info("Multipart upload " + checkpoint.getUploadId() + " of resource " + resourceId + " no longer exists in CKAN, starting over");
+            checkpoint.delete();
+            return upload(resourceId, filename, file);
+        }
+        if (checkpoint.getUploadId() == null) {
+            int statusCode = initiate(resourceId, filename, file.length(), checkpoint);
+            if (statusCode != 200) {
+                return statusCode;
+            }
+        } else {
+            log.info("Resuming multipart upload " + checkpoint.getUploadId() + " of " + filename);
+        }
+
+        final List<Future<Integer>> parts = new ArrayList<>();
+        for (int partNumber = 1; partNumber <= checkpoint.getPartCount(); partNumber++) {
+            if (!checkpoint.isCommitted(partNumber)) {
+                final int part = partNumber;
+                parts.add(partExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return uploadPart(file, part, checkpoint);
+                    }
+                }));
+            }
+        }
+        // Every part is waited for, also after a failure, so the ones that succeed are checkpointed
+        int refused = 200;
+        IOException failure = null;
+        for (Future<Integer> part : parts) {
+            try {
+                int statusCode = part.get();
+                if (statusCode != 200 && refused == 200) {
+                    refused = statusCode;
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<Integer> other : parts) {
+                    other.cancel(true);
+                }
+                throw new IOException("Interrupted while uploading the parts of " + filename, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (refused != 200) {
+            return refused;
+        }
+
+        int statusCode = finish(checkpoint.getUploadId(), resourceId);
+        if (statusCode == 200) {
+            checkpoint.delete();
+        }
+        return statusCode;
+    }
+
+    private int initiate(String resourceId, String filename, long size, CKAN_Upload_Checkpoint checkpoint) throws IOException {
+        HttpEntity reqEntity = MultipartEntityBuilder.create()
+                .addPart("id", new StringBody(resourceId, ContentType.TEXT_PLAIN))
+                .addPart("name", new StringBody(filename, ContentType.TEXT_PLAIN))
+                .addPart("size", new StringBody(String.valueOf(size), ContentType.TEXT_PLAIN))
+                .build();
+        HttpPost postRequest = new HttpPost(HOST + "/api/action/cloudstorage_initiate_multipart");
+        postRequest.setEntity(reqEntity);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                log.error("statusCode =!=" + statusCode);
+                log.error(CKAN_Response_Reader.readForLog(response));
+                return statusCode;
+            }
+            String uploadId = CKAN_Response_Reader.readResultField(response, "id");
+            if (uploadId == null) {
+                throw new IOException("CKAN did not return the id of the multipart upload of " + filename);
+            }
+            log.info("Started multipart upload " + uploadId + " of " + filename + " in " + checkpoint.getPartCount() + " parts");
+            checkpoint.start(uploadId);
+            return statusCode;
+        }
+    }
+
+    /**
+     * Asks CKAN whether the upload saved in the checkpoint can still be resumed
+     */
+    private boolean isInProgress(String resourceId, String uploadId) throws IOException {
+        HttpEntity reqEntity = MultipartEntityBuilder.create()
+                .addPart("id", new StringBody(resourceId, ContentType.TEXT_PLAIN))
+                .build();
+        HttpPost postRequest = new HttpPost(HOST + "/api/action/cloudstorage_check_multipart");
+        postRequest.setEntity(reqEntity);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                String body = CKAN_Response_Reader.readForLog(response);
+                if (CKAN_Retry_Policy.isTransient(statusCode, CKAN_Response_Reader.readErrorType(body))) {
+                    // The saved progress must not be dropped only because CKAN could not answer
+                    throw new CKAN_Exception("cloudstorage_check_multipart", statusCode, body);
+                }
+                return false;
+            }
+            return uploadId.equals(CKAN_Response_Reader.readResultField(response, "upload", "id"));
+        }
+    }
+
+    private int uploadPart(File file, int partNumber, CKAN_Upload_Checkpoint checkpoint) throws IOException {
+        // The part is read again from the file for each attempt, so a part that fails with a transient error can be retried
+        final CKAN_Resource_Content part = CKAN_Resource_Content.ofFileRange(file, checkpoint.getPartOffset(partNumber), checkpoint.getPartLength(partNumber));
+        HttpEntity reqEntity = MultipartEntityBuilder.create()
+                .addPart("uploadId", new StringBody(checkpoint.getUploadId(), ContentType.TEXT_PLAIN))
+                .addPart("partNumber", new StringBody(String.valueOf(partNumber), ContentType.TEXT_PLAIN))
+                .addPart("upload", new AbstractContentBody(CKAN_Content_Types.forFilename(file.getName())) {
+                    @Override
+                    public String getFilename() {
+                        return file.getName();
+                    }
+
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        try (InputStream in = part.open()) {
+                            byte[] buffer = new byte[8192];
+                            int read;
+                            while ((read = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, read);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public String getTransferEncoding() {
+                        return MIME.ENC_BINARY;
+                    }
+
+                    @Override
+                    public long getContentLength() {
+                        return part.length();
+                    }
+                })
+                .build();
+        HttpPost postRequest = new HttpPost(HOST + "/api/action/cloudstorage_upload_multipart");
+        postRequest.setEntity(reqEntity);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = CKAN_Response_Reader.readForLog(response);
+            if (statusCode != 200) {
+                log.error("Part " + partNumber + " of " + file.getName() + " refused, statusCode =!=" + statusCode);
+                log.error(body);
+                return statusCode;
+            }
+            checkpoint.commit(partNumber);
+            log.debug("Part " + partNumber + "/" + checkpoint.getPartCount() + " of " + file.getName() + " uploaded");
+            return statusCode;
+        }
+    }
+
+    private int finish(String uploadId, String resourceId) throws IOException {
+        HttpEntity reqEntity = MultipartEntityBuilder.create()
+                .addPart("uploadId", new StringBody(uploadId, ContentType.TEXT_PLAIN))
+                .addPart("id", new StringBody(resourceId, ContentType.TEXT_PLAIN))
+                .addPart("save_action", new StringBody("go-metadata", ContentType.TEXT_PLAIN))
+                .build();
+        HttpPost postRequest = new HttpPost(HOST + "/api/action/cloudstorage_finish_multipart");
+        postRequest.setEntity(reqEntity);
+        postRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, postRequest)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = CKAN_Response_Reader.readForLog(response);
+            if (statusCode != 200) {
+                log.error("statusCode =!=" + statusCode);
+                log.error(body);
+            } else {
+                log.info("Finished multipart upload " + uploadId + " of resource " + resourceId);
+            }
+            return statusCode;
+        }
+    }
+}
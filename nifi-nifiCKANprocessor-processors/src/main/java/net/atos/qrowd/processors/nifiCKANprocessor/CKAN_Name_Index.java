@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Immutable set of names stored as the sorted 64-bit hashes of the names: 8 bytes per name instead of the 60 to 100 bytes
+ * of a String in a HashSet, so the names of tens of thousands of packages take a few hundred KB. Lookups are a binary search.
+ *
+ * Two different names can have the same hash, so a name can be reported as present while it is not. With 64-bit hashes
+ * the probability is around one in 10^10 for 100 000 names, and callers have to handle a missing name anyway
+ * (it may have been deleted since the set was built).
+ */
+final class CKAN_Name_Index {
+
+    static final CKAN_Name_Index EMPTY = new CKAN_Name_Index(new long[0]);
+
+    private final long[] hashes;
+
+    private CKAN_Name_Index(long[] hashes) {
+        this.hashes = hashes;
+    }
+
+    boolean contains(String name) {
+        return Arrays.binarySearch(hashes, hash(name)) >= 0;
+    }
+
+    int size() {
+        return hashes.length;
+    }
+
+    /**
+     * The names of this set without the removed ones, plus the added ones (a name both removed and added is kept)
+     */
+    CKAN_Name_Index merge(Builder added, Collection<String> removed) {
+        final long[] removedHashes = new long[removed.size()];
+        int removedCount = 0;
+        for (String name : removed) {
+            if (removedCount < removedHashes.length) {
+                removedHashes[removedCount++] = hash(name);
+            }
+        }
+        Arrays.sort(removedHashes, 0, removedCount);
+        final long[] merged = new long[hashes.length + added.size];
+        int size = 0;
+        for (long h : hashes) {
+            if (Arrays.binarySearch(removedHashes, 0, removedCount, h) < 0) {
+                merged[size++] = h;
+            }
+        }
+        System.arraycopy(added.hashes, 0, merged, size, added.size);
+        return build(merged, size + added.size);
+    }
+
+    /**
+     * FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits of the short names
+     */
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Sorts the first length values and removes their duplicates
+     */
+    private static CKAN_Name_Index build(long[] values, int length) {
+        Arrays.sort(values, 0, length);
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            if (size == 0 || values[size - 1] != values[i]) {
+                values[size++] = values[i];
+            }
+        }
+        return new CKAN_Name_Index(Arrays.copyOf(values, size));
+    }
+
+    /**
+     * Collects names, as hashes, while they are read from a response. Not thread-safe.
+     */
+    static final class Builder {
+        private long[] hashes = new long[1024];
+        private int size;
+
+        void add(String name) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            hashes[size++] = hash(name);
+        }
+
+        int size() {
+            return size;
+        }
+
+        CKAN_Name_Index build() {
+            return CKAN_Name_Index.build(Arrays.copyOf(hashes, size), size);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.processors.pojos.Result;
+import net.atos.qrowd.processors.pojos.Result_;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory cache of the packages confirmed to exist in CKAN, each with its resources indexed by name,
+ * as returned by package_show. Finding the resource of a file is then a lookup in its package instead of a resource_search
+ * on the whole instance, which would also find the resources with the same name in other packages.
+ *
+ * Entries expire after the configured time to live, and once the maximum number of entries is reached
+ * the least recently used one is evicted. The resources created or updated by the processor are recorded in the entry of their package,
+ * but the changes made by others are only seen once the entry expires.
+ * It is shared by all the concurrent tasks of the processor, so every access is synchronized.
+ */
+public class CKAN_Package_Cache {
+
+    private final long ttlNanos;
+    // package name -> entry, in access order for the LRU eviction
+    private final Map<String, Entry> entries;
+
+    CKAN_Package_Cache(long ttl, TimeUnit unit, final int maxEntries) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return null if the package is not cached or has expired
+     */
+    public synchronized Entry get(String packageName) {
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(packageName);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized boolean contains(String packageName) {
+        return get(packageName) != null;
+    }
+
+    /**
+     * @param resources The resources of the package, as returned by package_show
+     */
+    public synchronized Entry put(String packageName, String packageId, List<Result_> resources) {
+        Entry entry = new Entry(packageId, resources, System.nanoTime() + ttlNanos);
+        entries.put(packageName, entry);
+        return entry;
+    }
+
+    public synchronized void invalidate(String packageName) {
+        entries.remove(packageName);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * A cached package. Its resources are updated by the concurrent tasks, so every access is synchronized.
+     */
+    public static final class Entry {
+        private final String packageId;
+        private final long expiresAt;
+        // resource name -> the resources with that name, usually one
+        private final Map<String, List<Result_>> resourcesByName = new HashMap<>();
+
+        private Entry(String packageId, List<Result_> resources, long expiresAt) {
+            this.packageId = packageId;
+            this.expiresAt = expiresAt;
+            for (Result_ resource : resources) {
+                if (resource.getName() != null && resource.getId() != null) {
+                    resourcesByName.computeIfAbsent(resource.getName(), k -> new ArrayList<>(1)).add(resource);
+                }
+            }
+        }
+
+        /**
+         * @return the id of the package, null if it was not returned
+         */
+        public String getPackageId() {
+            return packageId;
+        }
+
+        /**
+         * The resources of the package with that name, in the shape of a resource_search result:
+         * the count of them and the first two, callers only need to tell apart none, one or more than one
+         */
+        public synchronized Result find(String name) {
+            List<Result_> found = resourcesByName.get(name);
+            List<Result_> results = found == null ? new ArrayList<Result_>() : new ArrayList<>(found.subList(0, Math.min(2, found.size())));
+            return new Result().withCount(found == null ? 0 : found.size()).withResults(results);
+        }
+
+        /**
+         * Records a resource created or updated, replacing what was known of it
+         */
+        public synchronized void put(String name, String id, String hash, Long size) {
+            List<Result_> named = resourcesByName.computeIfAbsent(name, k -> new ArrayList<>(1));
+            for (Iterator<Result_> it = named.iterator(); it.hasNext(); ) {
+                if (id.equals(it.next().getId())) {
+                    it.remove();
+                }
+            }
+            named.add(new Result_().withId(id).withName(name).withHash(hash).withSize(size));
+        }
+
+        /**
+         * Forgets a resource that no longer exists in CKAN
+         */
+        public synchronized void remove(String name, String id) {
+            List<Result_> named = resourcesByName.get(name);
+            if (named == null) {
+                return;
+            }
+            for (Iterator<Result_> it = named.iterator(); it.hasNext(); ) {
+                if (id.equals(it.next().getId())) {
+                    it.remove();
+                }
+            }
+            if (named.isEmpty()) {
+                resourcesByName.remove(name);
+            }
+        }
+    }
+}
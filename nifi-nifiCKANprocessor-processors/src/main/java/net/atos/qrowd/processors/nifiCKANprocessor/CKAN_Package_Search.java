@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.processors.pojos.Result_;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Searches the packages of CKAN modified since a point in time, oldest first, with package_search.
+ *
+ * The dates are compared by the search index at millisecond precision, while CKAN keeps microseconds: every date handled here is
+ * truncated to milliseconds, so that a package read again at the date it was last seen is recognized.
+ */
+public class CKAN_Package_Search {
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpClient httpclient;
+    private final CKAN_Retry_Policy retryPolicy;
+
+    /**
+     * The http client and the retry policy are shared by the whole processor and are not owned by the search
+     */
+    CKAN_Package_Search(String HOST, String api_key, CloseableHttpClient httpclient, CKAN_Retry_Policy retryPolicy) {
+        this.HOST = HOST;
+        this.api_key = api_key;
+        this.httpclient = httpclient;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * A package found, with what is needed to list its resources
+     */
+    public static final class Package {
+        private final String id;
+        private final String name;
+        private final String organization;
+        private final Instant modified;
+        private final List<Result_> resources;
+
+        Package(String id, String name, String organization, Instant modified, List<Result_> resources) {
+            this.id = id;
+            this.name = name;
+            this.organization = organization;
+            this.modified = modified;
+            this.resources = resources;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the name of the organization of the package, null if it has none
+         */
+        public String getOrganization() {
+            return organization;
+        }
+
+        /**
+         * @return the metadata_modified of the package, truncated to milliseconds
+         */
+        public Instant getModified() {
+            return modified;
+        }
+
+        public List<Result_> getResources() {
+            return resources;
+        }
+    }
+
+    /**
+     * One page of the packages modified at or after since, and at least lagSeconds ago, in the order of their modification
+     * @param since null to search all the packages
+     * @param organizations names of the organizations to search in, all of them if empty
+     * @param packageNames names of the packages to search, all of them if empty
+     * @param start number of matching packages to skip
+     */
+    public List<Package> modifiedSince(Instant since, long lagSeconds, Collection<String> organizations, Collection<String> packageNames,
+                                       int start, int rows) throws IOException {
+        final URIBuilder uri;
+        try {
+            uri = new URIBuilder(HOST + "/api/action/package_search");
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid CKAN url " + HOST, e);
+        }
+        // package_search takes a single filter query
+        final StringBuilder filter = new StringBuilder("metadata_modified:[" + (since == null ? "*" : since.toString()) + " TO NOW-" + lagSeconds + "SECONDS]");
+        if (!organizations.isEmpty()) {
+            filter.append(" AND organization:(").append(anyOf(organizations)).append(')');
+        }
+        if (!packageNames.isEmpty()) {
+            filter.append(" AND name:(").append(anyOf(packageNames)).append(')');
+        }
+        uri.addParameter("q", "*:*")
+                .addParameter("fq", filter.toString())
+                .addParameter("sort", "metadata_modified asc, name asc")
+                .addParameter("include_private", "true")
+                .addParameter("start", String.valueOf(start))
+                .addParameter("rows", String.valueOf(rows));
+        final HttpGet getRequest;
+        try {
+            getRequest = new HttpGet(uri.build());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid CKAN url " + HOST, e);
+        }
+        getRequest.setHeader("X-CKAN-API-Key", api_key);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, getRequest)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 200) {
+                throw new CKAN_Exception("package_search", statusCode, CKAN_Response_Reader.readForLog(response));
+            }
+            final List<Package> packages = new ArrayList<>(rows);
+            CKAN_Response_Reader.readSearchedPackages(response, packages);
+            return packages;
+        }
+    }
+
+    private static String anyOf(Collection<String> names) {
+        final StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            sb.append('"').append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a date of CKAN, like 2018-03-01T10:00:00.123456, which is in UTC without saying it
+     * @return the date truncated to milliseconds, null if there is none or it cannot be parsed
+     */
+    static Instant parseDate(String date) {
+        if (date == null || date.isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(date.endsWith("Z") ? date.substring(0, date.length() - 1) : date)
+                    .toInstant(ZoneOffset.UTC).truncatedTo(ChronoUnit.MILLIS);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the rate of the requests sent to CKAN, for all the processors sharing a CKAN Client Service.
+ *
+ * A token bucket holding one second of requests: after an idle time up to requestsPerSecond requests are sent at once,
+ * then they are spaced by 1/requestsPerSecond. Each caller reserves the next free slot, so the waiting requests are sent
+ * in their order of arrival. It is shared by all the concurrent tasks, so the reservations are synchronized.
+ */
+public class CKAN_Rate_Limiter {
+    private final long intervalNanos;
+    // How far behind the current time the next free slot may be: the requests the bucket holds, besides the one being sent
+    private final long burstNanos;
+    // When the next request may be sent
+    private long nextFree;
+
+    CKAN_Rate_Limiter(int requestsPerSecond) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        this.burstNanos = (requestsPerSecond - 1) * intervalNanos;
+        this.nextFree = System.nanoTime() - burstNanos;
+    }
+
+    /**
+     * Waits until a request can be sent
+     * @throws InterruptedIOException if interrupted while waiting, the slot is then lost
+     */
+    public void acquire() throws InterruptedIOException {
+        final long waitNanos = reserve();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a request to CKAN");
+            }
+        }
+    }
+
+    /**
+     * Takes the next free slot
+     * @return how long to wait for it
+     */
+    private synchronized long reserve() {
+        final long now = System.nanoTime();
+        final long slot = Math.max(nextFree, now - burstNanos);
+        nextFree = slot + intervalNanos;
+        return slot - now;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.log4j.Logger;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the records of a RecordReader to the DataStore table of a resource with datastore_upsert, in batches bounded both in rows and in size.
+ *
+ * The records are serialized into the next batch while the previous ones are being sent, and up to parallelBatches batches are in flight at the same time.
+ * Reading waits while that many batches are in flight, so the memory used is bounded by parallelBatches + 1 batches whatever the number of records.
+ * The batches may reach CKAN in any order, so the rows of the table are not in the order of the records.
+ */
+public class CKAN_Record_Upserter {
+    private final Logger log = Logger.getLogger(CKAN_Record_Upserter.class);
+
+    private final CKAN_DataStore_Client dataStore;
+    private final ExecutorService batchExecutor;
+    private final int parallelBatches;
+    private final int batchRows;
+    private final long maxBatchChars;
+    // Rows CKAN confirmed, also when a later batch fails
+    private final AtomicLong rowsSent = new AtomicLong();
+    // Whether a failed batch may still have been done by CKAN
+    private volatile boolean uncertain;
+
+    /**
+     * The executor is shared by the whole processor and is not owned by the upserter.
+     * @param parallelBatches Maximum number of batches in flight for this upserter
+     * @param batchRows Maximum number of rows of a batch
+     * @param maxBatchChars Size of the JSON of the rows past which a batch is sent, even if it has fewer rows. A larger single row is sent alone.
+     */
+    CKAN_Record_Upserter(CKAN_DataStore_Client dataStore, ExecutorService batchExecutor, int parallelBatches, int batchRows, long maxBatchChars) {
+        this.dataStore = dataStore;
+        this.batchExecutor = batchExecutor;
+        this.parallelBatches = parallelBatches;
+        this.batchRows = batchRows;
+        this.maxBatchChars = maxBatchChars;
+    }
+
+    /**
+     * Sends every record of the reader.
+     * @param method insert, or upsert when the table has a primary key
+     * @return the number of rows sent
+     * @throws IOException if a batch could not be sent. No new batch is sent afterwards, but the ones already in flight are waited for,
+     * and getRowsSent() tells how many rows CKAN received. isUncertain() tells whether a failed batch may have been received too.
+     */
+    public long upsert(String resourceId, String method, RecordReader reader) throws IOException, MalformedRecordException {
+        final Semaphore slots = new Semaphore(parallelBatches);
+        final List<Future<Integer>> inFlight = new ArrayList<>();
+        IOException failure = null;
+        try {
+            StringWriter records = new StringWriter();
+            JsonWriter json = new JsonWriter(records).beginArray();
+            int rows = 0;
+            Record record;
+            while (failure == null && (record = reader.nextRecord()) != null) {
+                writeRecord(json, record);
+                rows++;
+                if (rows == batchRows || records.getBuffer().length() >= maxBatchChars) {
+                    json.endArray().flush();
+                    failure = submit(resourceId, method, records.toString(), rows, slots, inFlight);
+                    records = new StringWriter();
+                    json = new JsonWriter(records).beginArray();
+                    rows = 0;
+                }
+            }
+            if (failure == null && rows > 0) {
+                json.endArray().flush();
+                failure = submit(resourceId, method, records.toString(), rows, slots, inFlight);
+            }
+            // Every batch is waited for, also after a failure, so that the rows sent are known
+            for (Future<Integer> batch : inFlight) {
+                final IOException batchFailure = await(batch);
+                if (failure == null) {
+                    failure = batchFailure;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Integer> batch : inFlight) {
+                batch.cancel(true);
+            }
+            throw new IOException("Interrupted while sending the records of resource " + resourceId, e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return rowsSent.get();
+    }
+
+    public long getRowsSent() {
+        return rowsSent.get();
+    }
+
+    public boolean isUncertain() {
+        return uncertain;
+    }
+
+    /**
+     * Waits for a free slot, then sends the batch from the executor
+     * @return the failure of a batch completed meanwhile, if any
+     */
+    private IOException submit(String resourceId, String method, String records, int rows, Semaphore slots, List<Future<Integer>> inFlight)
+            throws InterruptedException {
+        slots.acquire();
+        try {
+            inFlight.add(batchExecutor.submit(() -> {
+                try {
+                    dataStore.upsert(resourceId, method, records);
+                    rowsSent.addAndGet(rows);
+                    log.debug("Sent " + rows + " rows to the DataStore table of resource " + resourceId);
+                    return rows;
+                } catch (IOException e) {
+                    uncertain |= mayHaveBeenDone(e);
+                    throw e;
+                } finally {
+                    slots.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+        // The batches already done are forgotten, so the list stays as small as the number in flight
+        for (Iterator<Future<Integer>> it = inFlight.iterator(); it.hasNext(); ) {
+            final Future<Integer> batch = it.next();
+            if (batch.isDone()) {
+                it.remove();
+                final IOException failure = await(batch);
+                if (failure != null) {
+                    return failure;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static IOException await(Future<Integer> batch) throws InterruptedException {
+        try {
+            batch.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * A batch was not done when it was not sent, was throttled or was rejected by CKAN itself.
+     * Read timeouts, dropped connections and server errors (a proxy answering 504) leave it unknown.
+     */
+    private static boolean mayHaveBeenDone(IOException e) {
+        if (e instanceof CKAN_Exception) {
+            final CKAN_Exception ckanException = (CKAN_Exception) e;
+            return ckanException.isTransient() && ckanException.getStatusCode() != 429 && ckanException.getStatusCode() != -1;
+        }
+        return !CKAN_Retry_Policy.isNotReceived(e);
+    }
+
+    /**
+     * Type of the DataStore field of each field of the schema, in the order of the schema.
+     * Records, maps and arrays are stored as json, and the fields that can hold several types as text.
+     */
+    public static Map<String, String> fieldsOf(RecordSchema schema) {
+        final Map<String, String> fields = new LinkedHashMap<>();
+        for (RecordField field : schema.getFields()) {
+            fields.put(field.getFieldName(), dataStoreType(field));
+        }
+        return fields;
+    }
+
+    private static String dataStoreType(RecordField field) {
+        switch (field.getDataType().getFieldType()) {
+            case BOOLEAN:
+                return "bool";
+            case BYTE:
+            case SHORT:
+            case INT:
+                return "int4";
+            case LONG:
+                return "int8";
+            case BIGINT:
+                return "numeric";
+            case FLOAT:
+            case DOUBLE:
+                return "float8";
+            case DATE:
+                return "date";
+            case TIME:
+                return "time";
+            case TIMESTAMP:
+                return "timestamp";
+            case RECORD:
+            case MAP:
+            case ARRAY:
+                return "json";
+            default:
+                return "text";
+        }
+    }
+
+    private static void writeRecord(JsonWriter json, Record record) throws IOException {
+        json.beginObject();
+        for (String fieldName : record.getSchema().getFieldNames()) {
+            json.name(fieldName);
+            writeValue(json, record.getValue(fieldName));
+        }
+        json.endObject();
+    }
+
+    private static void writeValue(JsonWriter json, Object value) throws IOException {
+        if (value == null) {
+            json.nullValue();
+        } else if (value instanceof Record) {
+            writeRecord(json, (Record) value);
+        } else if (value instanceof Map) {
+            json.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                json.name(String.valueOf(entry.getKey()));
+                writeValue(json, entry.getValue());
+            }
+            json.endObject();
+        } else if (value instanceof Object[]) {
+            json.beginArray();
+            for (Object element : (Object[]) value) {
+                writeValue(json, element);
+            }
+            json.endArray();
+        } else if (value instanceof Boolean) {
+            json.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            final double number = ((Number) value).doubleValue();
+            // JSON has no NaN nor infinity, and neither have the numeric columns
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                json.nullValue();
+            } else {
+                json.value((Number) value);
+            }
+        } else if (value instanceof Date) {
+            // java.sql.Date, Time and Timestamp already print in a format PostgreSQL reads, any other date is a timestamp
+            json.value(value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof Timestamp
+                    ? value.toString() : new Timestamp(((Date) value).getTime()).toString());
+        } else {
+            json.value(value.toString());
+        }
+    }
+}
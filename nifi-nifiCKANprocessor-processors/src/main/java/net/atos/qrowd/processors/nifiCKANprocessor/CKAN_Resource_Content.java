@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of a resource to upload, that can be read more than once (e.g. once to compare its hash and once to upload it).
+ */
+public interface CKAN_Resource_Content {
+
+    /**
+     * Opens a new stream over the whole content, to be closed by the caller
+     */
+    InputStream open() throws IOException;
+
+    /**
+     * Exact number of bytes of the content
+     */
+    long length();
+
+    /**
+     * A stream over the whole content that is only opened by its first read, so that nothing is left open when it is never read,
+     * e.g. when the request it was prepared for is not sent after all. Closing it closes the content if it was opened.
+     */
+    default InputStream openOnFirstRead() {
+        return new InputStream() {
+            private InputStream in;
+            private boolean closed;
+
+            private InputStream in() throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (in == null) {
+                    in = open();
+                }
+                return in;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return in().read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return in().read(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed = true;
+                if (in != null) {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    static CKAN_Resource_Content ofFile(final File file) {
+        return new CKAN_Resource_Content() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public long length() {
+                return file.length();
+            }
+        };
+    }
+
+    /**
+     * The length bytes of the file that start at offset
+     */
+    static CKAN_Resource_Content ofFileRange(final File file, final long offset, final long length) {
+        return new CKAN_Resource_Content() {
+            @Override
+            public InputStream open() throws IOException {
+                final FileInputStream in = new FileInputStream(file);
+                try {
+                    // FileInputStream skips by seeking, without reading the skipped bytes
+                    long skipped = 0;
+                    while (skipped < offset) {
+                        long n = in.skip(offset - skipped);
+                        if (n <= 0) {
+                            throw new IOException(file + " is shorter than " + offset + " bytes");
+                        }
+                        skipped += n;
+                    }
+                } catch (IOException ioe) {
+                    in.close();
+                    throw ioe;
+                }
+                return new FilterInputStream(in) {
+                    private long remaining = length;
+
+                    @Override
+                    public int read() throws IOException {
+                        if (remaining <= 0) {
+                            return -1;
+                        }
+                        int b = super.read();
+                        if (b != -1) {
+                            remaining--;
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (remaining <= 0) {
+                            return -1;
+                        }
+                        int read = super.read(b, off, (int) Math.min(len, remaining));
+                        if (read > 0) {
+                            remaining -= read;
+                        }
+                        return read;
+                    }
+                };
+            }
+
+            @Override
+            public long length() {
+                return length;
+            }
+        };
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.processors.pojos.Result_;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds CKAN resources and downloads their content, either as a single stream or, for the large ones, in segments
+ * requested in parallel with HTTP Range headers over the pooled connections.
+ *
+ * The segments are written in place in a file of the download directory, and each one received is checkpointed on disk.
+ * When a download fails, the next attempt for the same resource resumes it: only the missing segments are requested again,
+ * with an If-Range header so that a content changed in between is downloaded again whole instead of being mixed with the old one.
+ *
+ * The content is often stored elsewhere than in CKAN (a link, or a redirect to the storage of the FileStore), so the API key is only
+ * sent to the CKAN host: the redirects of a download are followed here rather than by the http client, which would copy the key to
+ * whatever host they point to. The probe and the segments ask for the content as is, since the length and the ranges are those
+ * of the uncompressed content.
+ */
+public class CKAN_Resource_Downloader {
+    private final Logger log = Logger.getLogger(CKAN_Resource_Downloader.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+
+    private final String HOST;
+    private final String api_key;
+    private final CloseableHttpClient httpclient;
+    private final ExecutorService segmentExecutor;
+    private final Path downloadDirectory;
+    private final long segmentSize;
+    private final CKAN_Retry_Policy retryPolicy;
+    private final String ckanOrigin;
+    private final RequestConfig downloadConfig;
+    // Ids of the resources being downloaded in segments, whose checkpoint must not be used by another task at the same time
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The http client, the executor and the retry policy are shared by the whole processor and are not owned by the downloader.
+     * @param segmentExecutor Executor the segments are downloaded from, its number of threads bounds the segments in flight
+     * @param downloadDirectory null if the resources are only downloaded as a single stream
+     */
+    CKAN_Resource_Downloader(String HOST, String api_key, CloseableHttpClient httpclient, ExecutorService segmentExecutor, Path downloadDirectory,
+                             long segmentSize, CKAN_Retry_Policy retryPolicy) {
+        this.HOST = HOST;
+        this.api_key = api_key;
+        this.httpclient = httpclient;
+        this.segmentExecutor = segmentExecutor;
+        this.downloadDirectory = downloadDirectory;
+        this.segmentSize = segmentSize;
+        this.retryPolicy = retryPolicy;
+        this.ckanOrigin = originOf(URI.create(HOST));
+        // The timeouts of the client are kept, the request config replaces the default one of the client as a whole
+        final RequestConfig clientConfig = httpclient instanceof Configurable ? ((Configurable) httpclient).getConfig() : null;
+        this.downloadConfig = RequestConfig.copy(clientConfig != null ? clientConfig : RequestConfig.DEFAULT).setRedirectsEnabled(false).build();
+    }
+
+    /**
+     * What the server tells of the content of a resource before it is downloaded
+     */
+    public static final class Probe {
+        private final long length;
+        private final boolean rangesAccepted;
+        private final String validator;
+        private final String contentType;
+
+        private Probe(long length, boolean rangesAccepted, String validator, String contentType) {
+            this.length = length;
+            this.rangesAccepted = rangesAccepted;
+            this.validator = validator;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @return the size of the content, -1 if unknown
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public boolean isRangesAccepted() {
+            return rangesAccepted;
+        }
+
+        /**
+         * @return the strong ETag, or else the Last-Modified date, of the content, null if the server sends neither
+         */
+        public String getValidator() {
+            return validator;
+        }
+
+        /**
+         * @return null if the server does not send it
+         */
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    /**
+     * Looks up a resource by its id with resource_show
+     * @return null if there is no such resource
+     */
+    public Result_ showResource(String resourceId) throws IOException {
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, action("resource_show", resourceId))) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 404) {
+                CKAN_Response_Reader.readForLog(response);
+                return null;
+            }
+            if (statusCode != 200) {
+                throw new CKAN_Exception("resource_show", statusCode, CKAN_Response_Reader.readForLog(response));
+            }
+            return CKAN_Response_Reader.readResource(response);
+        }
+    }
+
+    /**
+     * Looks up a resource by its name in its package with package_show. The package is read for every lookup, rather than taken
+     * from the package cache, so the url and hash are the current ones.
+     * @return null if there is no such package or resource
+     * @throws CKAN_Exception if the package has several resources with that name
+     */
+    public Result_ findResource(String packageName, String resourceName) throws IOException {
+        final List<Result_> resources = new ArrayList<>();
+        try (CloseableHttpResponse response = retryPolicy.execute(httpclient, action("package_show", packageName))) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 404) {
+                CKAN_Response_Reader.readForLog(response);
+                return null;
+            }
+            if (statusCode != 200) {
+                throw new CKAN_Exception("package_show", statusCode, CKAN_Response_Reader.readForLog(response));
+            }
+            CKAN_Response_Reader.readPackage(response, resources);
+        }
+        Result_ found = null;
+        for (Result_ resource : resources) {
+            if (resourceName.equals(resource.getName())) {
+                if (found != null) {
+                    throw new CKAN_Exception("Found more than one resource named " + resourceName + " in package " + packageName, false);
+                }
+                found = resource;
+            }
+        }
+        return found;
+    }
+
+    private HttpGet action(String action, String id) throws IOException {
+        final HttpGet getRequest;
+        try {
+            getRequest = new HttpGet(new URIBuilder(HOST + "/api/action/" + action).addParameter("id", id).build());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid CKAN url " + HOST, e);
+        }
+        getRequest.setHeader("X-CKAN-API-Key", api_key);
+        return getRequest;
+    }
+
+    /**
+     * Asks the server for the size of the content and whether it can be downloaded in segments, without downloading it
+     */
+    public Probe probe(String url) throws IOException {
+        try (CloseableHttpResponse response = download(identity(new HttpHead(url)))) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == 405 || statusCode == 501) {
+                // No HEAD: the content can still be downloaded, as a single stream
+                return new Probe(-1, false, null, null);
+            }
+            if (statusCode != 200) {
+                throw new CKAN_Exception("Download of " + url, statusCode, null);
+            }
+            final Header length = response.getFirstHeader("Content-Length");
+            final Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+            final Header etag = response.getFirstHeader("ETag");
+            final Header lastModified = response.getFirstHeader("Last-Modified");
+            final Header contentType = response.getFirstHeader("Content-Type");
+            // A weak ETag cannot be used in an If-Range header
+            final String validator = etag != null && !etag.getValue().startsWith("W/") ? etag.getValue()
+                    : lastModified != null ? lastModified.getValue() : null;
+            long contentLength = -1;
+            try {
+                contentLength = length == null ? -1 : Long.parseLong(length.getValue().trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid Content-Length " + length.getValue() + " for " + url);
+            }
+            return new Probe(contentLength, acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue().trim()), validator,
+                    contentType == null ? null : contentType.getValue());
+        }
+    }
+
+    /**
+     * Opens the whole content as a single stream
+     * @return the response, to be closed by the caller once its content is read
+     */
+    public CloseableHttpResponse open(String url) throws IOException {
+        final CloseableHttpResponse response = download(new HttpGet(url));
+        final int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != 200) {
+            try {
+                throw new CKAN_Exception("Download of " + url, statusCode, CKAN_Response_Reader.readForLog(response));
+            } finally {
+                response.close();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Downloads the content in segments to the download directory, resuming the previous attempt if there is one for the same content.
+     * @return the checkpoint of the complete download, whose data file holds the content. The caller deletes it once consumed.
+     * @throws IOException if a segment could not be downloaded. The segments already received are kept for the next attempt.
+     */
+    public CKAN_Download_Checkpoint download(String resourceId, String url, Probe probe) throws IOException {
+        if (!inProgress.add(resourceId)) {
+            throw new CKAN_Exception("Resource " + resourceId + " is already being downloaded", true);
+        }
+        try {
+            final CKAN_Download_Checkpoint checkpoint = CKAN_Download_Checkpoint.load(downloadDirectory, resourceId, url, probe.getLength(),
+                    probe.getValidator(), segmentSize);
+            if (checkpoint.getCommittedCount() > 0) {
+                log.info("Resuming download of resource " + resourceId + ", " + checkpoint.getCommittedCount() + " of " + checkpoint.getSegmentCount() + " segments already received");
+            } else {
+                log.info("Downloading resource " + resourceId + " in " + checkpoint.getSegmentCount() + " segments");
+            }
+            try (FileChannel channel = FileChannel.open(checkpoint.getDataFile(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                downloadSegments(url, channel, checkpoint);
+            }
+            return checkpoint;
+        } finally {
+            inProgress.remove(resourceId);
+        }
+    }
+
+    private void downloadSegments(String url, FileChannel channel, CKAN_Download_Checkpoint checkpoint) throws IOException {
+        final List<Future<Integer>> segments = new ArrayList<>();
+        for (int segmentNumber = 1; segmentNumber <= checkpoint.getSegmentCount(); segmentNumber++) {
+            if (!checkpoint.isCommitted(segmentNumber)) {
+                final int segment = segmentNumber;
+                segments.add(segmentExecutor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return downloadSegment(url, channel, segment, checkpoint);
+                    }
+                }));
+            }
+        }
+        // Every segment is waited for, also after a failure, so the ones that succeed are checkpointed
+        int refused = 206;
+        IOException failure = null;
+        for (Future<Integer> segment : segments) {
+            try {
+                int statusCode = segment.get();
+                if (statusCode != 206 && refused == 206) {
+                    refused = statusCode;
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<Integer> other : segments) {
+                    other.cancel(true);
+                }
+                throw new IOException("Interrupted while downloading the segments of " + url, e);
+            }
+        }
+        if (refused == 200) {
+            // The whole content was sent instead of a segment: it changed since the download started
+            checkpoint.delete();
+            throw new CKAN_Exception("The content of " + url + " changed while it was downloaded, it will be downloaded again", true);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (refused != 206) {
+            throw new CKAN_Exception("Download of " + url, refused, null);
+        }
+    }
+
+    /**
+     * @return 206 once the segment is written and checkpointed, else the status code of the response, whose content is not read
+     */
+    private int downloadSegment(String url, FileChannel channel, int segment, CKAN_Download_Checkpoint checkpoint) throws IOException {
+        final long offset = checkpoint.getSegmentOffset(segment);
+        final long end = offset + checkpoint.getSegmentLength(segment);
+        final HttpGet getRequest = identity(new HttpGet(url));
+        getRequest.setHeader("Range", "bytes=" + offset + "-" + (end - 1));
+        if (checkpoint.getValidator() != null) {
+            getRequest.setHeader("If-Range", checkpoint.getValidator());
+        }
+
+        try (CloseableHttpResponse response = download(getRequest)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != 206) {
+                log.error("Segment " + segment + " of " + url + " refused, statusCode =!=" + statusCode);
+                return statusCode;
+            }
+            final Header contentRange = response.getFirstHeader("Content-Range");
+            if (contentRange != null && !contentRange.getValue().trim().startsWith("bytes " + offset + "-")) {
+                throw new CKAN_Exception("Segment " + segment + " of " + url + " answered with the range " + contentRange.getValue(), false);
+            }
+            final HttpEntity entity = response.getEntity();
+            final InputStream in = entity.getContent();
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = offset;
+            while (position < end) {
+                final int read;
+                try {
+                    read = in.read(buffer.array(), 0, (int) Math.min(BUFFER_SIZE, end - position));
+                } catch (IOException e) {
+                    throw interrupted(url, position - offset, e);
+                }
+                if (read == -1) {
+                    throw new CKAN_Exception("Segment " + segment + " of " + url + " ended after " + (position - offset) + " bytes", true);
+                }
+                buffer.position(0).limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            channel.force(false);
+            checkpoint.commit(segment);
+            log.debug("Segment " + segment + "/" + checkpoint.getSegmentCount() + " of " + url + " downloaded");
+            return statusCode;
+        }
+    }
+
+    /**
+     * A connection dropped in the middle of a content is worth trying again, like one that could not be opened
+     */
+    static CKAN_Exception interrupted(String url, long transferred, IOException cause) {
+        final CKAN_Exception interrupted = new CKAN_Exception("Download of " + url + " interrupted after " + transferred + " bytes: " + cause, true);
+        interrupted.initCause(cause);
+        return interrupted;
+    }
+
+    /**
+     * Without compression, the Content-Length and the ranges are those of the content itself
+     */
+    private static <T extends HttpRequestBase> T identity(T request) {
+        request.setHeader("Accept-Encoding", "identity");
+        return request;
+    }
+
+    /**
+     * Executes a request for the content, following its redirects. The API key lets CKAN serve the private resources,
+     * and is only sent while the request is for the CKAN host.
+     * @return the response to the last request, a redirect only once MAX_REDIRECTS are followed
+     */
+    private CloseableHttpResponse download(HttpRequestBase request) throws IOException {
+        request.setConfig(downloadConfig);
+        for (int redirects = 0; ; redirects++) {
+            if (ckanOrigin.equals(originOf(request.getURI()))) {
+                request.setHeader("X-CKAN-API-Key", api_key);
+            } else {
+                request.removeHeaders("X-CKAN-API-Key");
+            }
+            final CloseableHttpResponse response = retryPolicy.execute(httpclient, request);
+            final Header location = response.getFirstHeader("Location");
+            if (!isRedirect(response.getStatusLine().getStatusCode()) || location == null || redirects == MAX_REDIRECTS) {
+                return response;
+            }
+            final URI target;
+            try {
+                target = URIUtils.resolve(request.getURI(), location.getValue());
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid redirect of " + request.getURI() + " to " + location.getValue());
+                return response;
+            }
+            try {
+                CKAN_Response_Reader.readForLog(response);
+            } finally {
+                response.close();
+            }
+            log.debug("Download of " + request.getURI() + " redirected to " + target);
+            request.setURI(target);
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307 || statusCode == 308;
+    }
+
+    /**
+     * Scheme, host and port of the uri, with the default port of the scheme when it has none
+     */
+    private static String originOf(URI uri) {
+        final String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+        final int port = uri.getPort() != -1 ? uri.getPort() : "https".equals(scheme) ? 443 : 80;
+        return scheme + "://" + (uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT)) + ":" + port;
+    }
+}
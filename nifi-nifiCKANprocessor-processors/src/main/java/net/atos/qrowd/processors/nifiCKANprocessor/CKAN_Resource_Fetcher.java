@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.processors.pojos.Result_;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnRemoved;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.LogLevel;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ckan","web service","get","fetch","download","resource"})
+@CapabilityDescription("Nifi Processor that fetches the content of a CKAN resource, found by its id or by its name in a package, into the content of the FlowFile. "
+        + "Large resources are downloaded in segments requested in parallel with HTTP Range headers, and a download that fails is resumed by the next attempt. "
+        + "The content is checked against the hash of the resource in CKAN.")
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@WritesAttributes({
+        @WritesAttribute(attribute = "filename", description = "Name of the resource"),
+        @WritesAttribute(attribute = "mime.type", description = "Content type of the resource, as sent by the server"),
+        @WritesAttribute(attribute = "ckan.resource.id", description = "Id of the resource fetched"),
+        @WritesAttribute(attribute = "ckan.resource.hash", description = "Hash of the resource in CKAN, if it has one"),
+        @WritesAttribute(attribute = "ckan.resource.hash.verified", description = "Whether the content was checked against the hash: "
+                + "false when the resource has no hash, or one of an unknown algorithm"),
+        @WritesAttribute(attribute = "ckan.download.segments", description = "Number of segments the content was downloaded in, 1 for a single stream")
+})
+public class CKAN_Resource_Fetcher extends AbstractProcessor {
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to read from. Required unless a CKAN Client Service is set.")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN, needed for the private resources. Required unless a CKAN Client Service is set.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("CKAN Client Service")
+            .description("Shared connection to CKAN. When set, the url, API key, connection pool, retries and circuit breaker of the service are used, "
+                    + "and the corresponding properties of this processor are ignored. The pool of the service should then have a connection "
+                    + "for each of the Parallel Segments, in addition to the ones used by the other processors.")
+            .identifiesControllerService(CKAN_Client_Service.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor RESOURCE_ID = new PropertyDescriptor.Builder()
+            .name("Resource Id")
+            .description("Id of the resource to fetch. If not set, the resource is looked up by its <Resource Name> in the package <package_name>.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor package_name = new PropertyDescriptor
+            .Builder().name("package_name")
+            .displayName("Name of the package of the resource")
+            .description("Name of the package the resource is looked up in, when no <Resource Id> is set.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor RESOURCE_NAME = new PropertyDescriptor.Builder()
+            .name("Resource Name")
+            .description("Name of the resource to fetch, when no <Resource Id> is set.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .defaultValue("${filename}")
+            .required(false)
+            .build();
+    private static final PropertyDescriptor DOWNLOAD_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Download Directory")
+            .description("Directory where the resources downloaded in segments are assembled, with the progress of each download so that it can be resumed, "
+                    + "also after a restart. It must not be shared with other processors. If not set, every resource is downloaded as a single stream.")
+            .addValidator(StandardValidators.createDirectoryExistsValidator(true, true))
+            .required(false)
+            .build();
+    private static final PropertyDescriptor SEGMENTED_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Segmented Download Threshold")
+            .description("Size from which a resource is downloaded in segments. Smaller resources, and the ones whose server does not accept "
+                    + "Range requests, are downloaded as a single stream.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("64 MB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("Segment Size")
+            .description("Size of each segment of a segmented download. A failed download is resumed from the segments fully received.")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("16 MB")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor PARALLEL_SEGMENTS = new PropertyDescriptor.Builder()
+            .name("Parallel Segments")
+            .description("Maximum number of segments downloaded at the same time, for all the tasks of the processor together")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("4")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor MAX_RETRIES = CKAN_Connection.maxRetries(
+            "FlowFiles whose fetch still fails with a transient error, or whose download is interrupted, are penalized and returned to the "
+                    + "incoming queue instead of going to failure.");
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("Any FlowFile whose content was replaced by the content of the resource, matching its hash, is transferred to this Relationship.")
+            .build();
+    private static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Any FlowFile whose resource could not be found or downloaded, or whose downloaded content does not match the hash of the resource, "
+                    + "is transferred to this Relationship.")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile CKAN_Connection connection;
+    private volatile String url;
+    private volatile CloseableHttpClient httpClient;
+    private volatile ExecutorService segmentExecutor;
+    private volatile CKAN_Retry_Policy retryPolicy;
+    private volatile CKAN_Metrics metrics;
+    private volatile CKAN_Resource_Downloader downloader;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CLIENT_SERVICE);
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(RESOURCE_ID);
+        descriptors.add(package_name);
+        descriptors.add(RESOURCE_NAME);
+        descriptors.add(DOWNLOAD_DIRECTORY);
+        descriptors.add(SEGMENTED_THRESHOLD);
+        descriptors.add(SEGMENT_SIZE);
+        descriptors.add(PARALLEL_SEGMENTS);
+        descriptors.add(CKAN_Connection.CONNECT_TIMEOUT);
+        descriptors.add(CKAN_Connection.SOCKET_TIMEOUT);
+        descriptors.add(MAX_RETRIES);
+        descriptors.add(CKAN_Connection.RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.MAX_RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_OPEN_DURATION);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!validationContext.getProperty(CLIENT_SERVICE).isSet()) {
+            for (final PropertyDescriptor connection : Arrays.asList(CKAN_url, api_key)) {
+                if (!validationContext.getProperty(connection).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(connection.getDisplayName())
+                            .valid(false)
+                            .explanation("it is required when no " + CLIENT_SERVICE.getDisplayName() + " is set")
+                            .build());
+                }
+            }
+        }
+        if (!validationContext.getProperty(RESOURCE_ID).isSet()) {
+            for (final PropertyDescriptor lookup : Arrays.asList(package_name, RESOURCE_NAME)) {
+                if (!validationContext.getProperty(lookup).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(lookup.getDisplayName())
+                            .valid(false)
+                            .explanation("it is required to find the resource when no " + RESOURCE_ID.getDisplayName() + " is set")
+                            .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final int parallelSegments = context.getProperty(PARALLEL_SEGMENTS).asInteger();
+
+        metrics = CKAN_Metrics.register(getIdentifier());
+
+        // A connection for each segment in flight, plus one for each task to look up the resource or download it as a single stream
+        connection = CKAN_Connection.open(context, CLIENT_SERVICE, CKAN_url, api_key, MAX_RETRIES, parallelSegments + context.getMaxConcurrentTasks(), metrics);
+        url = connection.getUrl();
+        httpClient = connection.getHttpClient();
+        retryPolicy = connection.getRetryPolicy();
+
+        // Shared by the concurrent tasks, so Parallel Segments bounds the segments in flight for the whole processor
+        segmentExecutor = Executors.newFixedThreadPool(parallelSegments);
+        downloader = new CKAN_Resource_Downloader(url, connection.getApiKey(), httpClient, segmentExecutor,
+                context.getProperty(DOWNLOAD_DIRECTORY).isSet() ? Paths.get(context.getProperty(DOWNLOAD_DIRECTORY).getValue()) : null,
+                context.getProperty(SEGMENT_SIZE).asDataSize(DataUnit.B).longValue(), retryPolicy);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (segmentExecutor != null) {
+            segmentExecutor.shutdownNow();
+            segmentExecutor = null;
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the CKAN http client due to {}", new Object[]{ioe}, ioe);
+            }
+        }
+        httpClient = null;
+        connection = null;
+        downloader = null;
+    }
+
+    @OnRemoved
+    public void onRemoved() {
+        CKAN_Metrics.unregister(getIdentifier());
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        // While CKAN is unhealthy the FlowFiles are left in the queue, instead of being sent to a failing server
+        final CKAN_Circuit_Breaker circuitBreaker = retryPolicy.getCircuitBreaker();
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+            return;
+        }
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        final String resourceId = context.getProperty(RESOURCE_ID).evaluateAttributeExpressions(flowFile).getValue();
+        final String packageName = context.getProperty(package_name).evaluateAttributeExpressions(flowFile).getValue();
+        final String resourceName = context.getProperty(RESOURCE_NAME).evaluateAttributeExpressions(flowFile).getValue();
+        final String resourceLabel = resourceId != null ? resourceId : resourceName + " of package " + packageName;
+        final long segmentedThreshold = context.getProperty(SEGMENTED_THRESHOLD).asDataSize(DataUnit.B).longValue();
+        final boolean segmentable = context.getProperty(DOWNLOAD_DIRECTORY).isSet();
+
+        try {
+            Result_ resource = resourceId != null ? downloader.showResource(resourceId) : downloader.findResource(packageName, resourceName);
+            if (resource == null || resource.getUrl() == null || resource.getUrl().isEmpty()) {
+                getLogger().error("Resource {} not found in CKAN {}, or it has no url. Routing {} to failure", new Object[]{resourceLabel, url, flowFile});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            } else {
+                final long start = System.nanoTime();
+                final CKAN_Resource_Downloader.Probe probe = downloader.probe(resource.getUrl());
+                final MessageDigest digest = CKAN_Digesting_Body.newDigestFor(resource.getHash());
+                final Map<String, String> attributes = new HashMap<>();
+                if (segmentable && probe.isRangesAccepted() && probe.getLength() > 0 && probe.getLength() >= segmentedThreshold) {
+                    final CKAN_Download_Checkpoint download = downloader.download(resource.getId(), resource.getUrl(), probe);
+                    if (probe.getContentType() != null) {
+                        attributes.put(CoreAttributes.MIME_TYPE.key(), probe.getContentType());
+                    }
+                    try (final InputStream in = Files.newInputStream(download.getDataFile())) {
+                        flowFile = write(session, flowFile, in, resource.getUrl(), digest);
+                    }
+                    download.delete();
+                    attributes.put("ckan.download.segments", String.valueOf(download.getSegmentCount()));
+                } else {
+                    try (final CloseableHttpResponse response = downloader.open(resource.getUrl())) {
+                        final Header contentType = response.getEntity().getContentType();
+                        if (contentType != null) {
+                            attributes.put(CoreAttributes.MIME_TYPE.key(), contentType.getValue());
+                        }
+                        flowFile = write(session, flowFile, response.getEntity().getContent(), resource.getUrl(), digest);
+                    }
+                    attributes.put("ckan.download.segments", "1");
+                }
+
+                attributes.put("ckan.resource.id", resource.getId());
+                if (resource.getName() != null) {
+                    attributes.put(CoreAttributes.FILENAME.key(), resource.getName());
+                }
+                if (resource.getHash() != null && !resource.getHash().isEmpty()) {
+                    attributes.put("ckan.resource.hash", resource.getHash());
+                }
+                attributes.put("ckan.resource.hash.verified", String.valueOf(digest != null));
+                flowFile = session.putAllAttributes(flowFile, attributes);
+
+                final String actualHash = digest == null ? null : CKAN_Digesting_Body.toHex(digest.digest());
+                if (actualHash != null && !actualHash.equalsIgnoreCase(CKAN_Digesting_Body.hexOf(resource.getHash()))) {
+                    getLogger().error("Content of resource {} downloaded from {} has hash {} instead of {}. Routing {} to failure",
+                            new Object[]{resourceLabel, resource.getUrl(), actualHash, resource.getHash(), flowFile});
+                    session.transfer(session.penalize(flowFile), REL_FAILURE);
+                } else {
+                    getLogger().info("Fetched resource {} into {}", new Object[]{resourceLabel, flowFile});
+                    session.getProvenanceReporter().fetch(flowFile, resource.getUrl(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+            }
+        } catch (IOException ioe) {
+            final boolean retry = CKAN_Retry_Policy.isTransient(ioe);
+            getLogger().log(LogLevel.ERROR, "Error while fetching resource {} from CKAN {} due to {}. Routing {} to {}",
+                    new Object[]{resourceLabel, url, ioe, flowFile, retry ? "the incoming queue" : "failure"});
+            if (retry) {
+                session.transfer(session.penalize(flowFile));
+            } else {
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        }
+        metrics.publishCounters(session);
+        session.commit();
+
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+        }
+    }
+
+    /**
+     * Replaces the content of the FlowFile by the stream, hashing it on the way when the digest is not null
+     */
+    private static FlowFile write(final ProcessSession session, final FlowFile flowFile, final InputStream in, final String source,
+                                  final MessageDigest digest) throws IOException {
+        try {
+            return session.write(flowFile, (final OutputStream out) -> {
+                final byte[] buffer = new byte[64 * 1024];
+                long transferred = 0;
+                while (true) {
+                    final int read;
+                    try {
+                        read = in.read(buffer);
+                    } catch (IOException e) {
+                        throw CKAN_Resource_Downloader.interrupted(source, transferred, e);
+                    }
+                    if (read == -1) {
+                        break;
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    out.write(buffer, 0, read);
+                    transferred += read;
+                }
+            });
+        } catch (ProcessException pe) {
+            // The session wraps what the callback throws
+            if (pe.getCause() instanceof IOException) {
+                throw (IOException) pe.getCause();
+            }
+            throw pe;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of the resources uploaded to CKAN: (organization, package, filename) to the resource id,
+ * and the hash and size of its last known content.
+ * It lets the processor update a resource without searching for it first.
+ *
+ * The index is kept in memory and backed by an append-only log file, one line per change, so it survives restarts.
+ * The log is replayed when the index is opened, and rewritten with only the live entries when it has grown too much.
+ */
+public class CKAN_Resource_Index implements Closeable {
+    private final Logger log = Logger.getLogger(CKAN_Resource_Index.class);
+
+    static final String FILE_NAME = "ckan-resource-index.log";
+
+    private static final String PUT = "P";
+    private static final String REMOVE = "R";
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private BufferedWriter writer;
+    private long logLines;
+
+    private CKAN_Resource_Index(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the index stored in the given directory, creating it if needed
+     */
+    public static CKAN_Resource_Index open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        CKAN_Resource_Index index = new CKAN_Resource_Index(directory.resolve(FILE_NAME));
+        index.load();
+        return index;
+    }
+
+    private void load() throws IOException {
+        if (Files.exists(file)) {
+            // A last line without its line break was cut while it was written, e.g. by a crash. It is cut off the file, otherwise
+            // the next line appended would complete it, and it could then be read back as a valid line
+            long terminated = terminatedLength(file);
+            if (terminated < Files.size(file)) {
+                log.warn("Ignoring the unterminated last line of " + file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(terminated);
+                }
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    logLines++;
+                    if (!replay(line)) {
+                        log.warn("Ignoring malformed line " + logLines + " of " + file);
+                    }
+                }
+            }
+            log.info("Loaded " + entries.size() + " resources from " + file);
+        }
+        if (needsCompaction()) {
+            compact();
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Applies a line of the log to the entries
+     * @return false if the line is malformed
+     */
+    private boolean replay(String line) {
+        String[] fields = line.split("\t", -1);
+        if (PUT.equals(fields[0]) && fields.length == 7) {
+            long size;
+            try {
+                size = Long.parseLong(fields[6]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            entries.put(fields[1] + "\t" + fields[2] + "\t" + fields[3], new Entry(unescape(fields[4]), unescape(fields[5]), size));
+            return true;
+        } else if (REMOVE.equals(fields[0]) && fields.length == 4) {
+            entries.remove(fields[1] + "\t" + fields[2] + "\t" + fields[3]);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the length of the file up to its last line break included
+     */
+    private static long terminatedLength(Path file) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long end = channel.size();
+            while (end > 0) {
+                long start = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int) (end - start));
+                channel.position(start);
+                while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                    // until the chunk is read
+                }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        return start + i + 1;
+                    }
+                }
+                end = start;
+            }
+            return 0;
+        }
+    }
+
+    // Most of the lines of the log are overwritten or removed entries
+    private boolean needsCompaction() {
+        return logLines > 2L * entries.size() + 1000;
+    }
+
+    /**
+     * Rewrites the log with one line per live entry
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.write(PUT + "\t" + e.getKey() + "\t" + escape(e.getValue().id) + "\t" + escape(e.getValue().hash) + "\t" + e.getValue().size);
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Compacted " + file + " from " + logLines + " to " + entries.size() + " lines");
+        logLines = entries.size();
+    }
+
+    public Entry get(String organization, String packageName, String filename) {
+        return entries.get(key(organization, packageName, filename));
+    }
+
+    public synchronized void put(String organization, String packageName, String filename, String id, String hash, long size) throws IOException {
+        String key = key(organization, packageName, filename);
+        entries.put(key, new Entry(id, hash, size));
+        append(PUT + "\t" + key + "\t" + escape(id) + "\t" + escape(hash) + "\t" + size);
+    }
+
+    public synchronized void remove(String organization, String packageName, String filename) throws IOException {
+        String key = key(organization, packageName, filename);
+        if (entries.remove(key) != null) {
+            append(REMOVE + "\t" + key);
+        }
+    }
+
+    private void append(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+        logLines++;
+        // A long running processor updating the same resources would otherwise grow the log until its next restart
+        if (needsCompaction()) {
+            writer.close();
+            writer = null;
+            compact();
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private static String key(String organization, String packageName, String filename) {
+        return escape(organization) + "\t" + escape(packageName) + "\t" + escape(filename);
+    }
+
+    // Tabs and line breaks are the separators of the log, so they are escaped in the values
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static final class Entry {
+        private final String id;
+        private final String hash;
+        private final long size;
+
+        private Entry(String id, String hash, long size) {
+            this.id = id;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
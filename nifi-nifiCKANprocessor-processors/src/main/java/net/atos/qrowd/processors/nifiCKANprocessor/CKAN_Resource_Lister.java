@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.processors.pojos.Result_;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnRemoved;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ckan","web service","list","resource","incremental"})
+@CapabilityDescription("Nifi Processor that lists the resources created or modified in CKAN since its previous run, with one empty FlowFile per resource. "
+        + "It pages through the packages with package_search in the order of their modification, and keeps the date of the last one in the cluster state, "
+        + "so that each run only reads the packages modified since. Use CKAN_Resource_Fetcher with ${ckan.resource.id} to fetch their content.")
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@TriggerSerially
+@Stateful(scopes = Scope.CLUSTER, description = "The metadata_modified of the last package listed, and the ids of the packages listed with that same date. "
+        + "The next run reads the packages modified from that date. It is cleared when the CKAN url, the organizations or the packages change.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "filename", description = "Name of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.id", description = "Id of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.name", description = "Name of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.url", description = "Url of the content of the resource"),
+        @WritesAttribute(attribute = "ckan.resource.hash", description = "Hash of the content of the resource, if it has one"),
+        @WritesAttribute(attribute = "ckan.resource.last_modified", description = "Date the content of the resource was last modified, if it was"),
+        @WritesAttribute(attribute = "ckan.resource.size", description = "Size of the content of the resource, if known"),
+        @WritesAttribute(attribute = "ckan.resource.format", description = "Format of the resource, e.g. CSV"),
+        @WritesAttribute(attribute = "ckan.package.id", description = "Id of the package of the resource"),
+        @WritesAttribute(attribute = "ckan.package.name", description = "Name of the package of the resource"),
+        @WritesAttribute(attribute = "ckan.organization", description = "Name of the organization of the package, if it has one")
+})
+public class CKAN_Resource_Lister extends AbstractProcessor {
+
+    static final String STATE_MODIFIED = "metadata_modified";
+    static final String STATE_PACKAGE_IDS = "package_ids";
+
+    private static final PropertyDescriptor CKAN_url = new PropertyDescriptor
+            .Builder().name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to list. Required unless a CKAN Client Service is set.")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor api_key = new PropertyDescriptor
+            .Builder().name("Api_Key")
+            .displayName("File Api_Key")
+            .description("Api Key to be used to interact with CKAN, needed to list the private packages. Required unless a CKAN Client Service is set.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .sensitive(true)
+            .build();
+    private static final PropertyDescriptor CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("CKAN Client Service")
+            .description("Shared connection to CKAN. When set, the url, API key, connection pool, retries and circuit breaker of the service are used, "
+                    + "and the corresponding properties of this processor are ignored.")
+            .identifiesControllerService(CKAN_Client_Service.class)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor ORGANIZATIONS = new PropertyDescriptor.Builder()
+            .name("Organizations")
+            .description("Comma-separated names of the organizations whose packages are listed. If not set, the packages of all the organizations are listed.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor PACKAGES = new PropertyDescriptor.Builder()
+            .name("Packages")
+            .description("Comma-separated names of the packages whose resources are listed. If not set, all the packages (of the Organizations) are listed.")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(false)
+            .build();
+    private static final PropertyDescriptor PAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("Page Size")
+            .description("Number of packages read per package_search request. The FlowFiles of each page are committed, and the state saved, before the next page is read.")
+            .addValidator(StandardValidators.createLongValidator(1, 1000, true))
+            .defaultValue("100")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor LISTING_LAG = new PropertyDescriptor.Builder()
+            .name("Listing Lag")
+            .description("Packages modified less than this time ago are left for the next run, so a package written to the search index of CKAN "
+                    + "after others modified later is still listed. The resources are listed when they changed in this time before the previous run.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+    private static final PropertyDescriptor MAX_RETRIES = CKAN_Connection.maxRetries(
+            "A run that still fails is continued by the next one, from the last page listed.");
+
+    private static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("SUCCESS")
+            .description("A FlowFile is created for each resource created or modified since the previous run and transferred to this Relationship.")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile CKAN_Connection connection;
+    private volatile CloseableHttpClient httpClient;
+    private volatile CKAN_Retry_Policy retryPolicy;
+    private volatile CKAN_Metrics metrics;
+    private volatile CKAN_Package_Search search;
+    // Set when what is listed changed, so the state of the previous listing is cleared when the processor is next scheduled
+    private volatile boolean resetState = false;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CLIENT_SERVICE);
+        descriptors.add(CKAN_url);
+        descriptors.add(api_key);
+        descriptors.add(ORGANIZATIONS);
+        descriptors.add(PACKAGES);
+        descriptors.add(PAGE_SIZE);
+        descriptors.add(LISTING_LAG);
+        descriptors.add(CKAN_Connection.CONNECT_TIMEOUT);
+        descriptors.add(CKAN_Connection.SOCKET_TIMEOUT);
+        descriptors.add(MAX_RETRIES);
+        descriptors.add(CKAN_Connection.RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.MAX_RETRY_BACKOFF);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CKAN_Connection.CIRCUIT_BREAKER_OPEN_DURATION);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+        // The properties set while the flow is loaded at startup are not changes, and must keep the cursor
+        if (isConfigurationRestored()
+                && (descriptor.equals(CKAN_url) || descriptor.equals(CLIENT_SERVICE) || descriptor.equals(ORGANIZATIONS) || descriptor.equals(PACKAGES))) {
+            resetState = true;
+        }
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!validationContext.getProperty(CLIENT_SERVICE).isSet()) {
+            for (final PropertyDescriptor connection : Arrays.asList(CKAN_url, api_key)) {
+                if (!validationContext.getProperty(connection).isSet()) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(connection.getDisplayName())
+                            .valid(false)
+                            .explanation("it is required when no " + CLIENT_SERVICE.getDisplayName() + " is set")
+                            .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) throws IOException {
+        if (resetState) {
+            context.getStateManager().clear(Scope.CLUSTER);
+            resetState = false;
+        }
+
+        metrics = CKAN_Metrics.register(getIdentifier());
+
+        // The pages are read one after the other by a single task
+        connection = CKAN_Connection.open(context, CLIENT_SERVICE, CKAN_url, api_key, MAX_RETRIES, 1, metrics);
+        httpClient = connection.getHttpClient();
+        retryPolicy = connection.getRetryPolicy();
+        search = new CKAN_Package_Search(connection.getUrl(), connection.getApiKey(), httpClient, retryPolicy);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the CKAN http client due to {}", new Object[]{ioe}, ioe);
+            }
+        }
+        httpClient = null;
+        connection = null;
+        search = null;
+    }
+
+    @OnRemoved
+    public void onRemoved() {
+        CKAN_Metrics.unregister(getIdentifier());
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final CKAN_Circuit_Breaker circuitBreaker = retryPolicy.getCircuitBreaker();
+        if (circuitBreaker.isOpen()) {
+            context.yield();
+            return;
+        }
+        final List<String> organizations = names(context.getProperty(ORGANIZATIONS).getValue());
+        final List<String> packageNames = names(context.getProperty(PACKAGES).getValue());
+        final int pageSize = context.getProperty(PAGE_SIZE).asInteger();
+        final long lagSeconds = context.getProperty(LISTING_LAG).asTimePeriod(TimeUnit.SECONDS);
+
+        final StateMap state;
+        try {
+            state = context.getStateManager().getState(Scope.CLUSTER);
+        } catch (final IOException ioe) {
+            getLogger().error("Failed to read the state of the listing due to {}", new Object[]{ioe}, ioe);
+            context.yield();
+            return;
+        }
+        // The packages modified at the date of the last one listed are read again, the ones already listed at that date are skipped
+        Instant cursor = state.get(STATE_MODIFIED) == null ? null : Instant.parse(state.get(STATE_MODIFIED));
+        Set<String> listedAtCursor = new HashSet<>(Arrays.asList(StringUtils.split(StringUtils.defaultString(state.get(STATE_PACKAGE_IDS)), ',')));
+        // A resource is listed when it changed after the previous run, give or take the lag by which its package may have been indexed late
+        final Instant resourcesSince = cursor == null ? null : cursor.minusSeconds(lagSeconds);
+
+        int listed = 0;
+        int start = 0;
+        try {
+            while (true) {
+                final List<CKAN_Package_Search.Package> page = search.modifiedSince(cursor, lagSeconds, organizations, packageNames, start, pageSize);
+                boolean advanced = false;
+                for (final CKAN_Package_Search.Package found : page) {
+                    if (found.getModified() == null || (found.getModified().equals(cursor) && listedAtCursor.contains(found.getId()))) {
+                        continue;
+                    }
+                    for (final Result_ resource : found.getResources()) {
+                        if (changedSince(resource, resourcesSince)) {
+                            session.transfer(createFlowFile(session, found, resource), REL_SUCCESS);
+                            listed++;
+                        }
+                    }
+                    if (!found.getModified().equals(cursor)) {
+                        cursor = found.getModified();
+                        listedAtCursor = new HashSet<>();
+                    }
+                    listedAtCursor.add(found.getId());
+                    advanced = true;
+                }
+                if (advanced) {
+                    // The FlowFiles first: a failure in between lists the page again rather than losing it
+                    session.commit();
+                    final Map<String, String> newState = new HashMap<>();
+                    newState.put(STATE_MODIFIED, cursor.toString());
+                    newState.put(STATE_PACKAGE_IDS, StringUtils.join(listedAtCursor, ','));
+                    context.getStateManager().setState(newState, Scope.CLUSTER);
+                }
+                if (page.size() < pageSize) {
+                    break;
+                }
+                // A full page of packages already listed, all modified at the same date: the next ones are after them
+                start = advanced ? 0 : start + pageSize;
+            }
+        } catch (final IOException ioe) {
+            getLogger().error("Failed to list the packages of CKAN modified since {} due to {}", new Object[]{cursor, ioe}, ioe);
+            context.yield();
+        }
+        metrics.publishCounters(session);
+        session.commit();
+
+        if (listed == 0) {
+            context.yield();
+        } else {
+            getLogger().info("Listed {} resources, up to the packages modified at {}", new Object[]{listed, cursor});
+        }
+    }
+
+    private static FlowFile createFlowFile(final ProcessSession session, final CKAN_Package_Search.Package found, final Result_ resource) {
+        final Map<String, String> attributes = new HashMap<>();
+        putIfNotEmpty(attributes, CoreAttributes.FILENAME.key(), resource.getName());
+        putIfNotEmpty(attributes, "ckan.resource.id", resource.getId());
+        putIfNotEmpty(attributes, "ckan.resource.name", resource.getName());
+        putIfNotEmpty(attributes, "ckan.resource.url", resource.getUrl());
+        putIfNotEmpty(attributes, "ckan.resource.hash", resource.getHash());
+        putIfNotEmpty(attributes, "ckan.resource.last_modified", resource.getLastModified());
+        if (resource.getSize() instanceof Number) {
+            attributes.put("ckan.resource.size", String.valueOf(((Number) resource.getSize()).longValue()));
+        }
+        putIfNotEmpty(attributes, "ckan.resource.format", resource.getFormat());
+        putIfNotEmpty(attributes, "ckan.package.id", found.getId());
+        putIfNotEmpty(attributes, "ckan.package.name", found.getName());
+        putIfNotEmpty(attributes, "ckan.organization", found.getOrganization());
+        return session.putAllAttributes(session.create(), attributes);
+    }
+
+    private static void putIfNotEmpty(final Map<String, String> attributes, final String name, final String value) {
+        if (value != null && !value.isEmpty()) {
+            attributes.put(name, value);
+        }
+    }
+
+    /**
+     * Whether the resource was created, or its content modified, since that date. A resource without any date is always listed.
+     */
+    static boolean changedSince(final Result_ resource, final Instant since) {
+        if (since == null) {
+            return true;
+        }
+        final Instant created = CKAN_Package_Search.parseDate(resource.getCreated());
+        final Instant modified = CKAN_Package_Search.parseDate(resource.getLastModified());
+        if (created == null && modified == null) {
+            return true;
+        }
+        return (created != null && !created.isBefore(since)) || (modified != null && !modified.isBefore(since));
+    }
+
+    private static List<String> names(final String commaSeparated) {
+        final List<String> names = new ArrayList<>();
+        for (final String name : StringUtils.split(StringUtils.defaultString(commaSeparated), ',')) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+}
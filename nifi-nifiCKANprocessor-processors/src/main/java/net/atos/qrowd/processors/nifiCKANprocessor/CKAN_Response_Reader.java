@@ -0,0 +1,370 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.atos.qrowd.processors.pojos.Result_;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the responses of the CKAN action API as streams, so the memory used per request is bounded whatever the size of the response.
+ *
+ * Only what is needed is read. Afterwards, what is left of the response is drained, up to a limit, so the connection can go back to the pool.
+ * If more is left than that limit, it is not read, and closing the response closes the connection instead.
+ * The readers are deliberately not closed here: closing the content stream would read the whole rest of the response.
+ * The content stream is taken only once per response and drained through the same instance: each call of getContent()
+ * of a pooled response wraps the connection stream again, and a new wrapper fails once the body was read to its end.
+ */
+final class CKAN_Response_Reader {
+
+    // Maximum number of characters of a response kept to be logged
+    static final int MAX_LOGGED_CHARS = 4096;
+    // Maximum number of bytes read after the useful part of a response to be able to reuse the connection
+    static final long MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final Gson gson = new Gson();
+
+    private CKAN_Response_Reader() {
+    }
+
+    /**
+     * Reads the beginning of the body to log it, truncated to MAX_LOGGED_CHARS
+     */
+    static String readForLog(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return "";
+        }
+        InputStream in = entity.getContent();
+        StringBuilder sb = new StringBuilder();
+        Reader reader = reader(entity, in);
+        char[] buffer = new char[1024];
+        int read;
+        while (sb.length() < MAX_LOGGED_CHARS && (read = reader.read(buffer, 0, Math.min(buffer.length, MAX_LOGGED_CHARS - sb.length()))) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        if (sb.length() >= MAX_LOGGED_CHARS) {
+            sb.append("...");
+        }
+        drain(in);
+        return sb.toString();
+    }
+
+    /**
+     * Reads the "result" of a package_show response: the resources of the package are added to the list,
+     * the other fields (tags, extras, groups...) are skipped without being parsed.
+     * @return the id of the package, null if the response has none
+     */
+    static String readPackage(HttpResponse response, List<Result_> resources) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        InputStream in = entity.getContent();
+        JsonReader json = new JsonReader(reader(entity, in));
+        String packageId = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("result".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if ("id".equals(name) && json.peek() == JsonToken.STRING) {
+                        packageId = json.nextString();
+                    } else if ("resources".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            resources.add(gson.<Result_>fromJson(json, Result_.class));
+                        }
+                        json.endArray();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                break;
+            }
+            json.skipValue();
+        }
+        drain(in);
+        return packageId;
+    }
+
+    /**
+     * Reads the names listed in the "result" of a response, without keeping them: either a list of names, like organization_list,
+     * or search results with a name, like package_search with fl=name
+     * @return the number of names read
+     */
+    static int readNames(HttpResponse response, CKAN_Name_Index.Builder names) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return 0;
+        }
+        InputStream in = entity.getContent();
+        JsonReader json = new JsonReader(reader(entity, in));
+        int count = 0;
+        json.beginObject();
+        while (json.hasNext()) {
+            if (!"result".equals(json.nextName())) {
+                json.skipValue();
+            } else if (json.peek() == JsonToken.BEGIN_ARRAY) {
+                count += readNameArray(json, names);
+            } else if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    if ("results".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        count += readNameArray(json, names);
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+            } else {
+                json.skipValue();
+            }
+        }
+        drain(in);
+        return count;
+    }
+
+    private static int readNameArray(JsonReader json, CKAN_Name_Index.Builder names) throws IOException {
+        int count = 0;
+        json.beginArray();
+        while (json.hasNext()) {
+            if (json.peek() == JsonToken.STRING) {
+                names.add(json.nextString());
+                count++;
+            } else if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    if ("name".equals(json.nextName()) && json.peek() == JsonToken.STRING) {
+                        names.add(json.nextString());
+                        count++;
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endArray();
+        return count;
+    }
+
+    /**
+     * Reads the packages of a package_search response: their id, name, organization, date of modification and resources,
+     * the other fields are skipped without being parsed
+     */
+    static void readSearchedPackages(HttpResponse response, List<CKAN_Package_Search.Package> packages) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        InputStream in = entity.getContent();
+        JsonReader json = new JsonReader(reader(entity, in));
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("result".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    if ("results".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                        json.beginArray();
+                        while (json.hasNext()) {
+                            packages.add(readSearchedPackage(json));
+                        }
+                        json.endArray();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                break;
+            }
+            json.skipValue();
+        }
+        drain(in);
+    }
+
+    private static CKAN_Package_Search.Package readSearchedPackage(JsonReader json) throws IOException {
+        String id = null;
+        String name = null;
+        String organization = null;
+        String modified = null;
+        List<Result_> resources = new ArrayList<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            String field = json.nextName();
+            if (json.peek() == JsonToken.STRING && ("id".equals(field) || "name".equals(field) || "metadata_modified".equals(field))) {
+                String value = json.nextString();
+                if ("id".equals(field)) {
+                    id = value;
+                } else if ("name".equals(field)) {
+                    name = value;
+                } else {
+                    modified = value;
+                }
+            } else if ("organization".equals(field) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                organization = readStringField(json, "name");
+            } else if ("resources".equals(field) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    resources.add(gson.<Result_>fromJson(json, Result_.class));
+                }
+                json.endArray();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return new CKAN_Package_Search.Package(id, name, organization, CKAN_Package_Search.parseDate(modified), resources);
+    }
+
+    /**
+     * Reads a string field of the object at the position of the reader, skipping the rest of the object
+     */
+    private static String readStringField(JsonReader json, String name) throws IOException {
+        String value = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            if (name.equals(json.nextName()) && json.peek() == JsonToken.STRING) {
+                value = json.nextString();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return value;
+    }
+
+    /**
+     * Reads the "result" of an action response that returns a single resource, like resource_create
+     * @return null if the response has no result
+     */
+    static Result_ readResource(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        InputStream in = entity.getContent();
+        Result_ resource = readResource(new JsonReader(reader(entity, in)));
+        drain(in);
+        return resource;
+    }
+
+    /**
+     * Same as readResource(response), for a response body already read
+     */
+    static Result_ readResource(String body) throws IOException {
+        return readResource(new JsonReader(new StringReader(body)));
+    }
+
+    private static Result_ readResource(JsonReader json) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("result".equals(json.nextName()) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                return gson.fromJson(json, Result_.class);
+            }
+            json.skipValue();
+        }
+        return null;
+    }
+
+    /**
+     * Reads a single string value inside the "result" of an action response, e.g. ("upload", "id") for result.upload.id
+     * @return null if the response has no such value
+     */
+    static String readResultField(HttpResponse response, String... path) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        InputStream in = entity.getContent();
+        JsonReader json = new JsonReader(reader(entity, in));
+        String value = readField(json, "result", path, 0);
+        drain(in);
+        return value;
+    }
+
+    /**
+     * Reads the type of the error of a failed action response, e.g. "Validation Error" or "Authorization Error"
+     * @param body Response body, possibly truncated
+     * @return null if the body is not a CKAN error
+     */
+    static String readErrorType(String body) {
+        if (body == null || body.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonReader json = new JsonReader(new StringReader(body));
+            json.setLenient(true);
+            return readField(json, "error", new String[]{"__type"}, 0);
+        } catch (IOException | RuntimeException e) {
+            // Not JSON (e.g. an error page of a proxy), or cut before the type
+            return null;
+        }
+    }
+
+    private static String readField(JsonReader json, String name, String[] path, int depth) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            return null;
+        }
+        json.beginObject();
+        while (json.hasNext()) {
+            if (name.equals(json.nextName())) {
+                if (depth < path.length) {
+                    return readField(json, path[depth], path, depth + 1);
+                }
+                JsonToken token = json.peek();
+                return token == JsonToken.STRING || token == JsonToken.NUMBER ? json.nextString() : null;
+            }
+            json.skipValue();
+        }
+        return null;
+    }
+
+    private static Reader reader(HttpEntity entity, InputStream in) {
+        ContentType contentType = ContentType.get(entity);
+        Charset charset = contentType == null || contentType.getCharset() == null ? StandardCharsets.UTF_8 : contentType.getCharset();
+        return new InputStreamReader(in, charset);
+    }
+
+    /**
+     * Reads what is left of the body, up to MAX_DRAIN_BYTES, so that a fully read response releases its connection to the pool
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[4096];
+        long drained = 0;
+        int read;
+        while (drained < MAX_DRAIN_BYTES && (read = in.read(buffer)) != -1) {
+            drained += read;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends requests to CKAN, retrying the ones that fail with a transient error (server errors, throttling, timeouts)
+ * after a jittered exponential backoff, and going through the circuit breaker of the host.
+ *
+ * Permanent errors (validation, authorization, not found...) are returned to the caller at once, like any other response.
+ * They are told by the "__type" of the CKAN error when the response has one, by the status code otherwise.
+ *
+ * The create actions (package_create, resource_create, datastore_create...) are not idempotent: sent again after CKAN did them,
+ * e.g. when their response was lost to a read timeout or a proxy answered 504, they would create duplicates.
+ * They are only retried when CKAN did not receive them: the connection could not be opened, or CKAN throttled them.
+ */
+public class CKAN_Retry_Policy {
+    private final Logger log = Logger.getLogger(CKAN_Retry_Policy.class);
+
+    // "__type" of the CKAN errors that no retry can fix
+    private static final Set<String> PERMANENT_ERROR_TYPES = new HashSet<>(Arrays.asList("Validation Error", "Authorization Error", "Not Found Error"));
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final CKAN_Circuit_Breaker circuitBreaker;
+    private final CKAN_Metrics metrics;
+    // Null when the rate of the requests is not limited
+    private final CKAN_Rate_Limiter rateLimiter;
+
+    /**
+     * @param metrics Where every attempt is recorded
+     */
+    CKAN_Retry_Policy(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit unit, CKAN_Circuit_Breaker circuitBreaker, CKAN_Metrics metrics) {
+        this(maxRetries, initialBackoff, maxBackoff, unit, circuitBreaker, metrics, null);
+    }
+
+    private CKAN_Retry_Policy(int maxRetries, long initialBackoff, long maxBackoff, TimeUnit unit, CKAN_Circuit_Breaker circuitBreaker, CKAN_Metrics metrics,
+                              CKAN_Rate_Limiter rateLimiter) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+        this.circuitBreaker = circuitBreaker;
+        this.metrics = metrics;
+        this.rateLimiter = rateLimiter;
+    }
+
+    public CKAN_Circuit_Breaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * The same policy, with the same circuit breaker and metrics, but a single attempt per request
+     */
+    public CKAN_Retry_Policy withoutRetries() {
+        return new CKAN_Retry_Policy(0, initialBackoffMillis, maxBackoffMillis, TimeUnit.MILLISECONDS, circuitBreaker, metrics, rateLimiter);
+    }
+
+    /**
+     * The same policy, with the same circuit breaker, but recording its requests in other metrics
+     */
+    public CKAN_Retry_Policy withMetrics(CKAN_Metrics metrics) {
+        return new CKAN_Retry_Policy(maxRetries, initialBackoffMillis, maxBackoffMillis, TimeUnit.MILLISECONDS, circuitBreaker, metrics, rateLimiter);
+    }
+
+    /**
+     * The same policy, whose attempts first wait for the rate limiter
+     */
+    public CKAN_Retry_Policy withRateLimiter(CKAN_Rate_Limiter rateLimiter) {
+        return new CKAN_Retry_Policy(maxRetries, initialBackoffMillis, maxBackoffMillis, TimeUnit.MILLISECONDS, circuitBreaker, metrics, rateLimiter);
+    }
+
+    /**
+     * Executes the request, trying it again while it fails with a transient error.
+     * Only requests whose entity can be sent more than once are retried, and create actions only while they were not received.
+     * @return the response to the last attempt, to be closed by the caller. Its status may still be a transient error once the retries are exhausted.
+     * @throws CKAN_Exception if the circuit of the host is open
+     */
+    public CloseableHttpResponse execute(CloseableHttpClient httpclient, HttpUriRequest request) throws IOException {
+        final boolean repeatable = !(request instanceof HttpEntityEnclosingRequest)
+                || ((HttpEntityEnclosingRequest) request).getEntity() == null
+                || ((HttpEntityEnclosingRequest) request).getEntity().isRepeatable();
+        final boolean create = isCreate(request);
+        for (int attempt = 0; ; attempt++) {
+            if (!circuitBreaker.allowRequest()) {
+                throw new CKAN_Exception("The CKAN host is unhealthy, " + request.getURI().getPath() + " was not sent", true);
+            }
+            // Every attempt counts, retries included
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
+            final boolean lastAttempt = attempt >= maxRetries || !repeatable;
+            final CloseableHttpResponse response;
+            final long start = System.nanoTime();
+            try {
+                response = httpclient.execute(request);
+            } catch (IOException ioe) {
+                metrics.recordRequest(request.getURI(), System.nanoTime() - start, true);
+                if (!isTransient(ioe)) {
+                    // Not the host being unhealthy (e.g. the local file could not be read)
+                    throw ioe;
+                }
+                circuitBreaker.recordFailure();
+                if (lastAttempt || (create && !isNotReceived(ioe))) {
+                    throw ioe;
+                }
+                log.warn("Attempt " + (attempt + 1) + " of " + request.getURI().getPath() + " failed: " + ioe);
+                sleep(backoffMillis(attempt, null));
+                continue;
+            }
+
+            final int statusCode = response.getStatusLine().getStatusCode();
+            metrics.recordRequest(request.getURI(), System.nanoTime() - start, statusCode >= 400);
+            if (!isTransient(statusCode)) {
+                circuitBreaker.recordSuccess();
+                return response;
+            }
+            // The type of the CKAN error tells whether the status is worth a retry, the body is kept for the caller
+            final String errorType = CKAN_Response_Reader.readErrorType(bufferBody(response));
+            if (!isTransient(statusCode, errorType)) {
+                circuitBreaker.recordSuccess();
+                return response;
+            }
+            circuitBreaker.recordFailure();
+            if (lastAttempt || (create && statusCode != 429)) {
+                return response;
+            }
+            final long backoff = backoffMillis(attempt, response);
+            response.close();
+            log.warn("Attempt " + (attempt + 1) + " of " + request.getURI().getPath() + " failed with status " + statusCode
+                    + " (" + errorType + "), retrying in " + backoff + " ms");
+            sleep(backoff);
+        }
+    }
+
+    /**
+     * Replaces the entity of an error response by its beginning, which is all the callers read of an error
+     * @return the beginning of the body, empty if it could not be read
+     */
+    private static String bufferBody(HttpResponse response) {
+        String body;
+        try {
+            body = CKAN_Response_Reader.readForLog(response);
+        } catch (IOException e) {
+            body = "";
+        }
+        response.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        return body;
+    }
+
+    /**
+     * Full jitter: a random time between 0 and the exponential backoff of the attempt, capped to the max backoff.
+     * A Retry-After header sent by CKAN (or its proxy) is honoured, up to the max backoff.
+     */
+    long backoffMillis(int attempt, HttpResponse response) {
+        final long exponential = initialBackoffMillis << Math.min(attempt, 30);
+        final long cap = Math.min(maxBackoffMillis, exponential < 0 ? maxBackoffMillis : exponential);
+        long backoff = cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+        final Header retryAfter = response == null ? null : response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            try {
+                backoff = Math.max(backoff, Math.min(maxBackoffMillis, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.getValue().trim()))));
+            } catch (NumberFormatException e) {
+                // An HTTP date instead of a number of seconds, the exponential backoff is used
+            }
+        }
+        return backoff;
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a request to CKAN");
+        }
+    }
+
+    /**
+     * Server errors, throttling and request timeouts may succeed later, the other errors will not
+     */
+    public static boolean isTransient(int statusCode) {
+        return statusCode >= 500 || statusCode == 429 || statusCode == 408;
+    }
+
+    /**
+     * The "__type" of the CKAN error comes first: a validation, authorization or not found error fails the same way
+     * whatever its status (e.g. rewritten to a 5xx by a proxy). The other errors are classified by their status.
+     * @param errorType "__type" of the CKAN error, null if the response had none
+     */
+    public static boolean isTransient(int statusCode, String errorType) {
+        if (PERMANENT_ERROR_TYPES.contains(errorType)) {
+            return false;
+        }
+        return isTransient(statusCode);
+    }
+
+    /**
+     * Whether the request is a create action, which must not be sent again once CKAN may have done it
+     */
+    static boolean isCreate(HttpUriRequest request) {
+        return CKAN_Metrics.endpointOf(request.getURI()).endsWith("_create");
+    }
+
+    /**
+     * Failures to open the connection: the request was not sent at all
+     */
+    static boolean isNotReceived(IOException ioe) {
+        return ioe instanceof ConnectException || ioe instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * Timeouts and refused or dropped connections may succeed later
+     */
+    public static boolean isTransient(IOException ioe) {
+        if (ioe instanceof CKAN_Exception) {
+            return ((CKAN_Exception) ioe).isTransient();
+        }
+        return ioe instanceof SocketTimeoutException
+                || ioe instanceof ConnectTimeoutException
+                || ioe instanceof ConnectException
+                || ioe instanceof NoHttpResponseException;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lets a single task of the processor at a time look up and create or update a given resource, or check and create a given package.
+ * Without it, two concurrent tasks uploading files with the same name could both find no resource and both create one,
+ * leaving a package with duplicate resources that can no longer be updated.
+ *
+ * The other tasks queue in arrival order behind the one in the flight. The resource or package created by it is in the caches
+ * (or in CKAN) by the time they get in, so they find it and update it instead of creating another one.
+ * A flight is forgotten as soon as no task is in it or waiting for it, so only the keys being uploaded are kept.
+ */
+final class CKAN_Single_Flight {
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Gets in the flight of the key at once
+     * @param resourceName null for the flight of the package itself
+     * @return null if another task is in it
+     */
+    Flight tryJoin(String organization, String packageName, String resourceName) {
+        final Flight flight = enter(keyOf(organization, packageName, resourceName));
+        if (flight.permit.tryAcquire()) {
+            return flight;
+        }
+        flight.leave();
+        return null;
+    }
+
+    /**
+     * Gets in the flight of the key, waiting for the tasks ahead. A task must not wait while it is in another flight, it could wait for itself.
+     * @param resourceName null for the flight of the package itself
+     */
+    Flight join(String organization, String packageName, String resourceName) throws InterruptedException {
+        final Flight flight = enter(keyOf(organization, packageName, resourceName));
+        try {
+            flight.permit.acquire();
+        } catch (InterruptedException e) {
+            flight.leave();
+            throw e;
+        }
+        return flight;
+    }
+
+    private Flight enter(String key) {
+        return flights.compute(key, (k, flight) -> {
+            final Flight entered = flight == null ? new Flight(k) : flight;
+            entered.members++;
+            return entered;
+        });
+    }
+
+    /**
+     * Organization and package names are lower case in CKAN, and cannot contain a slash
+     */
+    private static String keyOf(String organization, String packageName, String resourceName) {
+        final String packageKey = organization.toLowerCase() + "/" + packageName.toLowerCase();
+        return resourceName == null ? packageKey : packageKey + "/" + resourceName;
+    }
+
+    final class Flight implements AutoCloseable {
+        private final String key;
+        // Fair, so the waiting tasks get in in the order they arrived
+        private final Semaphore permit = new Semaphore(1, true);
+        // Tasks in the flight or waiting for it. Only changed inside compute() of the map
+        private int members;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Gets out of the flight, letting the next task in. Must be called once, by the task that joined it.
+         */
+        @Override
+        public void close() {
+            permit.release();
+            leave();
+        }
+
+        private void leave() {
+            flights.computeIfPresent(key, (k, flight) -> --flight.members == 0 ? null : flight);
+        }
+    }
+}
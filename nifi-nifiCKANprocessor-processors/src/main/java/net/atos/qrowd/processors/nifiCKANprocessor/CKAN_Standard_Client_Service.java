@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"ckan","client","http","pool","cache"})
+@CapabilityDescription("Shares the connection to a CKAN instance between all the processors that reference it (CKAN_File_Uploader, CKAN_DataStore_Loader): "
+        + "a single pool of connections, the caches of the organizations and packages known to exist, the retry settings, the circuit breaker of the host and the limit of the request rate. "
+        + "The processors using it ignore their own url, API key, connection, cache, retry and circuit breaker properties.")
+public class CKAN_Standard_Client_Service extends AbstractControllerService implements CKAN_Client_Service {
+
+    static final PropertyDescriptor CKAN_URL = new PropertyDescriptor.Builder()
+            .name("CKAN_url")
+            .displayName("CKAN Url")
+            .description("Hostname of the CKAN instance to write to")
+            .addValidator(StandardValidators.URL_VALIDATOR)
+            .required(true)
+            .build();
+    static final PropertyDescriptor API_KEY = new PropertyDescriptor.Builder()
+            .name("Api_Key")
+            .displayName("Api Key")
+            .description("Api Key to be used to interact with CKAN")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .required(true)
+            .sensitive(true)
+            .build();
+    static final PropertyDescriptor MAX_CONNECTIONS_PER_ROUTE = new PropertyDescriptor.Builder()
+            .name("Max Connections Per Route")
+            .description("Maximum number of pooled connections kept open to the CKAN instance, for all the processors using the service together. "
+                    + "It also bounds the number of requests sent to CKAN at the same time.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("20")
+            .required(true)
+            .build();
+    static final PropertyDescriptor KEEP_ALIVE = new PropertyDescriptor.Builder()
+            .name("Keep Alive Duration")
+            .description("How long an idle connection is kept in the pool to be reused. If CKAN announces a shorter keep-alive, the shorter one is used.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .required(true)
+            .build();
+    static final PropertyDescriptor CONNECTION_TTL = new PropertyDescriptor.Builder()
+            .name("Connection Time To Live")
+            .description("Maximum lifetime of a pooled connection, after which it is closed instead of being reused (so DNS changes are eventually picked up)")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .required(true)
+            .build();
+    static final PropertyDescriptor MAX_REQUESTS_PER_SECOND = new PropertyDescriptor.Builder()
+            .name("Max Requests Per Second")
+            .description("Maximum number of requests sent to CKAN per second, for all the processors using the service together and retries included. "
+                    + "The requests over the limit wait for their turn. Up to a second of requests is sent at once after an idle time. "
+                    + "If not set, the requests are only bounded by the Max Connections Per Route.")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .required(false)
+            .build();
+    static final PropertyDescriptor CONNECT_TIMEOUT = CKAN_Connection.CONNECT_TIMEOUT;
+    static final PropertyDescriptor SOCKET_TIMEOUT = CKAN_Connection.SOCKET_TIMEOUT;
+    static final PropertyDescriptor CACHE_TTL = CKAN_Connection.CACHE_TTL;
+    // Shared by all the processors, so it holds more by default
+    static final PropertyDescriptor CACHE_MAX_ENTRIES = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(CKAN_Connection.CACHE_MAX_ENTRIES)
+            .defaultValue("10000")
+            .build();
+    static final PropertyDescriptor CATALOG_REFRESH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Catalog Refresh Interval")
+            .description("If set, the names of all the organizations and packages of CKAN are loaded when the service is enabled, then refreshed at this interval, "
+                    + "so that the processors do not ask CKAN whether an organization or package exists when it is already listed. "
+                    + "Only the packages modified since the previous refresh are read again.")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .required(false)
+            .build();
+    static final PropertyDescriptor MAX_RETRIES = CKAN_Connection.maxRetries(
+            "Each processor using the service then handles the failure as it does with its own connection.");
+    static final PropertyDescriptor RETRY_BACKOFF = CKAN_Connection.RETRY_BACKOFF;
+    static final PropertyDescriptor MAX_RETRY_BACKOFF = CKAN_Connection.MAX_RETRY_BACKOFF;
+    static final PropertyDescriptor CIRCUIT_BREAKER_THRESHOLD = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(CKAN_Connection.CIRCUIT_BREAKER_THRESHOLD)
+            .description("Number of consecutive transient failures, from any of the processors using the service, after which CKAN is considered unhealthy: "
+                    + "the processors then stop sending requests and yield until the Circuit Breaker Open Duration is over")
+            .build();
+    static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_DURATION = CKAN_Connection.CIRCUIT_BREAKER_OPEN_DURATION;
+
+    private static final List<PropertyDescriptor> DESCRIPTORS;
+
+    static {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(CKAN_URL);
+        descriptors.add(API_KEY);
+        descriptors.add(MAX_CONNECTIONS_PER_ROUTE);
+        descriptors.add(KEEP_ALIVE);
+        descriptors.add(CONNECTION_TTL);
+        descriptors.add(MAX_REQUESTS_PER_SECOND);
+        descriptors.add(CONNECT_TIMEOUT);
+        descriptors.add(SOCKET_TIMEOUT);
+        descriptors.add(CACHE_TTL);
+        descriptors.add(CACHE_MAX_ENTRIES);
+        descriptors.add(CATALOG_REFRESH_INTERVAL);
+        descriptors.add(MAX_RETRIES);
+        descriptors.add(RETRY_BACKOFF);
+        descriptors.add(MAX_RETRY_BACKOFF);
+        descriptors.add(CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CIRCUIT_BREAKER_OPEN_DURATION);
+        DESCRIPTORS = Collections.unmodifiableList(descriptors);
+    }
+
+    private volatile String url;
+    private volatile String apiKey;
+    private volatile CloseableHttpClient httpClient;
+    private volatile CKAN_Id_Cache organizationCache;
+    private volatile CKAN_Package_Cache packageCache;
+    private volatile CKAN_Catalog catalog;
+    // Copied with the metrics of each processor, all the copies sharing its circuit breaker and rate limiter
+    private volatile CKAN_Retry_Policy retryPolicy;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return DESCRIPTORS;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        url = context.getProperty(CKAN_URL).getValue();
+        apiKey = context.getProperty(API_KEY).getValue();
+        httpClient = createHttpClient(context.getProperty(MAX_CONNECTIONS_PER_ROUTE).asInteger(),
+                context.getProperty(KEEP_ALIVE).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(CONNECTION_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue(),
+                context.getProperty(SOCKET_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue());
+
+        final long cacheTtlMillis = context.getProperty(CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS);
+        final int cacheMaxEntries = context.getProperty(CACHE_MAX_ENTRIES).asInteger();
+        organizationCache = new CKAN_Id_Cache(cacheTtlMillis, TimeUnit.MILLISECONDS, cacheMaxEntries);
+        packageCache = new CKAN_Package_Cache(cacheTtlMillis, TimeUnit.MILLISECONDS, cacheMaxEntries);
+
+        retryPolicy = CKAN_Connection.createRetryPolicy(context, MAX_RETRIES, CKAN_Connection.createCircuitBreaker(context, url), null);
+        if (context.getProperty(MAX_REQUESTS_PER_SECOND).isSet()) {
+            retryPolicy = retryPolicy.withRateLimiter(new CKAN_Rate_Limiter(context.getProperty(MAX_REQUESTS_PER_SECOND).asInteger()));
+        }
+
+        if (context.getProperty(CATALOG_REFRESH_INTERVAL).isSet()) {
+            catalog = new CKAN_Catalog(url, apiKey, httpClient, createRetryPolicy(CKAN_Metrics.register(getIdentifier())));
+            catalog.start(context.getProperty(CATALOG_REFRESH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (catalog != null) {
+            catalog.close();
+            catalog = null;
+            CKAN_Metrics.unregister(getIdentifier());
+        }
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (final IOException ioe) {
+                getLogger().warn("Failed to close the CKAN http client due to {}", new Object[]{ioe}, ioe);
+            }
+            httpClient = null;
+        }
+        organizationCache = null;
+        packageCache = null;
+        retryPolicy = null;
+    }
+
+    @Override
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    @Override
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    @Override
+    public CKAN_Id_Cache getOrganizationCache() {
+        return organizationCache;
+    }
+
+    @Override
+    public CKAN_Package_Cache getPackageCache() {
+        return packageCache;
+    }
+
+    @Override
+    public CKAN_Catalog getCatalog() {
+        return catalog;
+    }
+
+    @Override
+    public CKAN_Retry_Policy createRetryPolicy(final CKAN_Metrics metrics) {
+        return retryPolicy.withMetrics(metrics);
+    }
+
+    /**
+     * Keeps the idle connections alive for keepAliveMillis, or for less if the server announces less
+     */
+    static ConnectionKeepAliveStrategy keepAliveStrategy(final long keepAliveMillis) {
+        return (response, httpContext) -> {
+            final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, httpContext);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+        };
+    }
+
+    static RequestConfig requestConfig(final int connectTimeout, final int socketTimeout) {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+    }
+
+    /**
+     * Pooled client to a single CKAN instance, so the whole pool is available for that route
+     */
+    static CloseableHttpClient createHttpClient(final int maxConnections, final long keepAliveMillis, final long ttlMillis, final int connectTimeout, final int socketTimeout) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(ttlMillis, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy(keepAliveMillis))
+                .setDefaultRequestConfig(requestConfig(connectTimeout, socketTimeout))
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+}
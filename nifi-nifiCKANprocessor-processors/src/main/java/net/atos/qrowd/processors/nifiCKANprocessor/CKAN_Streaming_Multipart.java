@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Builds a multipart/form-data entity whose content can be read as a plain stream, with a known length.
+ * The httpmime MultipartFormEntity can only be written to an OutputStream, which the non-blocking client cannot use.
+ * Here the form fields and part headers are rendered in memory and the file content is streamed between them,
+ * so the file is never buffered.
+ * A field with the hash of the file can be added after it, computed while the file is streamed.
+ */
+public class CKAN_Streaming_Multipart {
+
+    private static final String CRLF = "\r\n";
+
+    private final String boundary = "----CKANFormBoundary" + UUID.randomUUID().toString().replace("-", "");
+    private final List<String[]> fields = new ArrayList<>();
+    private MessageDigest digest;
+    private String hash;
+
+    public CKAN_Streaming_Multipart addField(String name, String value) {
+        fields.add(new String[]{name, value});
+        return this;
+    }
+
+    /**
+     * @param contentLength exact number of bytes that will be read from content
+     */
+    public HttpEntity build(String fileField, String filename, ContentType contentType, InputStream content, long contentLength) {
+        return build(fileField, filename, contentType, content, contentLength, null);
+    }
+
+    /**
+     * @param contentLength exact number of bytes that will be read from content
+     * @param hashField name of the field, sent after the file, with the hex hash of the file. Not sent if null.
+     */
+    public HttpEntity build(String fileField, String filename, ContentType contentType, InputStream content, long contentLength, final String hashField) {
+        StringBuilder head = new StringBuilder();
+        for (String[] field : fields) {
+            head.append("--").append(boundary).append(CRLF)
+                    .append("Content-Disposition: form-data; name=\"").append(escape(field[0])).append("\"").append(CRLF)
+                    .append("Content-Type: text/plain; charset=UTF-8").append(CRLF)
+                    .append(CRLF)
+                    .append(field[1]).append(CRLF);
+        }
+        head.append("--").append(boundary).append(CRLF)
+                .append("Content-Disposition: form-data; name=\"").append(escape(fileField))
+                .append("\"; filename=\"").append(escape(filename)).append("\"").append(CRLF)
+                .append("Content-Type: ").append(contentType.toString()).append(CRLF)
+                .append(CRLF);
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+
+        InputStream tail;
+        long tailLength;
+        if (hashField == null) {
+            byte[] tailBytes = renderTail(null, null);
+            tail = new ByteArrayInputStream(tailBytes);
+            tailLength = tailBytes.length;
+        } else {
+            digest = CKAN_Digesting_Body.newDigest();
+            content = new DigestInputStream(content, digest);
+            // The hash is only known once the file has been read, so the tail is rendered on its first read
+            tail = new InputStream() {
+                private ByteArrayInputStream rendered;
+
+                private ByteArrayInputStream rendered() {
+                    if (rendered == null) {
+                        rendered = new ByteArrayInputStream(renderTail(hashField, getHash()));
+                    }
+                    return rendered;
+                }
+
+                @Override
+                public int read() {
+                    return rendered().read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return rendered().read(b, off, len);
+                }
+            };
+            // Same length as the real tail: the hex hash always has the same number of characters
+            tailLength = renderTail(hashField, StringUtils.repeat('0', digest.getDigestLength() * 2)).length;
+        }
+
+        InputStream body = new SequenceInputStream(new ByteArrayInputStream(headBytes),
+                new SequenceInputStream(content, tail));
+        InputStreamEntity entity = new InputStreamEntity(body, headBytes.length + contentLength + tailLength);
+        entity.setContentType("multipart/form-data; boundary=" + boundary);
+        return entity;
+    }
+
+    /**
+     * Hex hash of the file, only available once the entity built with a hash field has been sent
+     */
+    public String getHash() {
+        if (hash == null && digest != null) {
+            hash = CKAN_Digesting_Body.toHex(digest.digest());
+        }
+        return hash;
+    }
+
+    private byte[] renderTail(String hashField, String hash) {
+        StringBuilder tail = new StringBuilder(CRLF);
+        if (hashField != null) {
+            tail.append("--").append(boundary).append(CRLF)
+                    .append("Content-Disposition: form-data; name=\"").append(escape(hashField)).append("\"").append(CRLF)
+                    .append("Content-Type: text/plain; charset=UTF-8").append(CRLF)
+                    .append(CRLF)
+                    .append(hash).append(CRLF);
+        }
+        tail.append("--").append(boundary).append("--").append(CRLF);
+        return tail.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\"", "%22").replace("\r", "").replace("\n", "");
+    }
+}
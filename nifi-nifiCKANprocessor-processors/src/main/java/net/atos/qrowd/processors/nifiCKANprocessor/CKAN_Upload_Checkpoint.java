@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Properties;
+
+/**
+ * Progress of a multipart upload of a file to a CKAN resource, saved to disk after every part so that a later
+ * attempt can resume the upload instead of sending the whole file again.
+ *
+ * A checkpoint only applies to the same file, unchanged (same size and modification time), split with the same part size.
+ */
+public class CKAN_Upload_Checkpoint {
+
+    static final String SUFFIX = ".checkpoint";
+
+    private final Path file;
+    private final String resourceId;
+    private final long fileSize;
+    private final long lastModified;
+    private final long partSize;
+    private String uploadId;
+    // Numbers (starting at 1) of the parts CKAN has confirmed
+    private final BitSet committedParts = new BitSet();
+
+    private CKAN_Upload_Checkpoint(Path file, String resourceId, long fileSize, long lastModified, long partSize) {
+        this.file = file;
+        this.resourceId = resourceId;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.partSize = partSize;
+    }
+
+    /**
+     * Loads the checkpoint of the upload of that file to that resource, or starts a new one if there is none
+     * or if it was saved for a different content or part size
+     */
+    public static CKAN_Upload_Checkpoint load(Path directory, String resourceId, File source, long partSize) throws IOException {
+        Path file = directory.resolve(resourceId.replaceAll("[^A-Za-z0-9_-]", "_") + SUFFIX);
+        CKAN_Upload_Checkpoint checkpoint = new CKAN_Upload_Checkpoint(file, resourceId, source.length(), source.lastModified(), partSize);
+        if (Files.exists(file)) {
+            Properties saved = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                saved.load(in);
+            }
+            if (checkpoint.matches(saved)) {
+                checkpoint.uploadId = saved.getProperty("uploadId");
+                for (String part : StringUtils.split(saved.getProperty("parts", ""), ',')) {
+                    checkpoint.committedParts.set(Integer.parseInt(part));
+                }
+            } else {
+                Files.delete(file);
+            }
+        }
+        return checkpoint;
+    }
+
+    private boolean matches(Properties saved) {
+        return resourceId.equals(saved.getProperty("resourceId"))
+                && String.valueOf(fileSize).equals(saved.getProperty("fileSize"))
+                && String.valueOf(lastModified).equals(saved.getProperty("lastModified"))
+                && String.valueOf(partSize).equals(saved.getProperty("partSize"))
+                && saved.getProperty("uploadId") != null;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    /**
+     * Starts over with a new upload, forgetting the parts of the previous one
+     */
+    public synchronized void start(String uploadId) throws IOException {
+        this.uploadId = uploadId;
+        committedParts.clear();
+        save();
+    }
+
+    public int getPartCount() {
+        return (int) Math.max(1, (fileSize + partSize - 1) / partSize);
+    }
+
+    public long getPartOffset(int partNumber) {
+        return (partNumber - 1) * partSize;
+    }
+
+    public long getPartLength(int partNumber) {
+        return Math.min(partSize, fileSize - getPartOffset(partNumber));
+    }
+
+    public synchronized boolean isCommitted(int partNumber) {
+        return committedParts.get(partNumber);
+    }
+
+    public synchronized void commit(int partNumber) throws IOException {
+        committedParts.set(partNumber);
+        save();
+    }
+
+    /**
+     * Removes the checkpoint once the upload is finished
+     */
+    public synchronized void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    // Written to a temporary file first, so a crash never leaves a half written checkpoint
+    private void save() throws IOException {
+        Properties saved = new Properties();
+        saved.setProperty("resourceId", resourceId);
+        saved.setProperty("uploadId", uploadId);
+        saved.setProperty("fileSize", String.valueOf(fileSize));
+        saved.setProperty("lastModified", String.valueOf(lastModified));
+        saved.setProperty("partSize", String.valueOf(partSize));
+        StringBuilder parts = new StringBuilder();
+        for (int part = committedParts.nextSetBit(0); part >= 0; part = committedParts.nextSetBit(part + 1)) {
+            if (parts.length() > 0) {
+                parts.append(',');
+            }
+            parts.append(part);
+        }
+        saved.setProperty("parts", parts.toString());
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            saved.store(out, "CKAN multipart upload of resource " + resourceId);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.entity.ContentType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Which uploads are gzip-compressed, and how. Only files of a compressible content type and of a minimum size are,
+ * so already compressed formats (zip, gzip, images, xlsx...) and tiny files are sent as they are.
+ */
+public class CKAN_Upload_Compression {
+
+    public enum Mode {
+        NONE,
+        // The file is stored compressed in CKAN, as <name>.gz
+        GZIP_FILE,
+        // The request body is sent with Content-Encoding: gzip, CKAN (or its proxy) inflates it and stores the original file
+        GZIP_ENCODING
+    }
+
+    static final CKAN_Upload_Compression NONE = new CKAN_Upload_Compression(Mode.NONE, 0, Collections.<String>emptyList());
+
+    private final Mode mode;
+    private final long minimumSize;
+    private final List<String> compressibleTypes = new ArrayList<>();
+
+    /**
+     * @param compressibleTypes Mime types that are compressed, "text/*" matching every text type
+     */
+    CKAN_Upload_Compression(Mode mode, long minimumSize, List<String> compressibleTypes) {
+        this.mode = mode;
+        this.minimumSize = minimumSize;
+        for (String type : compressibleTypes) {
+            if (!type.trim().isEmpty()) {
+                this.compressibleTypes.add(type.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Whether a content of that type and length is compressed. A length below 0 is unknown and is taken as big enough.
+     */
+    public boolean shouldCompress(ContentType contentType, long length) {
+        if (mode == Mode.NONE || contentType == null || (length >= 0 && length < minimumSize)) {
+            return false;
+        }
+        String mimeType = contentType.getMimeType().toLowerCase(Locale.ROOT);
+        for (String type : compressibleTypes) {
+            if (type.endsWith("/*") ? mimeType.startsWith(type.substring(0, type.length() - 1)) : mimeType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
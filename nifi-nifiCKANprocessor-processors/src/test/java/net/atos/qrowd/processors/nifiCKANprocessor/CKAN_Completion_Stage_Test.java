@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Completion_Stage_Test {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testActionsAreCarriedOut() throws Exception {
+        Path journal = folder.newFolder("journal").toPath();
+        Path source = folder.newFolder("source").toPath();
+        Path target = folder.getRoot().toPath().resolve("target");
+        Path deleted = Files.write(source.resolve("deleted.csv"), new byte[]{1});
+        Path moved = Files.write(source.resolve("moved.csv"), new byte[]{2});
+
+        CKAN_Completion_Stage stage = CKAN_Completion_Stage.open(journal);
+        try {
+            stage.record(Arrays.asList(CKAN_Completion_Stage.Action.delete(deleted),
+                    CKAN_Completion_Stage.Action.move(moved, target, CKAN_Completion_Stage.Conflict.RENAME)));
+            awaitBacklog(stage, 0);
+        } finally {
+            stage.close();
+        }
+        assertFalse(Files.exists(deleted));
+        assertFalse(Files.exists(moved));
+        assertTrue(Files.exists(target.resolve("moved.csv")));
+        // Nothing is left to replay
+        assertEquals(0, Files.size(journal.resolve(CKAN_Completion_Stage.JOURNAL_FILE)));
+    }
+
+    @Test
+    public void testPendingActionsAreReplayedButNotTheDoneOnes() throws Exception {
+        Path journal = folder.newFolder("journal").toPath();
+        Path source = folder.newFolder("source").toPath();
+        // A file where the target directory should be: the move fails until it is removed
+        Path target = Files.write(folder.getRoot().toPath().resolve("target"), new byte[0]);
+        Path deleted = Files.write(source.resolve("deleted.csv"), new byte[]{1});
+        Path moved = Files.write(source.resolve("moved.csv"), new byte[]{2});
+
+        CKAN_Completion_Stage stage = CKAN_Completion_Stage.open(journal);
+        try {
+            stage.record(Arrays.asList(CKAN_Completion_Stage.Action.delete(deleted),
+                    CKAN_Completion_Stage.Action.move(moved, target, CKAN_Completion_Stage.Conflict.FAIL)));
+            awaitBacklog(stage, 1);
+        } finally {
+            stage.close();
+        }
+        assertFalse(Files.exists(deleted));
+        assertTrue(Files.exists(moved));
+
+        // A new file at the path of the one deleted, and a record cut by a crash at the end of the journal
+        Files.write(deleted, new byte[]{3});
+        Files.write(journal.resolve(CKAN_Completion_Stage.JOURNAL_FILE), new byte[]{'A', 0, 0, 0}, StandardOpenOption.APPEND);
+        Files.delete(target);
+
+        stage = CKAN_Completion_Stage.open(journal);
+        try {
+            awaitBacklog(stage, 0);
+        } finally {
+            stage.close();
+        }
+        assertTrue(Files.exists(deleted));
+        assertFalse(Files.exists(moved));
+        assertTrue(Files.exists(target.resolve("moved.csv")));
+    }
+
+    private static void awaitBacklog(CKAN_Completion_Stage stage, int backlog) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (stage.getBacklog() != backlog && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(backlog, stage.getBacklog());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CKAN_Csv_Reader_Test {
+
+    @Test
+    public void testQuotedFields() throws IOException {
+        CKAN_Csv_Reader reader = reader("a,\"b,c\",\"say \"\"hi\"\"\"\n\"multi\nline\",,\"\"\n", 0);
+        assertEquals(Arrays.asList("a", "b,c", "say \"hi\""), reader.next());
+        assertEquals(Arrays.asList("multi\nline", "", ""), reader.next());
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testCrLfAndEmptyLines() throws IOException {
+        CKAN_Csv_Reader reader = reader("a,b\r\n\r\nc,d\r\n", 0);
+        assertEquals(Arrays.asList("a", "b"), reader.next());
+        assertEquals(Arrays.asList("c", "d"), reader.next());
+        assertNull(reader.next());
+        assertEquals(12, reader.getOffset());
+    }
+
+    @Test
+    public void testIncompleteLastLineIsLeft() throws IOException {
+        String complete = "id,name\n1,\"é\"\n";
+        CKAN_Csv_Reader reader = reader(complete + "2,\"still being writ", 0);
+        assertEquals(Arrays.asList("id", "name"), reader.next());
+        assertEquals(8, reader.getOffset());
+        assertEquals(Arrays.asList("1", "é"), reader.next());
+        assertNull(reader.next());
+        // The offset counts bytes, not characters, and stops before the incomplete line
+        assertEquals(complete.getBytes(StandardCharsets.UTF_8).length, reader.getOffset());
+    }
+
+    @Test
+    public void testReadFromOffset() throws IOException {
+        String file = "id,name\n1,a\n2,b\n";
+        byte[] bytes = file.getBytes(StandardCharsets.UTF_8);
+        CKAN_Csv_Reader reader = new CKAN_Csv_Reader(new ByteArrayInputStream(bytes, 12, bytes.length - 12), 12, ',');
+        assertEquals(Arrays.asList("2", "b"), reader.next());
+        assertEquals(bytes.length, reader.getOffset());
+        assertNull(reader.next());
+    }
+
+    private static CKAN_Csv_Reader reader(String content, long offset) {
+        return new CKAN_Csv_Reader(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), offset, ',');
+    }
+}
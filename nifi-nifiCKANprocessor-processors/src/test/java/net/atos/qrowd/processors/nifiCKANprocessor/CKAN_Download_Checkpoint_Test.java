@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Download_Checkpoint_Test {
+
+    private static final String URL = "http://ckan/dataset/p/resource/r/download/data.csv";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResumesTheSameContent() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CKAN_Download_Checkpoint checkpoint = CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, "\"v1\"", 1000);
+        assertEquals(3, checkpoint.getSegmentCount());
+        assertEquals(500, checkpoint.getSegmentLength(3));
+        Files.write(checkpoint.getDataFile(), new byte[2500]);
+        checkpoint.commit(1);
+        checkpoint.commit(3);
+
+        CKAN_Download_Checkpoint resumed = CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, "\"v1\"", 1000);
+        assertEquals(2, resumed.getCommittedCount());
+        assertTrue(resumed.isCommitted(1));
+        assertFalse(resumed.isCommitted(2));
+        assertTrue(resumed.isCommitted(3));
+    }
+
+    @Test
+    public void testChangedContentStartsOver() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CKAN_Download_Checkpoint checkpoint = CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, "\"v1\"", 1000);
+        Files.write(checkpoint.getDataFile(), new byte[2500]);
+        checkpoint.commit(1);
+
+        CKAN_Download_Checkpoint changed = CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, "\"v2\"", 1000);
+        assertEquals(0, changed.getCommittedCount());
+        // The data of the other content is deleted
+        assertFalse(Files.exists(changed.getDataFile()));
+
+        // Nor is a download in segments of another size
+        Files.write(changed.getDataFile(), new byte[2500]);
+        changed.commit(1);
+        assertEquals(0, CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, "\"v2\"", 500).getCommittedCount());
+    }
+
+    @Test
+    public void testWithoutValidatorNothingIsResumed() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        CKAN_Download_Checkpoint checkpoint = CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, null, 1000);
+        Files.write(checkpoint.getDataFile(), new byte[2500]);
+        checkpoint.commit(1);
+
+        assertEquals(0, CKAN_Download_Checkpoint.load(directory, "r", URL, 2500, null, 1000).getCommittedCount());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class CKAN_File_Uploader_Test {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CKAN_Stub_Server ckan;
+    private TestRunner runner;
+    private File csv;
+
+    @Before
+    public void init() throws IOException {
+        ckan = CKAN_Stub_Server.start();
+        csv = folder.newFile("readings.csv");
+        runner = TestRunners.newTestRunner(CKAN_File_Uploader.class);
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("organization_id", "sensors");
+        runner.setProperty("package_name", "readings");
+        runner.setProperty("file_path", csv.getAbsolutePath());
+        runner.setProperty("Update Strategy", "Append New Rows");
+        runner.setProperty("DataStore Batch Rows", "2");
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void testOnlyNewRowsAreAppended() throws IOException {
+        write("id,value\n1,a\n2,b\n3,");
+        upload();
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+
+        final String resourceId = ckan.getResourceId("readings", "readings.csv");
+        assertNotNull(resourceId);
+        assertRows(ckan.getDataStoreRows(resourceId), "1", "2");
+        // The incomplete last row is left for the next append
+        runner.getStateManager().assertStateEquals(csv.getAbsolutePath() + ".offset", String.valueOf("id,value\n1,a\n2,b\n".length()), Scope.LOCAL);
+
+        write("c\n4,d\n");
+        upload();
+        assertRows(ckan.getDataStoreRows(resourceId), "1", "2", "3", "4");
+        assertEquals(2, ckan.getRequestCount("datastore_upsert"));
+        assertEquals(1, ckan.getRequestCount("datastore_create"));
+
+        upload();
+        runner.assertAllFlowFilesTransferred("unchanged", 1);
+        assertEquals(2, ckan.getRequestCount("datastore_upsert"));
+    }
+
+    @Test
+    public void testFailedBatchIsNotRetriedButAppendedByTheNextRun() throws IOException {
+        write("id,value\n1,a\n2,b\n3,c\n");
+        ckan.failNext("datastore_upsert", 1, 503, 1);
+        upload();
+        // The first batch went through, the second one is left to the next run instead of being sent twice
+        runner.assertTransferCount("SUCCESS", 0);
+        runner.assertQueueNotEmpty();
+        assertEquals(2, ckan.getRequestCount("datastore_upsert"));
+        final String resourceId = ckan.getResourceId("readings", "readings.csv");
+        assertRows(ckan.getDataStoreRows(resourceId), "1", "2");
+
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        assertRows(ckan.getDataStoreRows(resourceId), "1", "2", "3");
+        assertEquals(3, ckan.getRequestCount("datastore_upsert"));
+    }
+
+    @Test
+    public void testTruncatedFileIsAppendedAgain() throws IOException {
+        write("id,value\n1,a\n2,b\n");
+        upload();
+        final String resourceId = ckan.getResourceId("readings", "readings.csv");
+
+        Files.write(csv.toPath(), "id,value\n5,e\n".getBytes(StandardCharsets.UTF_8));
+        upload();
+        assertRows(ckan.getDataStoreRows(resourceId), "5");
+    }
+
+    private void upload() {
+        runner.clearTransferState();
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+    }
+
+    private void write(String rows) throws IOException {
+        Files.write(csv.toPath(), rows.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private static void assertRows(List<Map<String, String>> rows, String... ids) {
+        assertNotNull(rows);
+        assertEquals(ids.length, rows.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], rows.get(i).get("id"));
+        }
+    }
+}
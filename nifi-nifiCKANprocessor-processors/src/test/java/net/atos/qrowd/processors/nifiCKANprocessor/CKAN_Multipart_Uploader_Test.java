@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Multipart_Uploader_Test {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CKAN_Stub_Server ckan;
+    private TestRunner runner;
+    private File file;
+
+    @Before
+    public void init() throws IOException {
+        ckan = CKAN_Stub_Server.start();
+        file = folder.newFile("readings.csv");
+        final byte[] content = new byte[5000];
+        Arrays.fill(content, (byte) 'a');
+        Files.write(file.toPath(), content);
+
+        runner = TestRunners.newTestRunner(CKAN_File_Uploader.class);
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("organization_id", "sensors");
+        runner.setProperty("package_name", "readings");
+        runner.setProperty("file_path", file.getAbsolutePath());
+        runner.setProperty("Large File Threshold", "1 KB");
+        runner.setProperty("Part Size", "1 KB");
+        // One part at a time, so the part that fails is known
+        runner.setProperty("Parallel Part Uploads", "1");
+        runner.setProperty("Upload Checkpoint Directory", folder.newFolder().getAbsolutePath());
+        runner.setProperty("Max Retries", "0");
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void testUploadInParts() {
+        upload();
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), ckan.getPartsReceived());
+        assertEquals(1, ckan.getRequestCount("cloudstorage_initiate_multipart"));
+        assertEquals(1, ckan.getRequestCount("cloudstorage_finish_multipart"));
+    }
+
+    @Test
+    public void testFailedUploadOnlySendsTheMissingParts() {
+        // The third part fails, the ones after it are still sent
+        ckan.failNext("cloudstorage_upload_multipart", 2, 500, 1);
+        upload();
+        runner.assertTransferCount("SUCCESS", 0);
+        runner.assertQueueNotEmpty();
+        assertEquals(Arrays.asList(1, 2, 4, 5), ckan.getPartsReceived());
+        assertEquals(0, ckan.getRequestCount("cloudstorage_finish_multipart"));
+
+        ckan.resetCounts();
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        assertEquals(Arrays.asList(3), ckan.getPartsReceived());
+        assertEquals(0, ckan.getRequestCount("cloudstorage_initiate_multipart"));
+        assertEquals(1, ckan.getRequestCount("cloudstorage_finish_multipart"));
+    }
+
+    @Test
+    public void testChangedFileStartsOver() {
+        ckan.failNext("cloudstorage_upload_multipart", 2, 500, 1);
+        upload();
+        runner.assertQueueNotEmpty();
+
+        // Same size, but modified since the parts were sent: none of them can be kept
+        assertTrue(file.setLastModified(file.lastModified() - 60000));
+        ckan.resetCounts();
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), ckan.getPartsReceived());
+        assertEquals(1, ckan.getRequestCount("cloudstorage_initiate_multipart"));
+    }
+
+    private void upload() {
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+    }
+}
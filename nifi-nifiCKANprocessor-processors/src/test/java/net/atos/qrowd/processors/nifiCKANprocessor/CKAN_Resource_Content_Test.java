@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class CKAN_Resource_Content_Test {
+
+    @Test
+    public void testOpenOnFirstRead() throws IOException {
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final CKAN_Resource_Content content = new CKAN_Resource_Content() {
+            @Override
+            public InputStream open() {
+                opened.incrementAndGet();
+                return new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)) {
+                    @Override
+                    public void close() {
+                        closed.incrementAndGet();
+                    }
+                };
+            }
+
+            @Override
+            public long length() {
+                return 3;
+            }
+        };
+
+        // Never read, never opened
+        content.openOnFirstRead().close();
+        assertEquals(0, opened.get());
+
+        try (InputStream in = content.openOnFirstRead()) {
+            assertEquals(0, opened.get());
+            assertEquals('a', in.read());
+            final byte[] rest = new byte[2];
+            assertEquals(2, in.read(rest, 0, 2));
+            assertEquals(-1, in.read());
+        }
+        assertEquals(1, opened.get());
+        assertEquals(1, closed.get());
+    }
+}
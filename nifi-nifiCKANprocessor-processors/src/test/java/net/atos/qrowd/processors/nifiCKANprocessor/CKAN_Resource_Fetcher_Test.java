@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class CKAN_Resource_Fetcher_Test {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CKAN_Stub_Server ckan;
+    private TestRunner runner;
+    private byte[] content;
+    private String resourceId;
+
+    @Before
+    public void init() throws IOException {
+        ckan = CKAN_Stub_Server.start();
+        content = new byte[5000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        ckan.createPackage("sensors", "readings");
+        resourceId = ckan.createResource("readings", "readings.csv", content);
+
+        runner = TestRunners.newTestRunner(CKAN_Resource_Fetcher.class);
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("Resource Id", resourceId);
+        runner.setProperty("Download Directory", folder.newFolder().getAbsolutePath());
+        runner.setProperty("Segmented Download Threshold", "1 KB");
+        runner.setProperty("Segment Size", "1 KB");
+        runner.setProperty("Parallel Segments", "1");
+        runner.setProperty("Max Retries", "0");
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void testSegmentedDownload() throws IOException {
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        final MockFlowFile fetched = runner.getFlowFilesForRelationship("SUCCESS").get(0);
+        fetched.assertContentEquals(content);
+        fetched.assertAttributeEquals("ckan.download.segments", "5");
+        fetched.assertAttributeEquals("ckan.resource.hash.verified", "true");
+        fetched.assertAttributeEquals("ckan.resource.id", resourceId);
+        fetched.assertAttributeEquals("filename", "readings.csv");
+        assertEquals(Arrays.asList("HEAD", "GET", "GET", "GET", "GET", "GET"), methods(ckan.getDownloads()));
+    }
+
+    @Test
+    public void testFailedDownloadResumesFromTheSegmentsReceived() throws IOException {
+        // The probe and the first two segments go through, the third one fails but the next ones are still received
+        ckan.failNext(CKAN_Stub_Server.DOWNLOAD, 3, 500, 1);
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertTransferCount("SUCCESS", 0);
+        runner.assertQueueNotEmpty();
+        assertEquals(Arrays.asList(null, "bytes=0-1023", "bytes=1024-2047", "bytes=2048-3071", "bytes=3072-4095", "bytes=4096-4999"),
+                ranges(ckan.getDownloads()));
+
+        ckan.resetCounts();
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        runner.getFlowFilesForRelationship("SUCCESS").get(0).assertContentEquals(content);
+        assertEquals(Arrays.asList(null, "bytes=2048-3071"), ranges(ckan.getDownloads()));
+    }
+
+    @Test
+    public void testChangedContentIsDownloadedAgain() throws IOException {
+        ckan.failNext(CKAN_Stub_Server.DOWNLOAD, 3, 500, 1);
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+
+        final byte[] changed = Arrays.copyOf(content, 3000);
+        ckan.updateResource(resourceId, changed);
+        ckan.resetCounts();
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        runner.getFlowFilesForRelationship("SUCCESS").get(0).assertContentEquals(changed);
+        assertEquals(Arrays.asList(null, "bytes=0-1023", "bytes=1024-2047", "bytes=2048-2999"), ranges(ckan.getDownloads()));
+    }
+
+    @Test
+    public void testApiKeyIsOnlySentToCkan() throws IOException {
+        runner.setProperty("Segmented Download Threshold", "1 MB");
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        for (CKAN_Stub_Server.Download download : ckan.getDownloads()) {
+            assertEquals("key", download.getApiKey());
+        }
+
+        // The same stub, but an other origin for the processor
+        final String otherOrigin = "http://localhost:" + URI.create(ckan.getUrl()).getPort();
+        assertNotEquals(ckan.getUrl(), otherOrigin);
+        ckan.setResourceUrl(resourceId, otherOrigin + "/" + CKAN_Stub_Server.DOWNLOAD + "/" + resourceId + "/readings.csv");
+        ckan.resetCounts();
+        runner.clearTransferState();
+        runner.enqueue(new byte[0]);
+        runner.run(1);
+        runner.assertAllFlowFilesTransferred("SUCCESS", 1);
+        runner.getFlowFilesForRelationship("SUCCESS").get(0).assertContentEquals(content);
+        assertEquals(2, ckan.getDownloads().size());
+        for (CKAN_Stub_Server.Download download : ckan.getDownloads()) {
+            assertNull(download.getApiKey());
+        }
+    }
+
+    private static List<String> methods(List<CKAN_Stub_Server.Download> downloads) {
+        final List<String> methods = new ArrayList<>();
+        for (CKAN_Stub_Server.Download download : downloads) {
+            methods.add(download.getMethod());
+        }
+        return methods;
+    }
+
+    private static List<String> ranges(List<CKAN_Stub_Server.Download> downloads) {
+        final List<String> ranges = new ArrayList<>();
+        for (CKAN_Stub_Server.Download download : downloads) {
+            ranges.add(download.getRange());
+        }
+        return ranges;
+    }
+}
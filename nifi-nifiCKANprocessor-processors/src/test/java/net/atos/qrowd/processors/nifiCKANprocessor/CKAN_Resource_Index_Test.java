@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CKAN_Resource_Index_Test {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayAfterReopen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            index.put("org", "pkg", "a.csv", "id-a", "hash-a", 10);
+            index.put("org", "pkg", "b.csv", "id-b", "hash-b", 20);
+            index.put("org", "pkg", "a.csv", "id-a", "hash-a2", 11);
+            index.remove("org", "pkg", "b.csv");
+            // Separators in the values are escaped
+            index.put("org", "pkg", "tab\tname.csv", "id-t", "hash\\t", 30);
+        }
+
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            CKAN_Resource_Index.Entry a = index.get("org", "pkg", "a.csv");
+            assertEquals("id-a", a.getId());
+            assertEquals("hash-a2", a.getHash());
+            assertEquals(11, a.getSize());
+            assertNull(index.get("org", "pkg", "b.csv"));
+            assertEquals("hash\\t", index.get("org", "pkg", "tab\tname.csv").getHash());
+        }
+    }
+
+    @Test
+    public void testCutLastLineIsIgnored() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            index.put("org", "pkg", "a.csv", "id-a", "hash-a", 10);
+        }
+        // A crash in the middle of the next line
+        Files.write(directory.resolve(CKAN_Resource_Index.FILE_NAME), "P\torg\tpkg\tb.csv\tid-b\thash-b\t2".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            assertEquals("id-a", index.get("org", "pkg", "a.csv").getId());
+            assertNull(index.get("org", "pkg", "b.csv"));
+            index.put("org", "pkg", "c.csv", "id-c", "hash-c", 30);
+        }
+
+        // The line appended after the cut one starts on its own line
+        List<String> lines = Files.readAllLines(directory.resolve(CKAN_Resource_Index.FILE_NAME), StandardCharsets.UTF_8);
+        assertEquals("P\torg\tpkg\tc.csv\tid-c\thash-c\t30", lines.get(lines.size() - 1));
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            assertEquals("id-c", index.get("org", "pkg", "c.csv").getId());
+            assertNull(index.get("org", "pkg", "b.csv"));
+        }
+    }
+
+    @Test
+    public void testLogIsCompactedWhileOpen() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve(CKAN_Resource_Index.FILE_NAME);
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            for (int i = 0; i < 1010; i++) {
+                index.put("org", "pkg", "a.csv", "id-a", "hash-" + i, i);
+            }
+            index.put("org", "pkg", "b.csv", "id-b", "hash-b", 20);
+            // Compacted to a single line at the 1003rd one, then 8 lines appended
+            assertEquals(9, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+        }
+
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            assertEquals("hash-1009", index.get("org", "pkg", "a.csv").getHash());
+            assertEquals("id-b", index.get("org", "pkg", "b.csv").getId());
+        }
+    }
+
+    @Test
+    public void testMalformedLinesAreSkipped() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        Files.write(directory.resolve(CKAN_Resource_Index.FILE_NAME), ("P\torg\tpkg\ta.csv\tid-a\thash-a\t10\n"
+                + "garbage\n"
+                + "P\torg\tpkg\tb.csv\tid-b\n"
+                + "P\torg\tpkg\tc.csv\tid-c\thash-c\tnot-a-size\n"
+                + "\n"
+                + "P\torg\tpkg\td.csv\tid-d\thash-d\t40\n").getBytes(StandardCharsets.UTF_8));
+
+        try (CKAN_Resource_Index index = CKAN_Resource_Index.open(directory)) {
+            assertEquals("id-a", index.get("org", "pkg", "a.csv").getId());
+            assertNull(index.get("org", "pkg", "b.csv"));
+            assertNull(index.get("org", "pkg", "c.csv"));
+            assertEquals(40, index.get("org", "pkg", "d.csv").getSize());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class CKAN_Resource_Lister_Test {
+
+    private CKAN_Stub_Server ckan;
+    private TestRunner runner;
+
+    @Before
+    public void init() throws IOException {
+        ckan = CKAN_Stub_Server.start();
+        runner = TestRunners.newTestRunner(CKAN_Resource_Lister.class);
+        runner.setProperty("CKAN_url", ckan.getUrl());
+        runner.setProperty("Api_Key", "key");
+        runner.setProperty("Listing Lag", "0 sec");
+        // One package per page, so that the cursor is saved and read back between the pages
+        runner.setProperty("Page Size", "1");
+    }
+
+    @After
+    public void close() {
+        ckan.close();
+    }
+
+    @Test
+    public void testOnlyChangedResourcesAreListedAgain() throws IOException {
+        ckan.createPackage("sensors", "readings");
+        final String first = ckan.createResource("readings", "first.csv", bytes("1"));
+        ckan.createResource("readings", "second.csv", bytes("2"));
+        ckan.createPackage("sensors", "alerts");
+        ckan.createResource("alerts", "alerts.csv", bytes("3"));
+
+        runner.run(1);
+        assertEquals(Arrays.asList("first.csv", "second.csv", "alerts.csv"), listed());
+        final MockFlowFile flowFile = runner.getFlowFilesForRelationship("SUCCESS").get(0);
+        flowFile.assertAttributeEquals("ckan.resource.id", first);
+        flowFile.assertAttributeEquals("ckan.package.name", "readings");
+        flowFile.assertAttributeEquals("ckan.organization", "sensors");
+        assertNotNull(runner.getStateManager().getState(Scope.CLUSTER).get(CKAN_Resource_Lister.STATE_MODIFIED));
+
+        runner.clearTransferState();
+        runner.run(1);
+        runner.assertTransferCount("SUCCESS", 0);
+
+        // The package of the updated resource is modified after the cursor, but its other resource did not change
+        ckan.updateResource(first, bytes("one"));
+        runner.run(1);
+        assertEquals(Arrays.asList("first.csv"), listed());
+    }
+
+    @Test
+    public void testChangingTheOrganizationsListsAgain() {
+        ckan.createPackage("sensors", "readings");
+        ckan.createResource("readings", "readings.csv", bytes("1"));
+        ckan.createPackage("weather", "forecasts");
+        ckan.createResource("forecasts", "forecasts.csv", bytes("2"));
+
+        runner.setProperty("Organizations", "weather");
+        runner.run(1);
+        assertEquals(Arrays.asList("forecasts.csv"), listed());
+
+        // An other selection of packages starts over instead of going on from the cursor of the previous one
+        runner.setProperty("Organizations", "sensors, weather");
+        runner.clearTransferState();
+        runner.run(1);
+        assertEquals(Arrays.asList("readings.csv", "forecasts.csv"), listed());
+    }
+
+    @Test
+    public void testFailedPageIsListedByTheNextRun() {
+        ckan.createPackage("sensors", "readings");
+        ckan.createResource("readings", "readings.csv", bytes("1"));
+        ckan.createPackage("sensors", "alerts");
+        ckan.createResource("alerts", "alerts.csv", bytes("2"));
+
+        runner.setProperty("Max Retries", "0");
+        ckan.failNext("package_search", 1, 500, 1);
+        runner.run(1);
+        assertEquals(Arrays.asList("readings.csv"), listed());
+
+        runner.clearTransferState();
+        runner.run(1);
+        assertEquals(Arrays.asList("alerts.csv"), listed());
+    }
+
+    private List<String> listed() {
+        final List<String> names = new ArrayList<>();
+        for (MockFlowFile flowFile : runner.getFlowFilesForRelationship("SUCCESS")) {
+            names.add(flowFile.getAttribute("filename"));
+        }
+        return names;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
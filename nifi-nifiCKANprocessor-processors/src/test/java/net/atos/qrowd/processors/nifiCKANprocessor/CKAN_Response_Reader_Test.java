@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import net.atos.qrowd.processors.pojos.Result_;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Response_Reader_Test {
+
+    @Test
+    public void testReadPackage() throws IOException {
+        ByteArrayInputStream content = content(CKAN_Stub_Server.packageResponse(3));
+        List<Result_> resources = new ArrayList<>();
+        assertEquals("0e9b5b7e-2b5a-4c43-9a4a-3bd1b2a5e4f1", CKAN_Response_Reader.readPackage(response(content), resources));
+        assertEquals(3, resources.size());
+        assertEquals("upload-2.csv", resources.get(2).getName());
+        assertEquals(0, content.available());
+    }
+
+    @Test
+    public void testRestOfTheResponseIsDrained() throws IOException {
+        // The field is found at the start, the rest is still read so the connection can be reused
+        StringBuilder body = new StringBuilder("{\"success\": true, \"result\": {\"resource_id\": \"r1\", \"records\": [");
+        for (int i = 0; i < 1000; i++) {
+            body.append(i == 0 ? "" : ", ").append("{\"value\": ").append(i).append('}');
+        }
+        body.append("]}}");
+        ByteArrayInputStream content = content(body.toString());
+        assertEquals("r1", CKAN_Response_Reader.readResultField(response(content), "resource_id"));
+        assertEquals(0, content.available());
+    }
+
+    @Test
+    public void testLargeRestIsNotRead() throws IOException {
+        char[] padding = new char[(int) CKAN_Response_Reader.MAX_DRAIN_BYTES * 2];
+        Arrays.fill(padding, 'x');
+        ByteArrayInputStream content = content("{\"result\": {\"resource_id\": \"r1\"}, \"help\": \"" + new String(padding) + "\"}");
+        assertEquals("r1", CKAN_Response_Reader.readResultField(response(content), "resource_id"));
+        // Closing the response closes the connection instead of reading that much
+        assertTrue(content.available() > 0);
+    }
+
+    @Test
+    public void testReadForLogIsTruncated() throws IOException {
+        char[] message = new char[CKAN_Response_Reader.MAX_LOGGED_CHARS * 2];
+        Arrays.fill(message, 'e');
+        ByteArrayInputStream content = content(new String(message));
+        String logged = CKAN_Response_Reader.readForLog(response(content));
+        assertEquals(CKAN_Response_Reader.MAX_LOGGED_CHARS + "...".length(), logged.length());
+        assertEquals(0, content.available());
+    }
+
+    @Test
+    public void testReadSearchedPackages() throws IOException {
+        ByteArrayInputStream content = content("{\"success\": true, \"result\": {\"count\": 1, \"results\": [{\"id\": \"p1\", \"name\": \"pkg\", "
+                + "\"metadata_modified\": \"2018-03-01T10:00:00.123456\", \"tags\": [{\"name\": \"t\"}], \"organization\": {\"title\": \"Org\", \"name\": \"org\"}, "
+                + "\"resources\": [{\"id\": \"r1\", \"name\": \"a.csv\"}]}]}}");
+        List<CKAN_Package_Search.Package> packages = new ArrayList<>();
+        CKAN_Response_Reader.readSearchedPackages(response(content), packages);
+        assertEquals(1, packages.size());
+        CKAN_Package_Search.Package found = packages.get(0);
+        assertEquals("p1", found.getId());
+        assertEquals("pkg", found.getName());
+        assertEquals("org", found.getOrganization());
+        // Truncated to the precision of the search index
+        assertEquals(Instant.parse("2018-03-01T10:00:00.123Z"), found.getModified());
+        assertEquals("r1", found.getResources().get(0).getId());
+    }
+
+    private static ByteArrayInputStream content(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static HttpResponse response(ByteArrayInputStream content) {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(content);
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        response.setEntity(entity);
+        return response;
+    }
+}
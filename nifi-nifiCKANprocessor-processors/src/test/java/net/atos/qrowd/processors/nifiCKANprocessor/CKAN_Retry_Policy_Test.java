@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CKAN_Retry_Policy_Test {
+
+    private CKAN_Stub_Server stub;
+    private CloseableHttpClient httpClient;
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        stub = CKAN_Stub_Server.start();
+        stub.createPackage("org", "pkg");
+        // The requests are counted before their connection is opened, so also the ones that could not be sent
+        httpClient = HttpClients.custom()
+                .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(1000).setSocketTimeout(300).build())
+                .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> attempts.incrementAndGet())
+                .disableAutomaticRetries()
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        httpClient.close();
+        stub.close();
+        CKAN_Metrics.unregister("retry-test");
+    }
+
+    @Test
+    public void testShowIsRetriedOnServerError() throws IOException {
+        stub.failNext("package_show", 503, 2);
+        assertEquals(200, execute(policy(3), get("package_show")));
+        assertEquals(3, stub.getRequestCount("package_show"));
+    }
+
+    @Test
+    public void testRetriesAreBounded() throws IOException {
+        stub.failNext("package_show", 503, 5);
+        assertEquals(503, execute(policy(2), get("package_show")));
+        assertEquals(3, stub.getRequestCount("package_show"));
+    }
+
+    @Test
+    public void testCreateIsNotRetriedOnServerError() throws IOException {
+        // A proxy answering 504 does not tell whether CKAN created the package
+        stub.failNext("package_create", 504, 1);
+        assertEquals(504, execute(policy(3), post("package_create")));
+        assertEquals(1, stub.getRequestCount("package_create"));
+    }
+
+    @Test
+    public void testPermanentErrorTypeIsNotRetried() throws IOException {
+        // A validation error answered with a server status, e.g. rewritten by a proxy, would fail the same way again
+        stub.failNext("package_show", 500, "Validation Error", 2);
+        CKAN_Retry_Policy policy = policy(3);
+        try (CloseableHttpResponse response = policy.execute(httpClient, get("package_show"))) {
+            assertEquals(500, response.getStatusLine().getStatusCode());
+            // The body is still there for the caller
+            assertEquals("Validation Error", CKAN_Response_Reader.readErrorType(CKAN_Response_Reader.readForLog(response)));
+        }
+        assertEquals(1, stub.getRequestCount("package_show"));
+    }
+
+    @Test
+    public void testCreateIsRetriedWhenThrottled() throws IOException {
+        stub.failNext("package_create", 429, 1);
+        assertEquals(200, execute(policy(3), post("package_create")));
+        assertEquals(2, stub.getRequestCount("package_create"));
+    }
+
+    @Test
+    public void testCreateIsNotRetriedOnReadTimeout() throws IOException {
+        stub.delayNext("resource_create", 1, TimeUnit.SECONDS, 1);
+        try {
+            execute(policy(3), post("resource_create"));
+            fail("The read timeout should have been thrown");
+        } catch (SocketTimeoutException e) {
+            assertTrue(CKAN_Retry_Policy.isTransient(e));
+        }
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testShowIsRetriedOnReadTimeout() throws IOException {
+        stub.delayNext("package_show", 1, TimeUnit.SECONDS, 1);
+        assertEquals(200, execute(policy(3), get("package_show")));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testCreateIsRetriedWhenTheConnectionIsRefused() throws IOException {
+        final int closedPort;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            closedPort = socket.getLocalPort();
+        }
+        HttpPost refused = new HttpPost("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + closedPort + "/api/action/package_create");
+        refused.setEntity(new StringEntity("{\"name\": \"pkg2\"}", ContentType.APPLICATION_JSON));
+        try {
+            execute(policy(2), refused);
+            fail("The connection should have been refused");
+        } catch (ConnectException e) {
+            assertTrue(CKAN_Retry_Policy.isTransient(e));
+        }
+        // Not received, so it cannot have been done
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testTransientErrors() {
+        assertTrue(CKAN_Retry_Policy.isTransient(500));
+        assertTrue(CKAN_Retry_Policy.isTransient(503));
+        assertTrue(CKAN_Retry_Policy.isTransient(429));
+        assertTrue(CKAN_Retry_Policy.isTransient(408));
+        assertFalse(CKAN_Retry_Policy.isTransient(400));
+        assertFalse(CKAN_Retry_Policy.isTransient(403));
+        assertFalse(CKAN_Retry_Policy.isTransient(404));
+        assertFalse(CKAN_Retry_Policy.isTransient(409));
+        assertTrue(CKAN_Retry_Policy.isTransient(new NoHttpResponseException("dropped")));
+        assertFalse(CKAN_Retry_Policy.isTransient(new IOException("local file unreadable")));
+        assertTrue(CKAN_Retry_Policy.isTransient(new CKAN_Exception("package_show", 502, null)));
+        assertFalse(CKAN_Retry_Policy.isTransient(new CKAN_Exception("package_create", 409, null)));
+        assertTrue(CKAN_Retry_Policy.isTransient(503, null));
+        assertTrue(CKAN_Retry_Policy.isTransient(500, "Internal Server Error"));
+        assertFalse(CKAN_Retry_Policy.isTransient(500, "Validation Error"));
+        assertFalse(CKAN_Retry_Policy.isTransient(502, "Authorization Error"));
+        assertFalse(CKAN_Retry_Policy.isTransient(503, "Not Found Error"));
+        assertFalse(CKAN_Retry_Policy.isTransient(new CKAN_Exception("package_show", 500,
+                "{\"success\": false, \"error\": {\"message\": \"Missing value\", \"__type\": \"Validation Error\"}}")));
+        assertTrue(CKAN_Retry_Policy.isNotReceived(new ConnectException("refused")));
+        assertFalse(CKAN_Retry_Policy.isNotReceived(new SocketTimeoutException("read timed out")));
+    }
+
+    private CKAN_Retry_Policy policy(int maxRetries) {
+        return new CKAN_Retry_Policy(maxRetries, 1, 10, TimeUnit.MILLISECONDS, new CKAN_Circuit_Breaker("stub", 100, 1, TimeUnit.SECONDS),
+                CKAN_Metrics.register("retry-test"));
+    }
+
+    private int execute(CKAN_Retry_Policy policy, HttpUriRequest request) throws IOException {
+        try (CloseableHttpResponse response = policy.execute(httpClient, request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    private HttpGet get(String action) {
+        return new HttpGet(stub.getUrl() + "/api/action/" + action + "?id=pkg");
+    }
+
+    private HttpPost post(String action) {
+        HttpPost post = new HttpPost(stub.getUrl() + "/api/action/" + action);
+        post.setEntity(new StringEntity("{\"name\": \"created\", \"package_id\": \"pkg\"}", ContentType.APPLICATION_JSON));
+        return post;
+    }
+}
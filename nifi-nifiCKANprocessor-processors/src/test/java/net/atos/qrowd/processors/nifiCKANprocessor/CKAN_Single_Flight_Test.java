@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CKAN_Single_Flight_Test {
+
+    @Test
+    public void testTryJoinWhileBusy() {
+        CKAN_Single_Flight singleFlight = new CKAN_Single_Flight();
+        CKAN_Single_Flight.Flight flight = singleFlight.tryJoin("org", "pkg", "a.csv");
+        assertNotNull(flight);
+        // Names of packages are compared like CKAN does, regardless of case
+        assertNull(singleFlight.tryJoin("ORG", "Pkg", "a.csv"));
+        // Other resources and the package itself have their own flight
+        CKAN_Single_Flight.Flight other = singleFlight.tryJoin("org", "pkg", "b.csv");
+        assertNotNull(other);
+        CKAN_Single_Flight.Flight packageFlight = singleFlight.tryJoin("org", "pkg", null);
+        assertNotNull(packageFlight);
+        other.close();
+        packageFlight.close();
+
+        flight.close();
+        CKAN_Single_Flight.Flight again = singleFlight.tryJoin("org", "pkg", "a.csv");
+        assertNotNull(again);
+        again.close();
+    }
+
+    @Test
+    public void testJoinWaitsInArrivalOrder() throws Exception {
+        CKAN_Single_Flight singleFlight = new CKAN_Single_Flight();
+        CKAN_Single_Flight.Flight first = singleFlight.tryJoin("org", "pkg", "a.csv");
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> waiting = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final int task = i;
+            final CountDownLatch started = new CountDownLatch(1);
+            Thread thread = new Thread(() -> {
+                try {
+                    started.countDown();
+                    try (CKAN_Single_Flight.Flight flight = singleFlight.join("org", "pkg", "a.csv")) {
+                        order.add(task);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // Until the task is queued behind the previous ones
+            while (thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            waiting.add(thread);
+        }
+        assertTrue(order.isEmpty());
+
+        first.close();
+        for (Thread thread : waiting) {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        assertEquals(Arrays.asList(0, 1, 2), order);
+        // Nobody is left in the flight
+        CKAN_Single_Flight.Flight last = singleFlight.tryJoin("org", "pkg", "a.csv");
+        assertNotNull(last);
+        last.close();
+    }
+}
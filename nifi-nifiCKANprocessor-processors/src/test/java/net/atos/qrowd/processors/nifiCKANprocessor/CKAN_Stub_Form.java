@@ -0,0 +1,232 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The fields of a multipart/form-data request body, read as a stream: the text fields are kept, the files are only counted.
+ * A JSON request body (like the package_create of a package with its resources) is read as a whole, keeping its top-level values as fields,
+ * and the other ones (like the records of a datastore_upsert) as JSON. The parameters of the query string are fields too, like for CKAN.
+ */
+final class CKAN_Stub_Form {
+
+    // Text fields longer than this are truncated
+    private static final int MAX_FIELD_BYTES = 64 * 1024;
+    private static final Pattern BOUNDARY = Pattern.compile("boundary=\"?([^\";]+)\"?");
+    private static final Pattern NAME = Pattern.compile("[; ]name=\"([^\"]*)\"");
+
+    private final Map<String, String> fields = new HashMap<>();
+    private final Map<String, JsonElement> json = new HashMap<>();
+    private final List<Map<String, String>> resources = new ArrayList<>();
+    private long fileBytes;
+
+    private CKAN_Stub_Form() {
+    }
+
+    String getField(String name) {
+        return fields.get(name);
+    }
+
+    /**
+     * A top-level value of a JSON body that is an object or an array
+     */
+    JsonElement getJson(String name) {
+        return json.get(name);
+    }
+
+    /**
+     * Total size of the files of the request
+     */
+    long getFileBytes() {
+        return fileBytes;
+    }
+
+    /**
+     * Fields of each object of the "resources" list of a JSON body
+     */
+    List<Map<String, String>> getResources() {
+        return resources;
+    }
+
+    /**
+     * Reads the whole body. A body that is neither multipart/form-data nor JSON is read and discarded.
+     * @param query Raw query string of the request, null if it has none
+     */
+    static CKAN_Stub_Form read(InputStream body, String contentType, String query) throws IOException {
+        CKAN_Stub_Form form = new CKAN_Stub_Form();
+        readQuery(query, form);
+        InputStream in = new BufferedInputStream(body, 64 * 1024);
+        if (contentType != null && contentType.startsWith("application/json")) {
+            readJson(in, form);
+            return form;
+        }
+        Matcher boundary = contentType == null ? null : BOUNDARY.matcher(contentType);
+        if (boundary == null || !contentType.startsWith("multipart/form-data") || !boundary.find()) {
+            drain(in);
+            return form;
+        }
+        byte[] delimiter = ("\r\n--" + boundary.group(1)).getBytes(StandardCharsets.ISO_8859_1);
+        int[] failure = failure(delimiter);
+
+        // The first delimiter is not preceded by a line break
+        readPart(in, delimiter, failure, 2, null);
+        while (true) {
+            int first = in.read();
+            int second = in.read();
+            if (first == -1 || (first == '-' && second == '-')) {
+                break;
+            }
+            String name = null;
+            boolean file = false;
+            String header;
+            while (!(header = readLine(in)).isEmpty()) {
+                if (header.toLowerCase().startsWith("content-disposition:")) {
+                    Matcher matcher = NAME.matcher(header);
+                    name = matcher.find() ? matcher.group(1) : null;
+                    file = header.contains("filename=");
+                }
+            }
+            ByteArrayOutputStream value = file || name == null ? null : new ByteArrayOutputStream();
+            long length = readPart(in, delimiter, failure, 0, value);
+            if (file) {
+                form.fileBytes += length;
+            } else if (value != null) {
+                form.fields.put(name, new String(value.toByteArray(), 0, (int) Math.min(length, MAX_FIELD_BYTES), StandardCharsets.UTF_8));
+            }
+        }
+        drain(in);
+        return form;
+    }
+
+    private static void readQuery(String query, CKAN_Stub_Form form) throws UnsupportedEncodingException {
+        if (query == null) {
+            return;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                form.fields.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+    }
+
+    private static void readJson(InputStream in, CKAN_Stub_Form form) throws IOException {
+        JsonElement body = new JsonParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (body.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> field : body.getAsJsonObject().entrySet()) {
+                if (field.getValue().isJsonPrimitive()) {
+                    form.fields.put(field.getKey(), field.getValue().getAsString());
+                } else {
+                    form.json.put(field.getKey(), field.getValue());
+                }
+                if ("resources".equals(field.getKey()) && field.getValue().isJsonArray()) {
+                    for (JsonElement resource : field.getValue().getAsJsonArray()) {
+                        Map<String, String> values = new HashMap<>();
+                        for (Map.Entry<String, JsonElement> value : resource.getAsJsonObject().entrySet()) {
+                            if (value.getValue().isJsonPrimitive()) {
+                                values.put(value.getKey(), value.getValue().getAsString());
+                            }
+                        }
+                        form.resources.add(values);
+                    }
+                }
+            }
+        }
+        drain(in);
+    }
+
+    /**
+     * Reads up to the next delimiter (Knuth-Morris-Pratt search), keeping the content read in value if not null
+     * @param matched Number of bytes of the delimiter considered already read
+     * @return the length of the content before the delimiter
+     */
+    private static long readPart(InputStream in, byte[] delimiter, int[] failure, int matched, ByteArrayOutputStream value) throws IOException {
+        long read = 0;
+        int j = matched;
+        int c;
+        while ((c = in.read()) != -1) {
+            read++;
+            if (value != null && value.size() < MAX_FIELD_BYTES + delimiter.length) {
+                value.write(c);
+            }
+            while (j > 0 && c != (delimiter[j] & 0xff)) {
+                j = failure[j - 1];
+            }
+            if (c == (delimiter[j] & 0xff)) {
+                j++;
+            }
+            if (j == delimiter.length) {
+                return read - (delimiter.length - matched);
+            }
+        }
+        throw new EOFException("The multipart body ended before its closing delimiter");
+    }
+
+    private static int[] failure(byte[] pattern) {
+        int[] failure = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = failure[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // discarded
+        }
+    }
+}
@@ -0,0 +1,1116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.atos.qrowd.processors.nifiCKANprocessor;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fake CKAN on a local port, answering the actions used by the processors: organization_show/create, package_show/create,
+ * resource_show/create/update/patch, organization_list, package_search, the DataStore actions (datastore_create, datastore_upsert
+ * and datastore_delete) and the multipart upload actions of ckanext-cloudstorage (initiate, check, upload, finish and abort).
+ * Other actions get an empty successful response. The parameters of the query string are read like the fields of the body.
+ *
+ * It keeps the organizations, packages, resources and DataStore rows created, so a FlowFile uploaded twice updates its resource, and the hash
+ * sent with an upload is returned by package_show like CKAN does. Each change of a resource updates the metadata_modified of its package,
+ * which package_search filters on (metadata_modified ranges, organizations and names) and sorts by, in pages. The changes are at least
+ * a millisecond apart, the precision of the search index. A multipart upload keeps the size of each part received, and finishing it
+ * sets the size of its resource to their total. It reads every request body to the end, like a real server.
+ *
+ * The content of a resource can be served under /download/, with the HEAD and Range requests the segmented downloads use.
+ *
+ * Faults can be injected to test the processor under realistic conditions, and changed while it runs:
+ * a log-normal latency, a rate of server errors, throttling with 429 responses and slow reading of the request bodies.
+ * Single requests can also be failed or delayed, by action, to test how each one is retried.
+ */
+public class CKAN_Stub_Server implements Closeable {
+
+    /**
+     * Action name under which the requests for the content of the resources are counted, failed and delayed
+     */
+    public static final String DOWNLOAD = "download";
+
+    private static final String NOT_FOUND = "{\"help\": \"\", \"success\": false, \"error\": {\"message\": \"Not found\", \"__type\": \"Not Found Error\"}}";
+    private static final String SERVER_ERROR = "{\"help\": \"\", \"success\": false, \"error\": {\"message\": \"Internal Server Error\", \"__type\": \"Internal Server Error\"}}";
+    private static final String THROTTLED = "{\"help\": \"\", \"success\": false, \"error\": {\"message\": \"Too Many Requests\", \"__type\": \"Throttled\"}}";
+    // z-score of the 99th percentile of a normal distribution
+    private static final double Z_99 = 2.326;
+    // Dates as CKAN writes them: UTC, with microseconds and without the zone
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS").withZone(ZoneOffset.UTC);
+    private static final String CANNED_DATE = "2018-03-01T10:00:00.000000";
+    private static final Pattern MODIFIED_RANGE = Pattern.compile("metadata_modified:\\[(\\S+) TO (\\S+)]");
+    private static final Pattern NOW_MINUS = Pattern.compile("NOW-(\\d+)SECONDS");
+    private static final Pattern QUOTED = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    // Queued among the failures of an action for a request answered normally
+    private static final int PASS = 0;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final Set<String> organizations = ConcurrentHashMap.newKeySet();
+    private final Map<String, Package> packages = new ConcurrentHashMap<>();
+    // In the order they were created, which is the position CKAN gives them in their package. Iterated while holding the map.
+    private final Map<String, Resource> resources = Collections.synchronizedMap(new LinkedHashMap<>());
+    // Multipart uploads in progress, by upload id
+    private final Map<String, MultipartUpload> multipartUploads = new ConcurrentHashMap<>();
+    // DataStore tables, by resource id
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    private Instant lastChange = Instant.EPOCH;
+
+    private volatile int packageResourceCount = -1;
+    // Parameters of the log-normal latency, in milliseconds. No latency while the median is 0
+    private volatile double latencyMedianMillis;
+    private volatile double latencySigma;
+    private volatile double errorRate;
+    private volatile long readBytesPerSecond;
+    // Token bucket of the throttling, holding at most one second of requests
+    private int requestsPerSecond;
+    private double tokens;
+    private long tokensUpdatedAt;
+    // Status codes to answer and delays to wait before answering the next requests of an action, by action
+    private final Map<String, Queue<Integer>> failures = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Long>> delays = new ConcurrentHashMap<>();
+    // "__type" of the CKAN error answered to the failed requests of an action, by action
+    private final Map<String, String> failureTypes = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> responseCounts = new ConcurrentHashMap<>();
+    private final List<Download> downloads = new CopyOnWriteArrayList<>();
+    private final List<Integer> partsReceived = new CopyOnWriteArrayList<>();
+
+    private CKAN_Stub_Server(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a stub on a free port of the loopback interface
+     */
+    public static CKAN_Stub_Server start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        final CKAN_Stub_Server stub = new CKAN_Stub_Server(server, executor);
+        server.createContext("/api/action/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stub.handle(exchange);
+            }
+        });
+        server.createContext("/download/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                stub.handleDownload(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        return stub;
+    }
+
+    /**
+     * Base url to configure as the CKAN Url of the processor
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * Makes every package_show return that number of resources, named upload-0.csv, upload-1.csv..., instead of the resources created:
+     * 0 makes the processor create the resource of upload-0.csv, 1 update it. The resources are then no longer kept.
+     * A negative number goes back to returning the resources created.
+     */
+    public void setPackageResourceCount(int packageResourceCount) {
+        this.packageResourceCount = packageResourceCount;
+    }
+
+    /**
+     * Delays each response by a log-normal latency, the usual shape of service latencies: most responses around the median, and a long tail.
+     * @param median Median latency, 0 for none
+     * @param p99 99th percentile of the latency, the same as the median for a fixed latency
+     */
+    public void setLatency(long median, long p99, TimeUnit unit) {
+        if (p99 < median) {
+            throw new IllegalArgumentException("The 99th percentile of the latency cannot be below its median");
+        }
+        this.latencySigma = median == 0 ? 0 : Math.log((double) p99 / median) / Z_99;
+        this.latencyMedianMillis = unit.toNanos(median) / 1e6;
+    }
+
+    /**
+     * Fraction of the requests, between 0 and 1, answered with a 500 Internal Server Error
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Answers the requests over that rate with 429 Too Many Requests and a Retry-After of 1 second. 0 for no limit.
+     */
+    public synchronized void setRateLimit(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.tokens = requestsPerSecond;
+        this.tokensUpdatedAt = System.nanoTime();
+    }
+
+    /**
+     * Reads the request bodies at most at that rate, like a congested server, so the client blocks on writing them. 0 for no limit.
+     */
+    public void setReadRate(long bytesPerSecond) {
+        this.readBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Answers the next requests of an action with that status code, without doing the action
+     * @param action Name of the action, or DOWNLOAD for the content of the resources
+     * @param times Number of requests failed
+     */
+    public void failNext(String action, int statusCode, int times) {
+        failNext(action, 0, statusCode, times);
+    }
+
+    /**
+     * Answers the next requests of an action with that status code and a CKAN error of that type, e.g. a validation error
+     * whose status was rewritten by a proxy. The later failures of the action keep that type.
+     * @param errorType "__type" of the CKAN error
+     */
+    public void failNext(String action, int statusCode, String errorType, int times) {
+        failureTypes.put(action, errorType);
+        failNext(action, 0, statusCode, times);
+    }
+
+    /**
+     * Lets the next requests of an action through, then answers the following ones with that status code, without doing the action
+     * @param passed Number of requests answered normally first
+     */
+    public void failNext(String action, int passed, int statusCode, int times) {
+        Queue<Integer> queue = failures.computeIfAbsent(action, k -> new ConcurrentLinkedQueue<>());
+        for (int i = 0; i < passed; i++) {
+            queue.add(PASS);
+        }
+        for (int i = 0; i < times; i++) {
+            queue.add(statusCode);
+        }
+    }
+
+    /**
+     * Waits before answering the next requests of an action, like an overloaded server. The action is still done once the delay is over,
+     * also when the client stopped waiting for it.
+     * @param action Name of the action, or DOWNLOAD for the content of the resources
+     * @param times Number of requests delayed
+     */
+    public void delayNext(String action, long delay, TimeUnit unit, int times) {
+        Queue<Long> queue = delays.computeIfAbsent(action, k -> new ConcurrentLinkedQueue<>());
+        for (int i = 0; i < times; i++) {
+            queue.add(unit.toMillis(delay));
+        }
+    }
+
+    /**
+     * Number of requests received per action
+     */
+    public Map<String, Long> getRequestCounts() {
+        return snapshot(requestCounts);
+    }
+
+    /**
+     * Number of requests received for an action, 0 if none
+     */
+    public long getRequestCount(String action) {
+        AtomicLong count = requestCounts.get(action);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Number of responses sent per status code
+     */
+    public Map<Integer, Long> getResponseCounts() {
+        return snapshot(responseCounts);
+    }
+
+    /**
+     * Requests received for the content of the resources, in the order they were received
+     */
+    public List<Download> getDownloads() {
+        return new ArrayList<>(downloads);
+    }
+
+    /**
+     * Numbers of the parts of the multipart uploads accepted, in the order they were received
+     */
+    public List<Integer> getPartsReceived() {
+        return new ArrayList<>(partsReceived);
+    }
+
+    public void resetCounts() {
+        requestCounts.clear();
+        responseCounts.clear();
+        downloads.clear();
+        partsReceived.clear();
+    }
+
+    /**
+     * Creates a package, with no resources, as if it had been created through the API
+     */
+    public void createPackage(String organization, String packageName) {
+        organizations.add(organization);
+        packages.put(packageName, new Package(packageName, organization, change()));
+    }
+
+    /**
+     * Creates a resource, whose url is the download url of the content on this stub, with the MD5 of the content as its hash
+     * @return the id of the resource
+     */
+    public String createResource(String packageName, String name, byte[] content) {
+        Resource resource = new Resource(UUID.randomUUID().toString(), name, packageName, change());
+        resource.url = getUrl() + "/" + DOWNLOAD + "/" + resource.id + "/" + name;
+        resource.setContent(content);
+        resources.put(resource.id, resource);
+        touch(packageName, resource.lastModified);
+        return resource.id;
+    }
+
+    /**
+     * Replaces the content of a resource, which changes its hash, its ETag and its last_modified date
+     */
+    public void updateResource(String resourceId, byte[] content) {
+        Resource resource = resources.get(resourceId);
+        resource.setContent(content);
+        resource.lastModified = change();
+        touch(resource.packageId, resource.lastModified);
+    }
+
+    /**
+     * Sets the url of a resource, e.g. to an other origin than the stub
+     */
+    public void setResourceUrl(String resourceId, String url) {
+        resources.get(resourceId).url = url;
+    }
+
+    /**
+     * Rows of the DataStore table of a resource, in the order they were inserted, with the values as strings
+     * @return null if the resource has no table
+     */
+    public List<Map<String, String>> getDataStoreRows(String resourceId) {
+        Table table = tables.get(resourceId);
+        if (table == null) {
+            return null;
+        }
+        List<Map<String, String>> rows = new ArrayList<>();
+        synchronized (table) {
+            for (JsonObject row : table.rows) {
+                Map<String, String> values = new LinkedHashMap<>();
+                for (Map.Entry<String, JsonElement> value : row.entrySet()) {
+                    values.put(value.getKey(), value.getValue().isJsonNull() ? null
+                            : value.getValue().isJsonPrimitive() ? value.getValue().getAsString() : value.getValue().toString());
+                }
+                rows.add(values);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Id of the resource of a package with that name, null if there is none
+     */
+    public String getResourceId(String packageName, String name) {
+        synchronized (resources) {
+            for (Resource resource : resources.values()) {
+                if (resource.packageId.equals(packageName) && resource.name.equals(name)) {
+                    return resource.id;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String action = exchange.getRequestURI().getPath().substring("/api/action/".length());
+            count(requestCounts, action);
+            InputStream body = readBytesPerSecond > 0 ? new SlowInputStream(exchange.getRequestBody(), readBytesPerSecond) : exchange.getRequestBody();
+            // Like a proxy inflating the request bodies for CKAN
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                body = new GZIPInputStream(body);
+            }
+            CKAN_Stub_Form form = CKAN_Stub_Form.read(body, exchange.getRequestHeaders().getFirst("Content-Type"), exchange.getRequestURI().getRawQuery());
+            sleep();
+            delay(action);
+
+            Integer failure = poll(failures, action);
+            if (failure != null && failure != PASS) {
+                String errorType = failureTypes.get(action);
+                respond(exchange, failure, errorType != null ? error(errorType) : failure == 404 ? NOT_FOUND : SERVER_ERROR);
+            } else if (!acquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, THROTTLED);
+            } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                respond(exchange, 500, SERVER_ERROR);
+            } else {
+                respondTo(exchange, action, form);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void respondTo(HttpExchange exchange, String action, CKAN_Stub_Form form) throws IOException {
+        boolean canned = packageResourceCount >= 0;
+        switch (action) {
+            case "organization_show":
+                respond(exchange, organizations.contains(String.valueOf(form.getField("id"))), "{\"name\": \"" + form.getField("id") + "\"}");
+                break;
+            case "organization_create":
+                organizations.add(form.getField("name"));
+                respond(exchange, 200, success("{\"name\": \"" + form.getField("name") + "\"}"));
+                break;
+            case "package_show":
+                Package shown = packageOf(String.valueOf(form.getField("id")));
+                if (canned) {
+                    respond(exchange, shown != null, shown == null ? null : packageJson(shown.name, packageResourceCount));
+                } else {
+                    respond(exchange, shown != null, shown == null ? null : packageJson(shown));
+                }
+                break;
+            case "organization_list":
+                respond(exchange, 200, success(names(start(form) == 0 ? organizations : Collections.<String>emptySet())));
+                break;
+            case "package_search":
+                respond(exchange, 200, success(search(form)));
+                break;
+            case "package_create":
+                String packageCreated = canned ? CANNED_DATE : change();
+                Package createdPackage = new Package(form.getField("name"), form.getField("owner_org"), packageCreated);
+                packages.put(createdPackage.name, createdPackage);
+                List<String> packageResources = new ArrayList<>();
+                for (Map<String, String> fields : form.getResources()) {
+                    Resource initial = new Resource(UUID.randomUUID().toString(), fields.get("name"), createdPackage.name, packageCreated);
+                    if (!canned) {
+                        resources.put(initial.id, initial);
+                    }
+                    packageResources.add(initial.toJson());
+                }
+                respond(exchange, 200, success("{\"id\": \"" + createdPackage.id + "\", \"name\": \"" + createdPackage.name + "\", \"resources\": ["
+                        + String.join(", ", packageResources) + "]}"));
+                break;
+            case "resource_show":
+                Resource found = resources.get(String.valueOf(form.getField("id")));
+                respond(exchange, found != null, found == null ? null : found.toJson());
+                break;
+            case "resource_create":
+                Resource created = new Resource(UUID.randomUUID().toString(), form.getField("name"), form.getField("package_id"), canned ? CANNED_DATE : change());
+                created.update(form);
+                if (!canned) {
+                    resources.put(created.id, created);
+                    touch(created.packageId, created.created);
+                }
+                respond(exchange, 200, success(created.toJson()));
+                break;
+            case "resource_update":
+            case "resource_patch":
+                Resource resource = canned ? new Resource(form.getField("id"), form.getField("name"), form.getField("package_id"), CANNED_DATE)
+                        : resources.get(String.valueOf(form.getField("id")));
+                if (resource != null) {
+                    resource.update(form);
+                    if (!canned) {
+                        resource.lastModified = change();
+                        touch(resource.packageId, resource.lastModified);
+                    }
+                }
+                respond(exchange, resource != null, resource == null ? null : resource.toJson());
+                break;
+            case "datastore_create":
+                dataStoreCreate(exchange, form);
+                break;
+            case "datastore_upsert":
+                dataStoreUpsert(exchange, form);
+                break;
+            case "datastore_delete":
+                Table cleared = tables.get(String.valueOf(form.getField("resource_id")));
+                if (cleared != null) {
+                    if (form.getJson("filters") != null && form.getJson("filters").getAsJsonObject().size() == 0) {
+                        synchronized (cleared) {
+                            cleared.rows.clear();
+                        }
+                    } else {
+                        // Without filters CKAN deletes the table itself
+                        tables.remove(String.valueOf(form.getField("resource_id")));
+                    }
+                }
+                respond(exchange, cleared != null, "{\"resource_id\": \"" + form.getField("resource_id") + "\"}");
+                break;
+            case "cloudstorage_initiate_multipart":
+                String resourceId = String.valueOf(form.getField("id"));
+                if (!canned && !resources.containsKey(resourceId)) {
+                    respond(exchange, 404, NOT_FOUND);
+                    break;
+                }
+                // Like ckanext-cloudstorage, a resource has at most one upload in progress
+                abortMultipart(resourceId);
+                MultipartUpload initiated = new MultipartUpload(UUID.randomUUID().toString(), resourceId, form.getField("name"));
+                multipartUploads.put(initiated.id, initiated);
+                respond(exchange, 200, success(initiated.toJson()));
+                break;
+            case "cloudstorage_check_multipart":
+                MultipartUpload inProgress = multipartOf(String.valueOf(form.getField("id")));
+                respond(exchange, inProgress != null, inProgress == null ? null : "{\"upload\": " + inProgress.toJson() + ", \"parts\": " + inProgress.parts.size() + "}");
+                break;
+            case "cloudstorage_upload_multipart":
+                MultipartUpload upload = multipartUploads.get(String.valueOf(form.getField("uploadId")));
+                if (upload == null || form.getField("partNumber") == null) {
+                    respond(exchange, 404, NOT_FOUND);
+                    break;
+                }
+                int partNumber = Integer.parseInt(form.getField("partNumber"));
+                upload.parts.put(partNumber, form.getFileBytes());
+                partsReceived.add(partNumber);
+                respond(exchange, 200, success("{\"partNumber\": " + partNumber + ", \"ETag\": \"" + UUID.randomUUID() + "\"}"));
+                break;
+            case "cloudstorage_finish_multipart":
+                MultipartUpload finished = multipartUploads.remove(String.valueOf(form.getField("uploadId")));
+                if (finished == null) {
+                    respond(exchange, 404, NOT_FOUND);
+                    break;
+                }
+                Resource target = resources.get(finished.resourceId);
+                if (target != null) {
+                    target.size = finished.size();
+                    target.lastModified = change();
+                    touch(target.packageId, target.lastModified);
+                }
+                respond(exchange, 200, success("{\"commited\": true}"));
+                break;
+            case "cloudstorage_abort_multipart":
+                respond(exchange, 200, success("{\"aborted\": " + abortMultipart(String.valueOf(form.getField("id"))) + "}"));
+                break;
+            default:
+                respond(exchange, 200, success("{}"));
+                break;
+        }
+    }
+
+    /**
+     * Creates the table of an existing resource, or of a new resource of a package, keeping the rows of an existing table
+     */
+    private void dataStoreCreate(HttpExchange exchange, CKAN_Stub_Form form) throws IOException {
+        String resourceId = form.getField("resource_id");
+        if (resourceId == null) {
+            JsonObject fields = form.getJson("resource") == null ? null : form.getJson("resource").getAsJsonObject();
+            if (fields == null || !fields.has("package_id") || packageOf(fields.get("package_id").getAsString()) == null) {
+                respond(exchange, 404, NOT_FOUND);
+                return;
+            }
+            Resource created = new Resource(UUID.randomUUID().toString(), fields.has("name") ? fields.get("name").getAsString() : "",
+                    packageOf(fields.get("package_id").getAsString()).name, change());
+            resources.put(created.id, created);
+            touch(created.packageId, created.created);
+            resourceId = created.id;
+        } else if (!resources.containsKey(resourceId)) {
+            respond(exchange, 404, NOT_FOUND);
+            return;
+        }
+        Table table = tables.computeIfAbsent(resourceId, k -> new Table());
+        if (form.getField("primary_key") != null) {
+            table.primaryKey = form.getField("primary_key");
+        }
+        respond(exchange, 200, success("{\"resource_id\": \"" + resourceId + "\"}"));
+    }
+
+    /**
+     * Inserts the records, or with upsert replaces the rows with the same primary key
+     */
+    private void dataStoreUpsert(HttpExchange exchange, CKAN_Stub_Form form) throws IOException {
+        Table table = tables.get(String.valueOf(form.getField("resource_id")));
+        JsonElement records = form.getJson("records");
+        if (table == null || records == null || !records.isJsonArray()) {
+            respond(exchange, 404, NOT_FOUND);
+            return;
+        }
+        boolean upsert = "upsert".equals(form.getField("method"));
+        if (upsert && table.primaryKey == null) {
+            respond(exchange, 409, "{\"help\": \"\", \"success\": false, \"error\": {\"message\": \"No primary key\", \"__type\": \"Validation Error\"}}");
+            return;
+        }
+        synchronized (table) {
+            for (JsonElement record : records.getAsJsonArray()) {
+                JsonObject row = record.getAsJsonObject();
+                boolean replaced = false;
+                if (upsert) {
+                    for (int i = 0; i < table.rows.size() && !replaced; i++) {
+                        if (String.valueOf(table.rows.get(i).get(table.primaryKey)).equals(String.valueOf(row.get(table.primaryKey)))) {
+                            table.rows.set(i, row);
+                            replaced = true;
+                        }
+                    }
+                }
+                if (!replaced) {
+                    table.rows.add(row);
+                }
+            }
+        }
+        respond(exchange, 200, success("{\"resource_id\": \"" + form.getField("resource_id") + "\", \"method\": \"" + form.getField("method") + "\"}"));
+    }
+
+    /**
+     * Serves the content of a resource, whole or a single range of it
+     */
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        try {
+            count(requestCounts, DOWNLOAD);
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            downloads.add(new Download(exchange.getRequestMethod(), range, exchange.getRequestHeaders().getFirst("X-CKAN-API-Key")));
+            CKAN_Stub_Form.read(exchange.getRequestBody(), null, null);
+            delay(DOWNLOAD);
+
+            String[] path = exchange.getRequestURI().getPath().substring(("/" + DOWNLOAD + "/").length()).split("/");
+            Resource resource = resources.get(path[0]);
+            Integer failure = poll(failures, DOWNLOAD);
+            if (failure != null && failure != PASS) {
+                respond(exchange, failure, SERVER_ERROR);
+                return;
+            }
+            if (resource == null || resource.content == null) {
+                respond(exchange, 404, NOT_FOUND);
+                return;
+            }
+            byte[] content = resource.content;
+            exchange.getResponseHeaders().set("Content-Type", "text/csv");
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", resource.etag);
+
+            Matcher bytes = range == null ? null : RANGE.matcher(range.trim());
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            // A range of a content that changed since the If-Range validator is answered with the whole new content
+            if (bytes != null && bytes.matches() && (ifRange == null || ifRange.equals(resource.etag))) {
+                int from = Integer.parseInt(bytes.group(1));
+                int to = bytes.group(2).isEmpty() ? content.length - 1 : Math.min(Integer.parseInt(bytes.group(2)), content.length - 1);
+                if (from >= content.length || from > to) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                    respond(exchange, 416, "");
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+                send(exchange, 206, Arrays.copyOfRange(content, from, to + 1));
+            } else {
+                send(exchange, 200, content);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The matching packages, by metadata_modified and then name, like the package_search of the packages modified since a date does
+     */
+    private String search(CKAN_Stub_Form form) {
+        String filter = form.getField("fq") == null ? "" : form.getField("fq");
+        Instant from = null;
+        Instant to = null;
+        Matcher modified = MODIFIED_RANGE.matcher(filter);
+        if (modified.find()) {
+            from = "*".equals(modified.group(1)) ? null : Instant.parse(modified.group(1));
+            Matcher lag = NOW_MINUS.matcher(modified.group(2));
+            to = lag.matches() ? now().minusSeconds(Long.parseLong(lag.group(1))) : null;
+        }
+        List<String> organizationNames = quotedAfter(filter, "organization:(");
+        List<String> packageNames = quotedAfter(filter, "name:(");
+
+        List<Package> found = new ArrayList<>();
+        for (Package candidate : packages.values()) {
+            // The search index keeps the dates with milliseconds only
+            Instant indexed = candidate.modified.truncatedTo(ChronoUnit.MILLIS);
+            if ((from == null || !indexed.isBefore(from)) && (to == null || !indexed.isAfter(to))
+                    && (organizationNames == null || organizationNames.contains(candidate.organization))
+                    && (packageNames == null || packageNames.contains(candidate.name))) {
+                found.add(candidate);
+            }
+        }
+        found.sort(Comparator.comparing((Package p) -> p.modified).thenComparing(p -> p.name));
+        int start = Math.min(start(form), found.size());
+        int rows = form.getField("rows") == null ? found.size() : Integer.parseInt(form.getField("rows"));
+        List<String> page = new ArrayList<>();
+        for (Package result : found.subList(start, Math.min(found.size(), start + rows))) {
+            page.add(packageJson(result));
+        }
+        return "{\"count\": " + found.size() + ", \"results\": [" + String.join(", ", page) + "]}";
+    }
+
+    /**
+     * The quoted names of a clause like name:("a" OR "b"), null if the filter has no such clause
+     */
+    private static List<String> quotedAfter(String filter, String clause) {
+        int at = filter.indexOf(clause);
+        if (at < 0) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        Matcher quoted = QUOTED.matcher(filter.substring(at + clause.length(), filter.indexOf(')', at)));
+        while (quoted.find()) {
+            names.add(quoted.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+        }
+        return names;
+    }
+
+    private static int start(CKAN_Stub_Form form) {
+        String start = form.getField("start") != null ? form.getField("start") : form.getField("offset");
+        return start == null ? 0 : Integer.parseInt(start);
+    }
+
+    /**
+     * A package by name, or by id
+     */
+    private Package packageOf(String nameOrId) {
+        Package byName = packages.get(nameOrId);
+        if (byName != null) {
+            return byName;
+        }
+        for (Package candidate : packages.values()) {
+            if (candidate.id.equals(nameOrId)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A date later than the previous change by at least a millisecond, like two changes of CKAN told apart by the search index.
+     * The clock of the stub runs ahead of the real one while it changes more than once per millisecond.
+     */
+    private synchronized String change() {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        if (!now.truncatedTo(ChronoUnit.MILLIS).isAfter(lastChange.truncatedTo(ChronoUnit.MILLIS))) {
+            now = lastChange.truncatedTo(ChronoUnit.MILLIS).plusMillis(1);
+        }
+        lastChange = now;
+        return DATE.format(now);
+    }
+
+    /**
+     * The clock of the stub, never behind its last change
+     */
+    private synchronized Instant now() {
+        Instant now = Instant.now();
+        return now.isBefore(lastChange) ? lastChange : now;
+    }
+
+    /**
+     * Updates the metadata_modified of a package, which CKAN does on every change of its resources
+     */
+    private void touch(String packageName, String date) {
+        Package changed = packages.get(packageName);
+        if (changed != null) {
+            changed.modified = parse(date);
+        }
+    }
+
+    private static Instant parse(String date) {
+        return LocalDateTime.parse(date).toInstant(ZoneOffset.UTC);
+    }
+
+    private MultipartUpload multipartOf(String resourceId) {
+        for (MultipartUpload upload : multipartUploads.values()) {
+            if (upload.resourceId.equals(resourceId)) {
+                return upload;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of uploads of the resource aborted
+     */
+    private int abortMultipart(String resourceId) {
+        int aborted = 0;
+        for (MultipartUpload upload : multipartUploads.values()) {
+            if (upload.resourceId.equals(resourceId) && multipartUploads.remove(upload.id) != null) {
+                aborted++;
+            }
+        }
+        return aborted;
+    }
+
+    private static String names(Set<String> names) {
+        List<String> items = new ArrayList<>();
+        for (String name : names) {
+            items.add("\"" + name + "\"");
+        }
+        return "[" + String.join(", ", items) + "]";
+    }
+
+    private String packageJson(Package found) {
+        List<String> packageResources = new ArrayList<>();
+        synchronized (resources) {
+            for (Resource resource : resources.values()) {
+                if (found.name.equals(resource.packageId)) {
+                    packageResources.add(resource.toJson());
+                }
+            }
+        }
+        return "{\"id\": \"" + found.id + "\", \"name\": \"" + found.name + "\", \"metadata_modified\": \"" + DATE.format(found.modified) + "\", "
+                + "\"organization\": " + (found.organization == null ? "null" : "{\"name\": \"" + found.organization + "\"}") + ", "
+                + "\"resources\": [" + String.join(", ", packageResources) + "]}";
+    }
+
+    private static String packageJson(String name, int resourceCount) {
+        String packageId = "0e9b5b7e-2b5a-4c43-9a4a-3bd1b2a5e4f1";
+        StringBuilder sb = new StringBuilder("{\"license_title\": null, \"maintainer\": null, \"private\": true, \"maintainer_email\": null, ")
+                .append("\"num_tags\": 1, \"id\": \"").append(packageId).append("\", \"metadata_created\": \"2018-03-01T10:00:00.000000\", ")
+                .append("\"metadata_modified\": \"2018-03-01T10:00:00.000000\", \"author\": null, \"author_email\": null, \"state\": \"active\", ")
+                .append("\"version\": null, \"creator_user_id\": \"3c2b1a0f-9e8d-4c7b-a6f5-e4d3c2b1a0f9\", \"type\": \"dataset\", ")
+                .append("\"tags\": [{\"vocabulary_id\": null, \"state\": \"active\", \"display_name\": \"qrowd\", \"id\": \"7a6b5c4d-3e2f-4a1b-9c8d-7e6f5a4b3c2d\", \"name\": \"qrowd\"}], ")
+                .append("\"groups\": [], \"extras\": [], \"name\": \"").append(name).append("\", \"notes\": \"\", \"num_resources\": ").append(resourceCount)
+                .append(", \"resources\": [");
+        for (int i = 0; i < resourceCount; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String id = new UUID(0, i).toString();
+            sb.append(resource(id, "upload-" + i + ".csv", packageId, "", 1048576, CANNED_DATE, CANNED_DATE, cannedUrl(packageId, id, "upload-" + i + ".csv")));
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * A package_show response like the ones of CKAN, for a package with count resources
+     */
+    public static String packageResponse(int count) {
+        return "{\"help\": \"http://localhost/api/3/action/help_show?name=package_show\", \"success\": true, \"result\": "
+                + packageJson("qrowd-benchmark", count) + "}";
+    }
+
+    private static String cannedUrl(String packageId, String id, String name) {
+        return "http://localhost/dataset/" + packageId + "/resource/" + id + "/download/" + name;
+    }
+
+    private static String resource(String id, String name, String packageId, String hash, long size, String created, String lastModified, String url) {
+        return "{\"cache_last_updated\": null, \"package_id\": \"" + packageId + "\", \"webstore_last_updated\": null, "
+                + "\"id\": \"" + id + "\", \"size\": " + size + ", \"state\": \"active\", \"last_modified\": \"" + lastModified + "\", "
+                + "\"hash\": \"" + hash + "\", \"description\": \"" + name + " created on: 20180301_100000\", \"format\": \"CSV\", \"mimetype_inner\": null, "
+                + "\"url_type\": \"upload\", \"mimetype\": \"text/csv\", \"cache_url\": null, \"name\": \"" + name + "\", "
+                + "\"created\": \"" + created + "\", \"url\": \"" + url + "\", "
+                + "\"webstore_url\": null, \"position\": 0, \"revision_id\": \"5d4e8f3a-1c2b-4a6d-8e9f-0a1b2c3d4e5f\", \"resource_type\": null}";
+    }
+
+    private static String error(String errorType) {
+        return "{\"help\": \"\", \"success\": false, \"error\": {\"message\": \"" + errorType + "\", \"__type\": \"" + errorType + "\"}}";
+    }
+
+        private static String success(String result) {
+        return "{\"help\": \"\", \"success\": true, \"result\": " + result + "}";
+    }
+
+    private void respond(HttpExchange exchange, boolean found, String result) throws IOException {
+        if (found) {
+            respond(exchange, 200, success(result));
+        } else {
+            respond(exchange, 404, NOT_FOUND);
+        }
+    }
+
+    private void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+        send(exchange, statusCode, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(HttpExchange exchange, int statusCode, byte[] bytes) throws IOException {
+        count(responseCounts, statusCode);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(bytes.length));
+            exchange.sendResponseHeaders(statusCode, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void sleep() {
+        double median = latencyMedianMillis;
+        if (median <= 0) {
+            return;
+        }
+        long nanos = (long) (median * Math.exp(latencySigma * ThreadLocalRandom.current().nextGaussian()) * 1e6);
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void delay(String action) {
+        Long millis = poll(delays, action);
+        if (millis == null) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T poll(Map<String, Queue<T>> queues, String action) {
+        Queue<T> queue = queues.get(action);
+        return queue == null ? null : queue.poll();
+    }
+
+    private synchronized boolean acquire() {
+        if (requestsPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(requestsPerSecond, tokens + (now - tokensUpdatedAt) * requestsPerSecond / 1e9);
+        tokensUpdatedAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private static <K> void count(Map<K, AtomicLong> counts, K key) {
+        counts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static <K> Map<K, Long> snapshot(Map<K, AtomicLong> counts) {
+        Map<K, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<K, AtomicLong> count : counts.entrySet()) {
+            snapshot.put(count.getKey(), count.getValue().get());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * A request received for the content of a resource
+     */
+    public static final class Download {
+        private final String method;
+        private final String range;
+        private final String apiKey;
+
+        private Download(String method, String range, String apiKey) {
+            this.method = method;
+            this.range = range;
+            this.apiKey = apiKey;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the Range header of the request, null if it had none
+         */
+        public String getRange() {
+            return range;
+        }
+
+        /**
+         * @return the X-CKAN-API-Key header of the request, null if it had none
+         */
+        public String getApiKey() {
+            return apiKey;
+        }
+    }
+
+    private static final class Package {
+        private final String id;
+        private final String name;
+        private final String organization;
+        private volatile Instant modified;
+
+        private Package(String name, String organization, String modified) {
+            this.id = new UUID(name.hashCode(), 0).toString();
+            this.name = name;
+            this.organization = organization;
+            this.modified = parse(modified);
+        }
+    }
+
+    private static final class Resource {
+        private final String id;
+        private final String name;
+        // Name of the package, which the processors send as package_id
+        private final String packageId;
+        private final String created;
+        private volatile String lastModified;
+        private volatile String url;
+        private volatile String hash = "";
+        private volatile long size;
+        private volatile byte[] content;
+        private volatile String etag;
+
+        private Resource(String id, String name, String packageId, String created) {
+            this.id = id;
+            this.name = name;
+            this.packageId = packageId;
+            this.created = created;
+            this.lastModified = created;
+            this.url = cannedUrl(packageId, id, name);
+        }
+
+        private void update(CKAN_Stub_Form form) {
+            if (form.getField("hash") != null) {
+                hash = form.getField("hash");
+            }
+            if (form.getFileBytes() > 0) {
+                size = form.getFileBytes();
+            }
+        }
+
+        private void setContent(byte[] content) {
+            this.content = content;
+            this.size = content.length;
+            this.hash = md5(content);
+            this.etag = "\"" + hash + "\"";
+        }
+
+        private String toJson() {
+            return resource(id, name, packageId, hash, size, created, lastModified, url);
+        }
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Table {
+        private final List<JsonObject> rows = new ArrayList<>();
+        private volatile String primaryKey;
+    }
+
+    private static final class MultipartUpload {
+        private final String id;
+        private final String resourceId;
+        private final String name;
+        // Size of each part received, by part number. A part sent again replaces the previous one
+        private final Map<Integer, Long> parts = new ConcurrentHashMap<>();
+
+        private MultipartUpload(String id, String resourceId, String name) {
+            this.id = id;
+            this.resourceId = resourceId;
+            this.name = name;
+        }
+
+        private long size() {
+            long size = 0;
+            for (long part : parts.values()) {
+                size += part;
+            }
+            return size;
+        }
+
+        private String toJson() {
+            return "{\"id\": \"" + id + "\", \"resource_id\": \"" + resourceId + "\", \"name\": \"" + name + "\"}";
+        }
+    }
+
+    /**
+     * Reads at most bytesPerSecond, sleeping between the reads
+     */
+    private static final class SlowInputStream extends FilterInputStream {
+        private final long bytesPerSecond;
+        private final long startedAt = System.nanoTime();
+        private long read;
+
+        private SlowInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Small reads, so that the rate is even over the body
+            int n = super.read(b, off, (int) Math.min(len, Math.max(1, bytesPerSecond / 20)));
+            if (n > 0) {
+                read += n;
+                long aheadNanos = (long) (read * 1e9 / bytesPerSecond) - (System.nanoTime() - startedAt);
+                if (aheadNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while reading slowly", e);
+                    }
+                }
+            }
+            return n;
+        }
+    }
+}